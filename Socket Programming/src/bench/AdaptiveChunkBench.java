@@ -0,0 +1,198 @@
+package bench;
+
+import server.Server;
+import util.*;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+// upload and object download throughput through a proxy that emulates a long, lossy link, with fixed 1 KB chunks or adaptive ones
+// the proxy delays every block by a one-way delay, lets it out no faster than the link rate and holds at most window bytes
+// per direction; tcp hides a lost segment behind its retransmission, so a loss shows up as that segment, and everything
+// behind it, arriving one round trip late
+// fixed: the server's chunk bounds are both 1 KB and the client keeps the server's window of chunks in flight, as before
+// adaptive: chunks may be 1 KB to 256 KB and the client sizes chunks and window with a CongestionWindow
+// usage: java bench.AdaptiveChunkBench [fixed|adaptive] [file MB] [link MB/s] [window KB] [thread|virtual|nio]
+// the bounds are the in-process server's, so run it once per variant, from an empty directory (storage goes under ./src/storage)
+public class AdaptiveChunkBench {
+    private static final int SERVER_PORT = 33333, PROXY_PORT = 33334;
+    private static final int SEGMENT = 1460; // bytes a loss hits, like a tcp segment
+    private static final int[] DELAYS_MS = {0, 10, 50};
+    private static final double[] LOSSES = {0, 0.01};
+
+    public static void main(String[] args) throws Exception {
+        boolean adaptive = !(args.length > 0 && args[0].equals("fixed"));
+        int fileMB = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int linkMB = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+        int windowKB = args.length > 3 ? Integer.parseInt(args[3]) : 512;
+        String mode = args.length > 4 ? args[4] : "thread";
+        long fileSize = fileMB * 1024L * 1024L;
+
+        new File("src/storage").mkdirs();
+        int maxChunk = adaptive ? 256 * 1024 : 1024;
+        Thread serverThread = new Thread(() -> new Server(1000000000, 1024, maxChunk, mode, 1, 10 * 60 * 1000));
+        serverThread.setDaemon(true);
+        serverThread.start();
+        BenchClient.waitForServer(SERVER_PORT);
+
+        // straight to the server, so the first measured transfer does not pay for a cold jvm on both ends
+        NetworkUtil warmup = BenchClient.login(SERVER_PORT, "bench-warmup");
+        for (int i = 0; i < 3; i++) download(warmup, upload(warmup, fileSize, adaptive, new long[1], new int[1]), fileSize);
+        warmup.closeConnection();
+
+        System.out.println("variant,delay_ms,loss_pct,link_mb_s,mb,upload_mb_s,download_mb_s,final_chunk_kb");
+        int port = PROXY_PORT;
+        for (int delayMs : DELAYS_MS) {
+            for (double loss : LOSSES) {
+                startProxy(port, delayMs * 1000000L, loss, linkMB * (double) (1 << 20) / 1e9, windowKB * 1024);
+                NetworkUtil networkUtil = BenchClient.login(port++, "bench-" + delayMs + "-" + (int) (loss * 1000));
+                long[] crc = new long[1];
+                int[] finalChunk = new int[1];
+
+                long t = System.nanoTime();
+                String fileID = upload(networkUtil, fileSize, adaptive, crc, finalChunk);
+                double up = fileMB / ((System.nanoTime() - t) / 1e9);
+
+                t = System.nanoTime();
+                long downloaded = download(networkUtil, fileID, fileSize);
+                double down = fileMB / ((System.nanoTime() - t) / 1e9);
+                if (downloaded != crc[0]) throw new IllegalStateException("downloaded file differs at " + delayMs + " ms, " + loss + " loss");
+
+                System.out.printf("%s,%d,%.1f,%d,%d,%.2f,%.2f,%d%n", adaptive ? "adaptive" : "fixed", delayMs, loss * 100, linkMB, fileMB,
+                        up, down, finalChunk[0] / 1024);
+                networkUtil.closeConnection();
+            }
+        }
+        System.exit(0);
+    }
+
+    // windowed upload of pseudo random bytes, the way the client does it, returns the file ID
+    private static String upload(NetworkUtil networkUtil, long fileSize, boolean adaptive, long[] crc, int[] finalChunk) throws IOException, ClassNotFoundException {
+        FileUploadInitiationResponse response = BenchClient.startUpload(networkUtil, "bench", fileSize, true, adaptive);
+
+        CongestionWindow window = response.maxChunkSize > 0 ? new CongestionWindow(response.chunkSize, response.maxChunkSize, response.windowSize) : null;
+        byte[] data = new byte[(int) fileSize]; // made up front, making it per chunk would cost more than sending it
+        new Random(fileSize).nextBytes(data);
+        CRC32 sum = new CRC32();
+        sum.update(data);
+        int size = response.chunkSize, offset = 0;
+        long sent = 0, acked = 0, remaining = fileSize;
+        while (remaining > 0 || acked < sent) {
+            while (remaining > 0 && (window == null ? sent - acked < response.windowSize : window.canSend())) {
+                if (window != null && window.chunkSize() != size) {
+                    size = window.chunkSize();
+                    networkUtil.write("chunk " + size);
+                }
+                int len = (int) Math.min(size, remaining);
+                networkUtil.write(data, offset, len);
+                if (window != null) window.onSend(len);
+                offset += len;
+                remaining -= len;
+                sent++;
+            }
+            long seq = ((ChunkAck) networkUtil.read()).seq;
+            if (window != null) window.onAck(seq - acked);
+            acked = seq;
+        }
+        BenchClient.finishUpload(networkUtil);
+        crc[0] = sum.getValue();
+        finalChunk[0] = size;
+        return response.fileID;
+    }
+
+    // object stream download, returns the crc of what arrived
+    private static long download(NetworkUtil networkUtil, String fileID, long length) throws IOException, ClassNotFoundException {
+        CRC32 sum = new CRC32();
+        BenchClient.download(networkUtil, new FileDownloadRequest(fileID), length, sum);
+        return sum.getValue();
+    }
+
+    private static void startProxy(int port, long delayNanos, double loss, double bytesPerNano, int window) throws IOException {
+        ServerSocket listener = new ServerSocket(port);
+        Thread acceptor = new Thread(() -> {
+            while (true) {
+                try {
+                    Socket client = listener.accept();
+                    Socket server = new Socket("127.0.0.1", SERVER_PORT);
+                    client.setTcpNoDelay(true);
+                    server.setTcpNoDelay(true);
+                    link(client, server, delayNanos, loss, bytesPerNano, window);
+                    link(server, client, delayNanos, loss, bytesPerNano, window);
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }, "proxy-accept-" + port);
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    // copies from -> to: a block leaves delayNanos after it arrived, not before the link has sent the blocks ahead of it,
+    // and a round trip later if one of its segments was lost; at most window bytes are held at once
+    private static void link(Socket from, Socket to, long delayNanos, double loss, double bytesPerNano, int window) {
+        LinkedBlockingQueue<Object[]> queue = new LinkedBlockingQueue<>();
+        Semaphore inFlight = new Semaphore(window);
+        long retransmit = 2 * delayNanos + 1000000; // fast retransmit, the duplicate acks take a round trip
+
+        Thread reader = new Thread(() -> {
+            byte[] buffer = new byte[Math.min(window, 1 << 16)];
+            Random random = new Random(from.getPort());
+            long linkFree = 0; // when the link has sent everything queued so far
+            try {
+                InputStream in = from.getInputStream();
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    inFlight.acquire(n);
+                    byte[] block = new byte[n];
+                    System.arraycopy(buffer, 0, block, 0, n);
+                    long now = System.nanoTime();
+                    linkFree = Math.max(linkFree, now) + (long) (n / bytesPerNano);
+                    long due = Math.max(now + delayNanos, linkFree);
+                    for (int s = 0; s < n; s += SEGMENT) {
+                        if (random.nextDouble() < loss) {
+                            due += retransmit;
+                            linkFree += retransmit; // in order delivery, the blocks behind it wait as well
+                            break;
+                        }
+                    }
+                    queue.put(new Object[]{due, block});
+                }
+            } catch (IOException | InterruptedException ignored) {
+            }
+            queue.add(new Object[]{System.nanoTime() + delayNanos, null}); // end of stream
+        });
+        Thread writer = new Thread(() -> {
+            try {
+                OutputStream out = to.getOutputStream();
+                while (true) {
+                    Object[] item = queue.take();
+                    // Thread.sleep rounds up to whole milliseconds, far more than a block takes at the link rate
+                    long wait;
+                    while ((wait = (Long) item[0] - System.nanoTime()) > 0) LockSupport.parkNanos(wait);
+                    byte[] block = (byte[]) item[1];
+                    if (block == null) break;
+                    out.write(block);
+                    out.flush();
+                    inFlight.release(block.length);
+                }
+                to.shutdownOutput();
+            } catch (IOException | InterruptedException e) {
+                try {
+                    from.close();
+                    to.close();
+                } catch (IOException ignored) {
+                }
+            }
+        });
+        reader.setDaemon(true);
+        writer.setDaemon(true);
+        reader.start();
+        writer.start();
+    }
+}
@@ -0,0 +1,127 @@
+package bench;
+
+import util.*;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.Socket;
+import java.util.zip.Checksum;
+
+// the client side every bench needs against its in-process server: waiting for it, logging in, uploading and downloading
+// these talk the protocol directly instead of going through client.Client, a bench wants to time the transfer and nothing else
+public class BenchClient {
+    public static final String HOST = "127.0.0.1";
+
+    // the server is started on a thread of its own, this returns once it accepts connections
+    public static void waitForServer(int port) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            try {
+                new Socket(HOST, port).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("server did not come up on port " + port);
+    }
+
+    // the plain login, the username as a string and the object stream protocol from then on
+    public static NetworkUtil login(int port, String username) throws IOException, ClassNotFoundException {
+        NetworkUtil networkUtil = new NetworkUtil(HOST, port);
+        networkUtil.write(username);
+        String response = (String) networkUtil.read();
+        if (!response.startsWith("Welcome")) throw new IOException(response);
+        return networkUtil;
+    }
+
+    // logs in over the binary protocol, a mux login returns the first stream of the session
+    public static NetworkUtil loginBinary(int port, String username, boolean mux) throws IOException, ClassNotFoundException {
+        NetworkUtil networkUtil = new NetworkUtil(HOST, port);
+        LoginRequest request = new LoginRequest(username, true);
+        request.mux = mux;
+        networkUtil.write(request);
+        LoginResponse response = (LoginResponse) networkUtil.read();
+        if (!response.message.startsWith("Welcome")) throw new IOException(response.message);
+        networkUtil.useBinaryProtocol();
+        if (!mux) return networkUtil;
+        if (!response.mux) throw new IOException("server declined mux");
+        MuxSession session = new MuxSession(networkUtil, Thread::new, null, 0);
+        Thread reader = new Thread(session, "mux-reader");
+        reader.setDaemon(true);
+        reader.start();
+        return session.open();
+    }
+
+    // asks to upload a public file of size bytes, under a name no other upload uses
+    public static FileUploadInitiationResponse startUpload(NetworkUtil networkUtil, String owner, long size, boolean windowed, boolean adaptive) throws IOException, ClassNotFoundException {
+        FileUploadInitiationRequest req = new FileUploadInitiationRequest(new FileInfo("bench-" + System.nanoTime() + ".bin", false, owner, size), false, null, windowed);
+        req.adaptive = adaptive;
+        networkUtil.write(req);
+        FileUploadInitiationResponse response = (FileUploadInitiationResponse) networkUtil.read();
+        if (!response.isOK) throw new IOException("upload refused");
+        return response;
+    }
+
+    // once every chunk is acked
+    public static void finishUpload(NetworkUtil networkUtil) throws IOException, ClassNotFoundException {
+        networkUtil.write("done");
+        String result = (String) networkUtil.read();
+        if (!result.contains("successful")) throw new IOException(result);
+    }
+
+    // uploads content in the server's chunk size and returns the file ID
+    // windowed keeps the server's window of chunks in flight, otherwise every chunk waits for its "ack"
+    public static String upload(NetworkUtil networkUtil, String owner, byte[] content, boolean windowed) throws IOException, ClassNotFoundException {
+        FileUploadInitiationResponse response = startUpload(networkUtil, owner, content.length, windowed, false);
+        int chunk = response.chunkSize;
+        if (!windowed) {
+            for (int off = 0; off < content.length; off += chunk) {
+                networkUtil.write(content, off, Math.min(chunk, content.length - off));
+                if (!"ack".equals(networkUtil.read())) throw new IOException("chunk not acknowledged");
+            }
+        } else {
+            long sent = 0, acked = 0;
+            int off = 0;
+            while (off < content.length || acked < sent) {
+                while (off < content.length && sent - acked < response.windowSize) {
+                    int len = Math.min(chunk, content.length - off);
+                    networkUtil.write(content, off, len);
+                    off += len;
+                    sent++;
+                }
+                acked = ((ChunkAck) networkUtil.read()).seq;
+            }
+        }
+        finishUpload(networkUtil);
+        return response.fileID;
+    }
+
+    // a download with the chunks in the stream, sum (may be null) gets every byte that arrived
+    public static void download(NetworkUtil networkUtil, FileDownloadRequest request, long length, Checksum sum) throws IOException, ClassNotFoundException {
+        networkUtil.write(request);
+        FileDownloadRequestResponse response = (FileDownloadRequestResponse) networkUtil.read();
+        if (!response.isAccepted || response.length != length) throw new IOException("download refused");
+        byte[] buffer = new byte[256 * 1024];
+        long received = 0;
+        while (received < length) {
+            int n = networkUtil.read(buffer, 0, (int) Math.min(buffer.length, length - received));
+            if (n == -1) throw new EOFException("download ended early");
+            if (sum != null) sum.update(buffer, 0, n);
+            received += n;
+        }
+        if (!"done".equals(networkUtil.read())) throw new IOException("download did not end with done");
+    }
+
+    // a raw download on this connection into target
+    public static void download(NetworkUtil networkUtil, String fileID, long length, File target) throws IOException, ClassNotFoundException {
+        networkUtil.write(new FileDownloadRequest(fileID, true, 0, 0, 1));
+        FileDownloadRequestResponse response = (FileDownloadRequestResponse) networkUtil.read();
+        if (!response.isAccepted || response.length != length) throw new IOException("download refused");
+        try (RandomAccessFile out = new RandomAccessFile(target, "rw")) {
+            networkUtil.receiveFile(out.getChannel(), 0, length);
+        }
+        if (!"done".equals(networkUtil.read())) throw new IOException("download did not end with done");
+    }
+}
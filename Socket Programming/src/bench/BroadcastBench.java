@@ -0,0 +1,95 @@
+package bench;
+
+import server.Catalog;
+import util.UserMessage;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// publish latency and memory held by pending broadcasts, for the shared broadcast log against a copy per mailbox
+// "log" is the Catalog, "fanout" is what it did before, every broadcast appended to every user's queue
+// after everyone read their messages the log has to be empty again
+// usage: java bench.BroadcastBench [broadcasts] [largest user count]
+public class BroadcastBench {
+    public static void main(String[] args) throws Exception {
+        int broadcasts = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        int maxUsers = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+
+        // warm up publishing and reading, so the first round does not time the interpreter
+        Catalog warm = new Catalog();
+        for (int u = 0; u < 100; u++) warm.registerUser("warm" + u);
+        for (int b = 0; b < 100000; b++) {
+            warm.broadcast("warm" + (b % 100), message(b));
+            if (b % 1000 == 999) {
+                for (int u = 0; u < 100; u++) warm.takeMessages("warm" + u);
+            }
+        }
+
+        System.out.println("design,users,broadcasts,publish_us,retained_bytes,log_entries_after_read");
+        for (int users = 10000; users <= maxUsers; users *= 10) {
+            String[] names = new String[users];
+            for (int u = 0; u < users; u++) names[u] = "user" + u;
+            sharedLog(names, broadcasts);
+            fanout(names, broadcasts);
+        }
+    }
+
+    // one method per design, so nothing from the previous round is still reachable when the heap is measured
+    private static void sharedLog(String[] names, int broadcasts) throws InterruptedException {
+        Catalog catalog = new Catalog();
+        for (String name : names) catalog.registerUser(name);
+        long before = usedHeap();
+        long t = System.nanoTime();
+        for (int b = 0; b < broadcasts; b++) catalog.broadcast(names[b % names.length], message(b));
+        long publishNanos = System.nanoTime() - t;
+        long retained = usedHeap() - before;
+        for (String name : names) {
+            int n = catalog.takeMessages(name).size();
+            if (n != broadcasts - 1 && n != broadcasts) {
+                System.out.println("FAIL " + name + " read " + n + " broadcasts");
+                System.exit(1);
+            }
+        }
+        int left = catalog.getBroadcastLog().size();
+        System.out.printf("log,%d,%d,%.2f,%d,%d%n", names.length, broadcasts, publishNanos / 1000.0 / broadcasts, retained, left);
+        if (left != 0) {
+            System.out.println("FAIL the log kept " + left + " entries that everyone has read");
+            System.exit(1);
+        }
+    }
+
+    private static void fanout(String[] names, int broadcasts) throws InterruptedException {
+        ConcurrentHashMap<String, Queue<UserMessage>> mailboxes = new ConcurrentHashMap<>();
+        for (String name : names) mailboxes.put(name, new ConcurrentLinkedQueue<>());
+        long before = usedHeap();
+        long t = System.nanoTime();
+        for (int b = 0; b < broadcasts; b++) {
+            UserMessage m = message(b);
+            String except = names[b % names.length];
+            for (String name : names) {
+                if (!name.equals(except)) mailboxes.get(name).add(m);
+            }
+        }
+        long publishNanos = System.nanoTime() - t;
+        long retained = usedHeap() - before;
+        if (mailboxes.get(names[0]).size() != broadcasts - 1) System.out.println("FAIL fanout lost a broadcast"); // also keeps the queues alive until measured
+        System.out.printf("fanout,%d,%d,%.2f,%d,%n", names.length, broadcasts, publishNanos / 1000.0 / broadcasts, retained);
+    }
+
+    private static UserMessage message(int b) {
+        return new UserMessage("bench", "everyone", true, "looking for dataset " + b);
+    }
+
+    // the smallest used heap over a few full collections, the JVM's own leftovers take a while to go away
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 10; i++) {
+            System.gc();
+            Thread.sleep(200);
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+}
@@ -0,0 +1,122 @@
+package bench;
+
+import server.Catalog;
+import util.FileInfo;
+import util.FileRequest;
+import util.UserMessage;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+// hammers one Catalog from many threads and then checks that nothing was lost or duplicated
+// usage: java bench.CatalogStress [threads] [operations per thread]
+// exits with status 1 on the first inconsistency
+public class CatalogStress {
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int ops = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+        int userCount = 64; // few users, so the threads collide on the same owners and mailboxes
+
+        Catalog catalog = new Catalog();
+        AtomicLong sent = new AtomicLong();
+        Set<String> received = ConcurrentHashMap.newKeySet();
+        AtomicLong duplicates = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+
+        Thread[] workers = new Thread[threads];
+        long t = System.nanoTime();
+        for (int w = 0; w < threads; w++) {
+            final int id = w;
+            workers[w] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < ops; i++) {
+                    String user = "user" + ((id + i) % userCount);
+                    catalog.registerUser(user); // every thread tries to register every user
+
+                    FileInfo file = new FileInfo("file-" + id + "-" + i, i % 3 == 0, user, i);
+                    file.fileID = id + "-" + i;
+                    catalog.addFile(file);
+
+                    if (i % 10 == 0) {
+                        FileRequest request = new FileRequest(user, "request " + id + "-" + i);
+                        request.requestID = id + "-" + i;
+                        catalog.addFileRequest(request);
+                    }
+
+                    String msg = id + "-" + i;
+                    catalog.addMessage(user, new UserMessage("stress", user, false, msg));
+                    sent.incrementAndGet();
+
+                    // readers run alongside the writers
+                    if (i % 7 == 0) {
+                        for (UserMessage m : catalog.takeMessages(user)) {
+                            if (!received.add(m.msg)) duplicates.incrementAndGet();
+                        }
+                        catalog.getFile(id + "-" + (i / 2));
+                        for (FileInfo f : catalog.getFilesOf(user)) if (f.fileID == null) throw new IllegalStateException();
+                    }
+                }
+            });
+            workers[w].start();
+        }
+        start.countDown();
+        for (Thread worker : workers) worker.join();
+        long elapsed = System.nanoTime() - t;
+
+        // drain what is left in the mailboxes
+        for (String user : catalog.getUsers()) {
+            for (UserMessage m : catalog.takeMessages(user)) {
+                if (!received.add(m.msg)) duplicates.incrementAndGet();
+            }
+        }
+
+        long expectedFiles = (long) threads * ops;
+        long expectedShared = 0, expectedRequests = 0;
+        for (int i = 0; i < ops; i++) {
+            if (i % 3 != 0) expectedShared++;
+            if (i % 10 == 0) expectedRequests++;
+        }
+        expectedShared *= threads;
+        expectedRequests *= threads;
+
+        long ownerTotal = 0;
+        Set<String> ownerIDs = new HashSet<>();
+        for (String user : catalog.getUsers()) {
+            for (FileInfo f : catalog.getFilesOf(user)) {
+                ownerTotal++;
+                ownerIDs.add(f.fileID);
+                if (catalog.getFile(f.fileID) != f) fail("owner index and id index disagree on " + f.fileID);
+            }
+        }
+        List<String> users = catalog.getUsers();
+
+        check(users.size() == userCount && new HashSet<>(users).size() == userCount, "users registered once each: " + users.size());
+        check(catalog.fileCount() == expectedFiles, "files by id " + catalog.fileCount() + " / " + expectedFiles);
+        check(ownerTotal == expectedFiles && ownerIDs.size() == expectedFiles, "files by owner " + ownerTotal + " / " + expectedFiles);
+        check(catalog.getSharedFiles().size() == expectedShared, "shared files " + catalog.getSharedFiles().size() + " / " + expectedShared);
+        check(catalog.requestCount() == expectedRequests && catalog.getFileRequests().size() == expectedRequests, "requests " + catalog.requestCount() + " / " + expectedRequests);
+        check(received.size() == sent.get(), "messages delivered " + received.size() + " / " + sent.get());
+        check(duplicates.get() == 0, "duplicate messages " + duplicates.get());
+
+        System.out.printf("PASS threads=%d ops_per_thread=%d elapsed_ms=%.0f ops_per_s=%.0f%n",
+                threads, ops, elapsed / 1e6, expectedFiles / (elapsed / 1e9));
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok) fail(what);
+        System.out.println("ok " + what);
+    }
+
+    private static void fail(String what) {
+        System.out.println("FAIL " + what);
+        System.exit(1);
+    }
+}
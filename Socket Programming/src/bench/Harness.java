@@ -0,0 +1,151 @@
+package bench;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// runs benchmarks the way JMH does in throughput mode: warmup iterations, then timed measurement iterations of a fixed length,
+// the score is the mean over the measurement iterations with a 99.9% confidence interval from the t distribution
+// results go to a JSON file in JMH's result format, so the tools that read JMH output (jmh-visualizer, CI trend plugins)
+// read these too, and a CSV line per result to stdout
+// one fork, one thread: every benchmark runs in this jvm after the ones before it, see Suite for the order
+public class Harness {
+    // one operation, the score counts how many complete per second
+    public interface Op {
+        void run() throws Exception;
+    }
+
+    public static class Result {
+        public String benchmark;
+        public Map<String, String> params;
+        public String unit;
+        public double score, error;
+        public double[] raw; // the score of every measurement iteration
+    }
+
+    public int warmupIterations = 3, iterations = 5;
+    public long iterationMillis = 1000;
+    public List<Result> results = new ArrayList<>();
+    private PrintStream out;
+
+    public Harness(PrintStream out) {
+        this.out = out;
+        out.println("benchmark,params,mode,cnt,score,error,unit");
+    }
+
+    // unitsPerOp scales the ops per second into unit, 1 and "ops/s" for plain throughput, the file size and "MB/s" for a transfer;
+    // afterIteration (may be null) runs outside the timed part, to drop what the iteration left behind
+    public Result run(String benchmark, Map<String, String> params, double unitsPerOp, String unit, Op op, Runnable afterIteration) throws Exception {
+        for (int i = 0; i < warmupIterations; i++) {
+            iteration(op, unitsPerOp);
+            if (afterIteration != null) afterIteration.run();
+        }
+        double[] raw = new double[iterations];
+        for (int i = 0; i < iterations; i++) {
+            raw[i] = iteration(op, unitsPerOp);
+            if (afterIteration != null) afterIteration.run();
+        }
+
+        Result r = new Result();
+        r.benchmark = benchmark;
+        r.params = new LinkedHashMap<>(params);
+        r.unit = unit;
+        r.raw = raw;
+        double sum = 0;
+        for (double v : raw) sum += v;
+        r.score = sum / raw.length;
+        double squares = 0;
+        for (double v : raw) squares += (v - r.score) * (v - r.score);
+        r.error = raw.length < 2 ? Double.NaN : t999(raw.length - 1) * Math.sqrt(squares / (raw.length - 1)) / Math.sqrt(raw.length);
+        results.add(r);
+        out.printf("%s,%s,thrpt,%d,%.3f,%.3f,%s%n", benchmark, paramString(r.params), raw.length, r.score, r.error, unit);
+        return r;
+    }
+
+    // runs op for iterationMillis, at least once, and returns units per second
+    private double iteration(Op op, double unitsPerOp) throws Exception {
+        long ops = 0;
+        long start = System.nanoTime();
+        long end = start + iterationMillis * 1000000;
+        long now;
+        do {
+            op.run();
+            ops++;
+            now = System.nanoTime();
+        } while (now < end);
+        return ops * unitsPerOp / ((now - start) / 1e9);
+    }
+
+    // two sided 99.9% quantile of the t distribution, what JMH reports as the score error
+    private static double t999(int df) {
+        double[] table = {636.62, 31.60, 12.92, 8.61, 6.87, 5.96, 5.41, 5.04, 4.78, 4.59};
+        if (df <= table.length) return table[df - 1];
+        if (df <= 15) return 4.07;
+        if (df <= 20) return 3.85;
+        if (df <= 30) return 3.65;
+        return 3.29;
+    }
+
+    private static String paramString(Map<String, String> params) {
+        StringBuilder s = new StringBuilder();
+        for (Map.Entry<String, String> p : params.entrySet()) {
+            if (s.length() > 0) s.append(';');
+            s.append(p.getKey()).append('=').append(p.getValue());
+        }
+        return s.toString();
+    }
+
+    // the results as a JMH result file
+    public void writeJson(Path path) throws IOException {
+        StringBuilder s = new StringBuilder("[\n");
+        for (int i = 0; i < results.size(); i++) {
+            Result r = results.get(i);
+            s.append("    {\n");
+            s.append("        \"jmhVersion\" : \"compatible\",\n");
+            s.append("        \"benchmark\" : ").append(quote("bench." + r.benchmark)).append(",\n");
+            s.append("        \"mode\" : \"thrpt\",\n");
+            s.append("        \"threads\" : 1,\n");
+            s.append("        \"forks\" : 1,\n");
+            s.append("        \"jvm\" : ").append(quote(System.getProperty("java.home"))).append(",\n");
+            s.append("        \"jdkVersion\" : ").append(quote(System.getProperty("java.version"))).append(",\n");
+            s.append("        \"vmName\" : ").append(quote(System.getProperty("java.vm.name"))).append(",\n");
+            s.append("        \"warmupIterations\" : ").append(warmupIterations).append(",\n");
+            s.append("        \"warmupTime\" : \"").append(iterationMillis).append(" ms\",\n");
+            s.append("        \"measurementIterations\" : ").append(iterations).append(",\n");
+            s.append("        \"measurementTime\" : \"").append(iterationMillis).append(" ms\",\n");
+            s.append("        \"params\" : {");
+            int p = 0;
+            for (Map.Entry<String, String> e : r.params.entrySet()) {
+                s.append(p++ == 0 ? "\n" : ",\n").append("            ").append(quote(e.getKey())).append(" : ").append(quote(e.getValue()));
+            }
+            s.append(p == 0 ? "},\n" : "\n        },\n");
+            s.append("        \"primaryMetric\" : {\n");
+            s.append("            \"score\" : ").append(number(r.score)).append(",\n");
+            s.append("            \"scoreError\" : ").append(number(r.error)).append(",\n");
+            s.append("            \"scoreConfidence\" : [").append(number(r.score - r.error)).append(", ").append(number(r.score + r.error)).append("],\n");
+            s.append("            \"scoreUnit\" : ").append(quote(r.unit)).append(",\n");
+            s.append("            \"rawData\" : [[");
+            for (int j = 0; j < r.raw.length; j++) s.append(j == 0 ? "" : ", ").append(number(r.raw[j]));
+            s.append("]]\n");
+            s.append("        },\n");
+            s.append("        \"secondaryMetrics\" : {}\n");
+            s.append(i == results.size() - 1 ? "    }\n" : "    },\n");
+        }
+        s.append("]\n");
+        Files.write(path, s.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String number(double v) {
+        return Double.isNaN(v) ? "\"NaN\"" : String.valueOf(v);
+    }
+
+    private static String quote(String v) {
+        return "\"" + v.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+}
@@ -0,0 +1,300 @@
+package bench;
+
+import client.ClientSession;
+import server.Histogram;
+import util.ListRequest;
+import util.Rates;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// replays a mixed workload from many simulated users against a running server, through ClientSession
+// every user is a session of its own, logged in for the whole run; a driver thread takes care of a slice of the users and
+// runs one operation at a time for whichever of its users is due next, a user is due again think ms after its last operation
+// an operation is drawn by weight from the mix, an upload's size by weight from the sizes; uploads are public and what
+// they upload is what downloads fetch, a few files of every size are uploaded before the clock starts
+// the report has a line per operation: count, errors, throughput and latency percentiles, and MB/s for the transfers
+// arguments are name=value, any left out keeps its default:
+//   host=127.0.0.1 port=33333 users=1000 threads=64 seconds=60 warmup=5 think=100 prefix=load
+//   mix=list:30,messages:20,search:15,download:15,upload:10,request:5,shared:5
+//   sizes=4k:60,256k:30,4m:9,64m:1
+// example: java bench.LoadGen users=5000 threads=200 think=500 mix=list:50,download:50 sizes=1m:1
+public class LoadGen {
+    private static final String[] OPS = {"list", "messages", "search", "download", "upload", "request", "shared"};
+    private static final String[] WORDS = {"lecture", "notes", "dataset", "thesis", "slides", "report", "final", "draft", "scan", "backup"};
+
+    private static String host, prefix;
+    private static int port;
+    private static double[] mixWeights;
+    private static long[] sizes;
+    private static double[] sizeWeights;
+    private static byte[] content; // what every upload sends, cycled through for files larger than it
+    private static final List<String> fileIDs = new CopyOnWriteArrayList<>(); // uploaded so far, download picks from these
+    private static volatile long measureFrom; // nanoTime, operations that start earlier are warmup and not counted
+    private static volatile boolean stop;
+
+    private static final Histogram[] latency = new Histogram[OPS.length];
+    private static final LongAdder[] errors = new LongAdder[OPS.length];
+    private static final LongAdder[] bytes = new LongAdder[OPS.length];
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opts = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 0) throw new IllegalArgumentException("expected name=value, got " + arg);
+            opts.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        host = opts.getOrDefault("host", "127.0.0.1");
+        port = Integer.parseInt(opts.getOrDefault("port", "33333"));
+        prefix = opts.getOrDefault("prefix", "load");
+        int users = Integer.parseInt(opts.getOrDefault("users", "1000"));
+        int threads = Math.min(users, Integer.parseInt(opts.getOrDefault("threads", "64")));
+        int seconds = Integer.parseInt(opts.getOrDefault("seconds", "60"));
+        int warmup = Integer.parseInt(opts.getOrDefault("warmup", "5"));
+        long think = Long.parseLong(opts.getOrDefault("think", "100"));
+
+        mixWeights = new double[OPS.length];
+        for (Map.Entry<String, Double> e : weights(opts.getOrDefault("mix", "list:30,messages:20,search:15,download:15,upload:10,request:5,shared:5")).entrySet()) {
+            int op = Arrays.asList(OPS).indexOf(e.getKey());
+            if (op < 0) throw new IllegalArgumentException("unknown operation " + e.getKey() + ", known: " + String.join(" ", OPS));
+            mixWeights[op] = e.getValue();
+        }
+        Map<String, Double> sizeMix = weights(opts.getOrDefault("sizes", "4k:60,256k:30,4m:9,64m:1"));
+        sizes = new long[sizeMix.size()];
+        sizeWeights = new double[sizeMix.size()];
+        int k = 0;
+        for (Map.Entry<String, Double> e : sizeMix.entrySet()) {
+            sizes[k] = Rates.parse(e.getKey()); // same units as a rate, 4k, 256k, 4m, 1g
+            sizeWeights[k++] = e.getValue();
+        }
+        content = new byte[1 << 20];
+        new Random(1).nextBytes(content);
+        for (int i = 0; i < OPS.length; i++) {
+            latency[i] = new Histogram();
+            errors[i] = new LongAdder();
+            bytes[i] = new LongAdder();
+        }
+
+        // log everyone in, the drivers in parallel, each for its own slice
+        ClientSession[] sessions = new ClientSession[users];
+        long t = System.nanoTime();
+        AtomicLong failed = new AtomicLong();
+        Thread[] drivers = new Thread[threads];
+        for (int d = 0; d < threads; d++) {
+            int first = d;
+            drivers[d] = new Thread(() -> {
+                for (int u = first; u < users; u += threads) {
+                    try {
+                        sessions[u] = new ClientSession(host, port, prefix + u);
+                    } catch (IOException e) {
+                        if (failed.incrementAndGet() == 1) System.out.println("# login of " + prefix + u + " failed: " + e.getMessage());
+                    }
+                }
+            });
+            drivers[d].start();
+        }
+        for (Thread driver : drivers) driver.join();
+        System.out.printf("# %d of %d users logged in in %d ms%n", users - failed.get(), users, (System.nanoTime() - t) / 1000000);
+        if (sessions[0] == null) throw new IOException("the first user could not log in");
+
+        // something to download from the start
+        Random seedRandom = new Random(2);
+        for (long size : sizes) {
+            for (int i = 0; i < 3; i++) fileIDs.add(upload(sessions[0], size, seedRandom));
+        }
+
+        measureFrom = System.nanoTime() + warmup * 1000000000L;
+        for (int d = 0; d < threads; d++) {
+            int first = d;
+            drivers[d] = new Thread(() -> drive(sessions, first, threads, think), "driver-" + d);
+            drivers[d].start();
+        }
+        Thread.sleep((warmup + seconds) * 1000L);
+        stop = true;
+        for (Thread driver : drivers) driver.join();
+        double elapsed = (System.nanoTime() - measureFrom) / 1e9;
+
+        System.out.println("op,count,errors,ops_per_s,p50_ms,p99_ms,p999_ms,max_ms,mb_per_s");
+        long total = 0, totalErrors = 0;
+        for (int i = 0; i < OPS.length; i++) {
+            Histogram h = latency[i];
+            total += h.count();
+            totalErrors += errors[i].sum();
+            if (h.count() == 0 && errors[i].sum() == 0) continue;
+            long[] p = h.percentiles(50, 99, 99.9);
+            System.out.printf("%s,%d,%d,%.1f,%.2f,%.2f,%.2f,%.2f,%s%n", OPS[i], h.count(), errors[i].sum(), h.count() / elapsed,
+                    p[0] / 1e6, p[1] / 1e6, p[2] / 1e6, h.max() / 1e6, bytes[i].sum() > 0 ? String.format("%.2f", bytes[i].sum() / elapsed / (1 << 20)) : "");
+        }
+        System.out.printf("all,%d,%d,%.1f,,,,,%n", total, totalErrors, total / elapsed);
+
+        for (ClientSession session : sessions) {
+            if (session == null) continue;
+            try {
+                session.logout();
+            } catch (IOException ignored) {
+            }
+        }
+        System.exit(0);
+    }
+
+    // runs the users first, first + step, ... until the end, each one again think ms after its last operation
+    private static void drive(ClientSession[] sessions, int first, int step, long think) {
+        Random random = new Random(first);
+        ArrayDeque<Integer> due = new ArrayDeque<>(); // the same think time for everyone keeps this in due order
+        long[] next = new long[sessions.length];
+        for (int u = first; u < sessions.length; u += step) {
+            if (sessions[u] != null) due.add(u);
+        }
+        while (!stop && !due.isEmpty()) {
+            int u = due.poll();
+            long wait = next[u] - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            int op = pick(mixWeights, random);
+            long started = System.nanoTime();
+            try {
+                long moved = run(sessions[u], op, random);
+                long ended = System.nanoTime();
+                if (started >= measureFrom) {
+                    latency[op].record(ended - started);
+                    bytes[op].add(moved);
+                }
+            } catch (IOException e) {
+                if (started >= measureFrom) errors[op].increment();
+                sessions[u] = relogin(sessions[u]);
+                if (sessions[u] == null) continue; // this user is out for the rest of the run
+            }
+            next[u] = System.nanoTime() + think * 1000000;
+            due.add(u);
+        }
+    }
+
+    // one operation, returns the file bytes it moved
+    private static long run(ClientSession session, int op, Random random) throws IOException {
+        switch (OPS[op]) {
+            case "list":
+                session.list(random.nextBoolean() ? ListRequest.MY_FILES : ListRequest.ACTIVE_USERS);
+                return 0;
+            case "shared":
+                session.list(ListRequest.SHARED_FILES);
+                return 0;
+            case "messages":
+                session.messages();
+                return 0;
+            case "search":
+                session.search(WORDS[random.nextInt(WORDS.length)]);
+                return 0;
+            case "request":
+                session.request("looking for the " + WORDS[random.nextInt(WORDS.length)] + " of week " + random.nextInt(14));
+                return 0;
+            case "upload":
+                long size = sizes[pick(sizeWeights, random)];
+                fileIDs.add(upload(session, size, random));
+                return size;
+            default: // download
+                CountingStream out = new CountingStream();
+                session.download(fileIDs.get(random.nextInt(fileIDs.size())), out);
+                return out.count;
+        }
+    }
+
+    private static String upload(ClientSession session, long size, Random random) throws IOException {
+        String name = WORDS[random.nextInt(WORDS.length)] + "_" + WORDS[random.nextInt(WORDS.length)] + "_" + random.nextInt(1000000) + ".bin";
+        return session.upload(name, size, new CyclingStream(size), true, null);
+    }
+
+    // a failed operation may leave the connection out of step, the user logs in again; null if that fails too
+    private static ClientSession relogin(ClientSession session) {
+        try {
+            session.close();
+        } catch (IOException ignored) {
+        }
+        for (int attempt = 0; attempt < 20; attempt++) { // until the server noticed the old connection is gone
+            try {
+                return new ClientSession(host, port, session.username);
+            } catch (IOException e) {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException ie) {
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static int pick(double[] weights, Random random) {
+        double sum = 0;
+        for (double w : weights) sum += w;
+        double x = random.nextDouble() * sum;
+        for (int i = 0; i < weights.length; i++) {
+            x -= weights[i];
+            if (x < 0) return i;
+        }
+        return weights.length - 1;
+    }
+
+    // "a:3,b:1" in the order given
+    private static Map<String, Double> weights(String spec) {
+        Map<String, Double> weights = new LinkedHashMap<>();
+        for (String part : spec.split(",")) {
+            String[] kv = part.trim().split(":");
+            weights.put(kv[0], kv.length > 1 ? Double.parseDouble(kv[1]) : 1);
+        }
+        return weights;
+    }
+
+    // size bytes of the shared content, from the start again whenever it runs out
+    private static class CyclingStream extends InputStream {
+        private long left;
+        private int at;
+
+        CyclingStream(long size) {
+            left = size;
+        }
+
+        @Override
+        public int read() {
+            if (left == 0) return -1;
+            left--;
+            int b = content[at] & 0xff;
+            at = (at + 1) % content.length;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (left == 0) return -1;
+            int n = (int) Math.min(Math.min(len, left), content.length - at);
+            System.arraycopy(content, at, b, off, n);
+            at = (at + n) % content.length;
+            left -= n;
+            return n;
+        }
+    }
+
+    // a download nobody keeps, only counted
+    private static class CountingStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package bench;
+
+import server.Log;
+import server.Server;
+import util.*;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// throughput of small SHOW_* requests with the server logging every one of them, before and after the async log
+// sync_debug: every message printed on the session thread, as the System.out.println calls did, all of them at debug level
+// async_debug: the same messages through the ring and the writer thread
+// async_info: the per request chatter filtered out by level, what a production server runs with
+// the server's output goes to bench-server.log, like a console redirected to a file, the csv to stdout
+// usage: java bench.LogBench [clients] [seconds per phase]
+// run from an empty directory, the in-process server keeps its storage under ./src/storage
+public class LogBench {
+    private static final int PORT = 33333;
+    private static final RequestType[] TYPES = {RequestType.SHOW_REGISTERED_USERLIST, RequestType.SHOW_ACTIVE_USERLIST, RequestType.SHOW_MY_FILES, RequestType.SHOW_MESSAGES};
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        PrintStream csv = System.out;
+        System.setOut(new PrintStream(new FileOutputStream("bench-server.log"), true));
+        new java.io.File("src/storage").mkdirs();
+        Thread serverThread = new Thread(() -> new Server(1000000000, 64 * 1024, 64 * 1024, "thread", 1, 10 * 60 * 1000));
+        serverThread.setDaemon(true);
+        serverThread.start();
+        BenchClient.waitForServer(PORT);
+
+        NetworkUtil[] connections = new NetworkUtil[clients];
+        for (int i = 0; i < clients; i++) connections[i] = BenchClient.loginBinary(PORT, "log-bench-" + i, false);
+
+        csv.println("phase,clients,seconds,requests,req_per_s,p50_us,p99_us,max_us,dropped");
+        run(csv, "warmup", false, Log.Level.INFO, connections, 1, false);
+        run(csv, "sync_debug", false, Log.Level.DEBUG, connections, seconds, true);
+        run(csv, "async_debug", true, Log.Level.DEBUG, connections, seconds, true);
+        run(csv, "async_info", true, Log.Level.INFO, connections, seconds, true);
+        System.exit(0);
+    }
+
+    private static void run(PrintStream csv, String phase, boolean async, Log.Level level, NetworkUtil[] connections, int seconds, boolean print) throws InterruptedException {
+        Log.async = async;
+        Log.level = level;
+        long droppedBefore = Log.dropped();
+        AtomicBoolean stop = new AtomicBoolean();
+        long[][] latencies = new long[connections.length][];
+        int[] counts = new int[connections.length];
+        Thread[] threads = new Thread[connections.length];
+        for (int i = 0; i < connections.length; i++) {
+            int c = i;
+            threads[i] = new Thread(() -> {
+                long[] mine = new long[1 << 16];
+                int n = 0;
+                try {
+                    while (!stop.get()) {
+                        long t = System.nanoTime();
+                        connections[c].write(new Request(TYPES[n % TYPES.length]));
+                        connections[c].read();
+                        if (n == mine.length) mine = Arrays.copyOf(mine, n * 2);
+                        mine[n++] = System.nanoTime() - t;
+                    }
+                } catch (IOException | ClassNotFoundException e) {
+                    csv.println("# client " + c + " failed: " + e);
+                }
+                latencies[c] = mine;
+                counts[c] = n;
+            });
+        }
+        long start = System.nanoTime();
+        for (Thread t : threads) t.start();
+        Thread.sleep(seconds * 1000L);
+        stop.set(true);
+        for (Thread t : threads) t.join();
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        Log.flush(); // the backlog of this phase is not the next phase's cost
+
+        int total = 0;
+        for (int n : counts) total += n;
+        long[] all = new long[total];
+        int at = 0;
+        for (int i = 0; i < connections.length; i++) {
+            System.arraycopy(latencies[i], 0, all, at, counts[i]);
+            at += counts[i];
+        }
+        Arrays.sort(all);
+        if (!print || total == 0) return;
+        csv.printf("%s,%d,%d,%d,%.0f,%.1f,%.1f,%.1f,%d%n", phase, connections.length, seconds, total, total / elapsed,
+                all[total / 2] / 1e3, all[(int) (total * 0.99)] / 1e3, all[total - 1] / 1e3, Log.dropped() - droppedBefore);
+    }
+}
@@ -0,0 +1,113 @@
+package bench;
+
+import server.Server;
+import server.TransferScheduler;
+import util.*;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Random;
+
+// how long a listing takes while a big download runs on the same connection
+// sequential: one plain connection, a listing due during the download can only be asked once the download is over,
+// its time counts from when it was due; mux: the download and the listings on two streams of one MuxSession
+// idle: listings on a mux connection with nothing else going on, for reference
+// the download is held to the global rate by the transfer scheduler, so it lasts long enough to ask many listings during it
+// usage: java bench.MuxBench [file MB] [rate MB/s] [listing every ms]
+// run from an empty directory, the in-process server keeps its storage under ./src/storage
+public class MuxBench {
+    private static final int PORT = 33333;
+
+    public static void main(String[] args) throws Exception {
+        int fileMB = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int rateMB = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+        int everyMs = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+        long fileSize = fileMB * (1L << 20);
+
+        new File("src/storage").mkdirs();
+        TransferScheduler transfers = new TransferScheduler(0, 0);
+        Thread serverThread = new Thread(() -> new Server(1000000000, 64 * 1024, 256 * 1024, "thread", 1, 10 * 60 * 1000, 256L << 20, transfers));
+        serverThread.setDaemon(true);
+        serverThread.start();
+        BenchClient.waitForServer(PORT);
+
+        NetworkUtil plain = BenchClient.loginBinary(PORT, "bench-plain", false);
+        byte[] content = new byte[(int) fileSize];
+        new Random(fileSize).nextBytes(content);
+        String fileID = BenchClient.upload(plain, "bench-plain", content, true);
+        transfers.setGlobalRate(rateMB * (1L << 20));
+
+        System.out.println("phase,file_mb,rate_mb_s,listings,p50_ms,p99_ms,max_ms,download_mb_s");
+
+        // sequential: the due times pass while the download holds the connection
+        long t0 = System.nanoTime();
+        download(plain, fileID, fileSize);
+        double downloadSeconds = (System.nanoTime() - t0) / 1e9;
+        int count = (int) (downloadSeconds * 1000 / everyMs);
+        double[] millis = new double[count];
+        for (int i = 0; i < count; i++) {
+            list(plain);
+            millis[i] = (System.nanoTime() - (t0 + i * everyMs * 1000000L)) / 1e6;
+        }
+        print("sequential", fileMB, rateMB, millis, fileMB / downloadSeconds);
+
+        NetworkUtil muxed = BenchClient.loginBinary(PORT, "bench-mux", true);
+        MuxSession session = ((MuxStream) muxed).session();
+
+        // mux: a thread downloads on a stream of its own, this one lists on another meanwhile
+        double[] mbps = new double[1];
+        Thread downloader = new Thread(() -> {
+            try {
+                MuxStream stream = session.open();
+                long t = System.nanoTime();
+                download(stream, fileID, fileSize);
+                mbps[0] = fileMB / ((System.nanoTime() - t) / 1e9);
+                stream.closeConnection();
+            } catch (IOException | ClassNotFoundException e) {
+                System.out.println("# download failed: " + e);
+            }
+        });
+        downloader.start();
+        Thread.sleep(100); // until the download is under way
+        millis = new double[count];
+        int done = 0;
+        while (downloader.isAlive() && done < count) {
+            long t = System.nanoTime();
+            list(muxed);
+            millis[done++] = (System.nanoTime() - t) / 1e6;
+            Thread.sleep(everyMs);
+        }
+        downloader.join();
+        print("mux", fileMB, rateMB, Arrays.copyOf(millis, done), mbps[0]);
+
+        millis = new double[count];
+        for (int i = 0; i < count; i++) {
+            long t = System.nanoTime();
+            list(muxed);
+            millis[i] = (System.nanoTime() - t) / 1e6;
+            Thread.sleep(everyMs);
+        }
+        print("idle", fileMB, rateMB, millis, 0);
+        System.exit(0);
+    }
+
+    private static void print(String phase, int fileMB, int rateMB, double[] millis, double downloadRate) {
+        Arrays.sort(millis);
+        int n = millis.length;
+        if (n == 0) {
+            System.out.printf("%s,%d,%d,0,,,,%.2f%n", phase, fileMB, rateMB, downloadRate);
+            return;
+        }
+        System.out.printf("%s,%d,%d,%d,%.2f,%.2f,%.2f,%.2f%n", phase, fileMB, rateMB, n, millis[n / 2], millis[n * 99 / 100], millis[n - 1], downloadRate);
+    }
+
+    private static void list(NetworkUtil networkUtil) throws IOException, ClassNotFoundException {
+        networkUtil.write(new ListRequest(ListRequest.REGISTERED_USERS, 100, null, null));
+        if (!(networkUtil.read() instanceof ListPage)) throw new IOException("listing refused");
+    }
+
+    // chunks in the stream, read the same way on a plain connection and on a mux stream
+    private static void download(NetworkUtil networkUtil, String fileID, long length) throws IOException, ClassNotFoundException {
+        BenchClient.download(networkUtil, new FileDownloadRequest(fileID, false, 0, 0, 1), length, null);
+    }
+}
@@ -0,0 +1,149 @@
+package bench;
+
+import client.ParallelDownload;
+import server.Server;
+import util.*;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.zip.CRC32;
+
+// download throughput with K = 1..8 data connections through a proxy that adds a fixed one-way delay
+// the proxy lets at most window bytes be in flight per direction of a connection, like a tcp window on a long link,
+// so one stream is capped at about window / delay and more streams are the only way past it
+// usage: java bench.ParallelDownloadBench [file MB] [delay ms] [window KB] [thread|virtual|nio]
+// run from an empty directory, the in-process server keeps its storage under ./src/storage
+public class ParallelDownloadBench {
+    private static final int SERVER_PORT = 33333, PROXY_PORT = 33334;
+
+    public static void main(String[] args) throws Exception {
+        int fileMB = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int delayMs = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        int windowKB = args.length > 2 ? Integer.parseInt(args[2]) : 256;
+        String mode = args.length > 3 ? args[3] : "thread";
+        long fileSize = fileMB * 1024L * 1024L;
+
+        new File("src/storage").mkdirs();
+        Thread serverThread = new Thread(() -> new Server(1000000000, 1000, 1000, mode, 1, 10 * 60 * 1000));
+        serverThread.setDaemon(true);
+        serverThread.start();
+        BenchClient.waitForServer(SERVER_PORT);
+        startProxy(delayMs * 1000000L, windowKB * 1024);
+
+        // the upload goes straight to the server, only the downloads pay the delay
+        NetworkUtil owner = BenchClient.login(SERVER_PORT, "bench-owner");
+        byte[] content = new byte[(int) fileSize];
+        new Random(1).nextBytes(content);
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        String fileID = BenchClient.upload(owner, "bench-owner", content, true);
+
+        File target = new File("bench-download.bin");
+        System.out.println("streams,delay_ms,window_kb,mb,seconds,mb_per_s");
+        NetworkUtil control = BenchClient.login(PROXY_PORT, "bench-reader");
+        for (int streams = 1; streams <= 8; streams++) {
+            target.delete();
+            long t = System.nanoTime();
+            control.write(new FileDownloadRequest(fileID, true, 0, 0, streams));
+            FileDownloadRequestResponse response = (FileDownloadRequestResponse) control.read();
+            int used = 1;
+            if (response.token != null) {
+                used = response.ranges.length - 1;
+                if (!ParallelDownload.fetch("127.0.0.1", PROXY_PORT, response, target, 0)) throw new IOException("parallel download failed");
+            } else {
+                try (FileChannel fileChannel = FileChannel.open(target.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                    control.receiveFile(fileChannel, 0, response.length);
+                }
+                if (!control.read().equals("done")) throw new IOException("download did not end with done");
+            }
+            double seconds = (System.nanoTime() - t) / 1e9;
+            if (used != streams) throw new IllegalStateException("server granted " + used + " streams instead of " + streams);
+            if (checksum(target) != crc.getValue()) throw new IllegalStateException("downloaded file differs at " + streams + " streams");
+            System.out.printf("%d,%d,%d,%d,%.2f,%.1f%n", streams, delayMs, windowKB, fileMB, seconds, fileMB / seconds);
+        }
+        target.delete();
+        System.exit(0);
+    }
+
+    private static long checksum(File file) throws IOException {
+        CRC32 sum = new CRC32();
+        byte[] buffer = new byte[1 << 16];
+        try (InputStream in = new FileInputStream(file)) {
+            int n;
+            while ((n = in.read(buffer)) != -1) sum.update(buffer, 0, n);
+        }
+        return sum.getValue();
+    }
+
+    private static void startProxy(long delayNanos, int window) throws IOException {
+        ServerSocket listener = new ServerSocket(PROXY_PORT);
+        Thread acceptor = new Thread(() -> {
+            while (true) {
+                try {
+                    Socket client = listener.accept();
+                    Socket server = new Socket("127.0.0.1", SERVER_PORT);
+                    delayLine(client, server, delayNanos, window);
+                    delayLine(server, client, delayNanos, window);
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }, "proxy-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    // copies from -> to, every block leaves delayNanos after it arrived, at most window bytes are held at once
+    private static void delayLine(Socket from, Socket to, long delayNanos, int window) {
+        LinkedBlockingQueue<Object[]> queue = new LinkedBlockingQueue<>();
+        Semaphore inFlight = new Semaphore(window);
+
+        Thread reader = new Thread(() -> {
+            byte[] buffer = new byte[Math.min(window, 1 << 16)];
+            try {
+                InputStream in = from.getInputStream();
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    inFlight.acquire(n);
+                    byte[] block = new byte[n];
+                    System.arraycopy(buffer, 0, block, 0, n);
+                    queue.put(new Object[]{System.nanoTime() + delayNanos, block});
+                }
+            } catch (IOException | InterruptedException ignored) {
+            }
+            queue.add(new Object[]{System.nanoTime() + delayNanos, null}); // end of stream
+        });
+        Thread writer = new Thread(() -> {
+            try {
+                OutputStream out = to.getOutputStream();
+                while (true) {
+                    Object[] item = queue.take();
+                    long wait = (Long) item[0] - System.nanoTime();
+                    if (wait > 0) Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                    byte[] block = (byte[]) item[1];
+                    if (block == null) break;
+                    out.write(block);
+                    out.flush();
+                    inFlight.release(block.length);
+                }
+                to.shutdownOutput();
+            } catch (IOException | InterruptedException e) {
+                try {
+                    from.close();
+                    to.close();
+                } catch (IOException ignored) {
+                }
+            }
+        });
+        reader.setDaemon(true);
+        writer.setDaemon(true);
+        reader.start();
+        writer.start();
+    }
+}
@@ -0,0 +1,128 @@
+package bench;
+
+import server.Catalog;
+import util.FileInfo;
+import util.FileRequest;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+// query latency of the search index over a catalog of shared files and file requests
+// names are made of words from a skewed vocabulary, so some words are in a large share of the files, like real names
+// each kind of query runs against the index and, for comparison, as a scan over every name (what reading SHOW_SHARED_FILES does)
+// usage: java bench.SearchBench [files] [queries per kind]
+public class SearchBench {
+    private static final String[] EXTENSIONS = {"pdf", "txt", "zip", "mp4", "csv", "docx", "png", "tar"};
+
+    public static void main(String[] args) {
+        int files = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int queries = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int requests = files / 10;
+        Random rnd = new Random(17);
+        String[] vocabulary = new String[20000];
+        for (int i = 0; i < vocabulary.length; i++) vocabulary[i] = word(rnd);
+
+        Catalog catalog = new Catalog();
+        String[] names = new String[files];
+        long t = System.nanoTime();
+        for (int i = 0; i < files; i++) {
+            names[i] = pick(vocabulary, rnd) + "_" + pick(vocabulary, rnd) + "_" + (1990 + rnd.nextInt(35)) + "." + EXTENSIONS[rnd.nextInt(EXTENSIONS.length)];
+            FileInfo f = new FileInfo(names[i], false, "user" + (i % 1000), 1000 + i);
+            f.fileID = (i + 1) + "";
+            catalog.addFile(f);
+        }
+        for (int i = 0; i < requests; i++) {
+            FileRequest r = new FileRequest("user" + (i % 1000), "looking for " + pick(vocabulary, rnd) + " " + pick(vocabulary, rnd) + " notes from " + (1990 + rnd.nextInt(35)));
+            r.requestID = (i + 1) + "";
+            catalog.addFileRequest(r);
+        }
+        System.out.printf("# indexed %d files and %d requests in %d ms%n", files, requests, (System.nanoTime() - t) / 1000000);
+
+        System.out.println("query,method,files,queries,p50_us,p99_us,avg_results");
+        String[] kinds = {"one_word", "prefix_3", "prefix_1", "two_words", "two_words_prefix", "no_match"};
+        for (String kind : kinds) {
+            String[] qs = new String[queries];
+            Random q = new Random(kind.hashCode());
+            for (int i = 0; i < queries; i++) qs[i] = query(kind, names[q.nextInt(files)], q);
+            run(kind, "index", qs, catalog, null, files);
+            run(kind, "scan", Arrays.copyOf(qs, Math.max(1, queries / 50)), null, names, files); // a scan is slow, fewer of them
+        }
+    }
+
+    private static void run(String kind, String method, String[] qs, Catalog catalog, String[] names, int files) {
+        long[] micros = new long[qs.length];
+        long results = 0;
+        for (int round = 0; round < 2; round++) { // the first round warms up
+            results = 0;
+            for (int i = 0; i < qs.length; i++) {
+                long t = System.nanoTime();
+                int n = catalog != null ? catalog.searchFiles(qs[i], 20).size() : scan(names, qs[i], 20);
+                micros[i] = (System.nanoTime() - t) / 1000;
+                results += n;
+            }
+        }
+        Arrays.sort(micros);
+        System.out.printf("%s,%s,%d,%d,%d,%d,%.1f%n", kind, method, files, qs.length, micros[micros.length / 2], micros[micros.length * 99 / 100], results / (double) qs.length);
+    }
+
+    // every query word must start a word of the name, newest first, the same matching the index does
+    private static int scan(String[] names, String query, int limit) {
+        String[] terms = query.toLowerCase().split(" ");
+        int found = 0;
+        for (int i = names.length - 1; i >= 0 && found < limit; i--) {
+            List<String> tokens = Arrays.asList(names[i].toLowerCase().split("[^a-z0-9]+"));
+            boolean all = true;
+            for (String term : terms) {
+                boolean any = false;
+                for (String token : tokens) {
+                    if (token.startsWith(term)) {
+                        any = true;
+                        break;
+                    }
+                }
+                if (!any) {
+                    all = false;
+                    break;
+                }
+            }
+            if (all) found++;
+        }
+        return found;
+    }
+
+    private static String query(String kind, String name, Random q) {
+        String[] words = name.split("[_.]");
+        switch (kind) {
+            case "one_word":
+                return words[q.nextInt(2)];
+            case "prefix_3":
+                return words[0].substring(0, 3);
+            case "prefix_1":
+                return words[0].substring(0, 1);
+            case "two_words":
+                return words[0] + " " + words[1];
+            case "two_words_prefix":
+                return words[0] + " " + words[2].substring(0, 3);
+            default:
+                return words[0] + "qqq";
+        }
+    }
+
+    // a few words are everywhere and most are rare
+    private static String pick(String[] vocabulary, Random rnd) {
+        double x = rnd.nextDouble();
+        return vocabulary[(int) (vocabulary.length * x * x * x)];
+    }
+
+    private static String word(Random rnd) {
+        String consonants = "bcdfghklmnprstvz", vowels = "aeiou";
+        StringBuilder sb = new StringBuilder();
+        int syllables = 2 + rnd.nextInt(3);
+        for (int i = 0; i < syllables; i++) {
+            sb.append(consonants.charAt(rnd.nextInt(consonants.length())));
+            sb.append(vowels.charAt(rnd.nextInt(vowels.length())));
+        }
+        return sb.toString();
+    }
+}
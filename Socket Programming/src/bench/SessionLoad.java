@@ -0,0 +1,121 @@
+package bench;
+
+import server.Server;
+import util.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// opens N concurrent sessions against an in-process Server and reports how many it could hold,
+// what each one costs and how fast small requests are answered while they are all open
+// usage: java bench.SessionLoad [thread|virtual|nio] [sessions] [requests per session] [driver threads]
+// run once per mode, the server keeps port 33333 for the life of the jvm
+public class SessionLoad {
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "virtual";
+        int sessions = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        int requestsPerSession = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        int drivers = args.length > 3 ? Integer.parseInt(args[3]) : 32;
+
+        Thread serverThread = new Thread(() -> new Server(1000000000, 1000, 1000, mode, Runtime.getRuntime().availableProcessors(), 10 * 60 * 1000));
+        serverThread.setDaemon(true);
+        serverThread.start();
+        BenchClient.waitForServer(33333);
+
+        long heapBefore = usedHeap();
+        long rssBefore = residentSetSize();
+        int threadsBefore = Thread.activeCount();
+
+        // open sessions until the target or the first failure
+        List<NetworkUtil> open = new ArrayList<>();
+        long connectStart = System.nanoTime();
+        String failure = null;
+        for (int i = 0; i < sessions; i++) {
+            try {
+                open.add(BenchClient.login(33333, "load-" + mode + "-" + i));
+            } catch (Exception e) {
+                failure = e.toString();
+                break;
+            }
+        }
+        long connectNanos = System.nanoTime() - connectStart;
+
+        long heapAfter = usedHeap();
+        long rssAfter = residentSetSize();
+        int threadsAfter = Thread.activeCount();
+
+        // every driver owns a disjoint slice of the sessions, so one session never sees two requests at once
+        int connected = open.size();
+        long[][] latencies = new long[drivers][];
+        Thread[] driverThreads = new Thread[drivers];
+        long requestStart = System.nanoTime();
+        for (int d = 0; d < drivers; d++) {
+            final int id = d;
+            driverThreads[d] = new Thread(() -> {
+                List<Long> mine = new ArrayList<>();
+                for (int round = 0; round < requestsPerSession; round++) {
+                    for (int s = id; s < connected; s += drivers) {
+                        long t = System.nanoTime();
+                        try {
+                            open.get(s).write(new Request(RequestType.SHOW_MY_FILES));
+                            open.get(s).read();
+                        } catch (Exception e) {
+                            continue;
+                        }
+                        mine.add(System.nanoTime() - t);
+                    }
+                }
+                latencies[id] = mine.stream().mapToLong(Long::longValue).toArray();
+            });
+            driverThreads[d].start();
+        }
+        for (Thread t : driverThreads) t.join();
+        long requestNanos = System.nanoTime() - requestStart;
+
+        long[] all = Arrays.stream(latencies).flatMapToLong(Arrays::stream).sorted().toArray();
+
+        System.out.println("mode=" + mode + " target=" + sessions + " connected=" + connected + (failure != null ? " first_failure=\"" + failure + "\"" : ""));
+        System.out.printf("connect_time_ms=%.1f connect_rate_per_s=%.0f%n", connectNanos / 1e6, connected / (connectNanos / 1e9));
+        if (connected > 0) {
+            // heap includes the client side NetworkUtil objects, rss also shows platform thread stacks
+            System.out.printf("heap_per_session_bytes=%d rss_per_session_bytes=%d server_threads_added=%d%n",
+                    (heapAfter - heapBefore) / connected, (rssAfter - rssBefore) / connected, threadsAfter - threadsBefore);
+        }
+        if (all.length > 0) {
+            System.out.printf("requests=%d throughput_per_s=%.0f latency_us p50=%.1f p99=%.1f p999=%.1f max=%.1f%n",
+                    all.length, all.length / (requestNanos / 1e9),
+                    percentile(all, 0.50) / 1e3, percentile(all, 0.99) / 1e3, percentile(all, 0.999) / 1e3, all[all.length - 1] / 1e3);
+        }
+        System.exit(0);
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        return sorted[Math.min(sorted.length - 1, (int) (p * sorted.length))];
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        Runtime rt = Runtime.getRuntime();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    // linux only, returns 0 elsewhere
+    private static long residentSetSize() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                }
+            }
+        } catch (IOException ignored) {
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,121 @@
+package bench;
+
+import server.Server;
+import server.TransferScheduler;
+import util.*;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+// how long a small download takes while one user pulls a big file over many data connections
+// the global rate stands in for the server's link: everything above it would queue in socket buffers anyway
+// phases: the small user alone, then against the heavy user with the waiting requests served in arrival order (one shared
+// token bucket), with fair queueing, and with fair queueing plus a per-user limit of half the link on the heavy user
+// usage: java bench.ShapingBench [global MB/s] [heavy streams] [small KB] [samples] [thread|virtual|nio]
+// run from an empty directory, the in-process server keeps its storage under ./src/storage
+public class ShapingBench {
+    private static final int PORT = 33333;
+
+    public static void main(String[] args) throws Exception {
+        int globalMB = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        int streams = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int smallKB = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+        int samples = args.length > 3 ? Integer.parseInt(args[3]) : 200;
+        String mode = args.length > 4 ? args[4] : "thread";
+        long globalRate = globalMB * (1L << 20);
+
+        new File("src/storage").mkdirs();
+        TransferScheduler transfers = new TransferScheduler(globalRate, 0);
+        Thread serverThread = new Thread(() -> new Server(1000000000, 1000, 1000, mode, 2, 10 * 60 * 1000, 256L << 20, transfers));
+        serverThread.setDaemon(true);
+        serverThread.start();
+        BenchClient.waitForServer(PORT);
+
+        // uploads are shaped too, so they happen before the limit matters as little as possible
+        transfers.setGlobalRate(0);
+        NetworkUtil owner = BenchClient.login(PORT, "bench-owner");
+        String bigID = BenchClient.upload(owner, "bench-owner", randomBytes(streams * 2 << 20), true);
+        String smallID = BenchClient.upload(owner, "bench-owner", randomBytes(smallKB * 1024), true);
+        transfers.setGlobalRate(globalRate);
+
+        NetworkUtil heavy = BenchClient.login(PORT, "heavy");
+        NetworkUtil light = BenchClient.login(PORT, "light");
+        System.out.println("phase,global_mb_s,heavy_streams,small_kb,samples,p50_ms,p99_ms,max_ms,small_mb_s,heavy_mb_s");
+        String[] phases = {"alone", "fifo", "fair", "fair_capped"};
+        for (String phase : phases) {
+            transfers.fair = !phase.equals("fifo");
+            transfers.setUserRate("heavy", phase.equals("fair_capped") ? globalRate / 2 : -1);
+
+            AtomicLong heavyBytes = new AtomicLong();
+            List<Thread> pullers = new ArrayList<>();
+            stop = false;
+            if (!phase.equals("alone")) {
+                heavy.write(new FileDownloadRequest(bigID, true, 0, 0, streams));
+                FileDownloadRequestResponse grant = (FileDownloadRequestResponse) heavy.read();
+                if (grant.token == null) throw new IllegalStateException("no parallel download granted");
+                for (int i = 0; i < grant.ranges.length - 1; i++) {
+                    int range = i;
+                    Thread puller = new Thread(() -> pull(grant, range, heavyBytes), "heavy-" + i);
+                    puller.setDaemon(true);
+                    puller.start();
+                    pullers.add(puller);
+                }
+                Thread.sleep(1000); // until the heavy user has the link to itself
+            }
+
+            long heavyStart = heavyBytes.get(), t0 = System.nanoTime();
+            double[] millis = new double[samples];
+            File small = new File("bench-small.bin");
+            for (int i = 0; i < samples; i++) {
+                long t = System.nanoTime();
+                BenchClient.download(light, smallID, smallKB * 1024L, small);
+                millis[i] = (System.nanoTime() - t) / 1e6;
+                Thread.sleep(5);
+            }
+            double seconds = (System.nanoTime() - t0) / 1e9;
+            double heavyRate = (heavyBytes.get() - heavyStart) / seconds / (1 << 20);
+            stop = true;
+            for (Thread puller : pullers) puller.join();
+
+            Arrays.sort(millis);
+            double total = 0;
+            for (double m : millis) total += m;
+            double smallRate = samples * smallKB / 1024.0 / (total / 1000);
+            System.out.printf("%s,%d,%d,%d,%d,%.2f,%.2f,%.2f,%.2f,%.1f%n", phase, globalMB, streams, smallKB, samples,
+                    millis[samples / 2], millis[samples * 99 / 100], millis[samples - 1], smallRate, heavyRate);
+        }
+        System.exit(0);
+    }
+
+    private static volatile boolean stop; // ends the pullers of a phase
+
+    // fetches one range of the big file over and over until the phase ends
+    private static void pull(FileDownloadRequestResponse grant, int range, AtomicLong bytes) {
+        long length = grant.ranges[range + 1] - grant.ranges[range];
+        try (RandomAccessFile sink = new RandomAccessFile("bench-heavy-" + range + ".bin", "rw")) {
+            FileChannel channel = sink.getChannel();
+            while (!stop) {
+                NetworkUtil networkUtil = new NetworkUtil(BenchClient.HOST, PORT);
+                networkUtil.write(new DataConnectionRequest(grant.token, range));
+                if (!"ok".equals(networkUtil.read())) throw new IOException("range " + range + " refused");
+                networkUtil.receiveFile(channel, 0, length);
+                networkUtil.closeConnection();
+                bytes.addAndGet(length);
+            }
+        } catch (IOException | ClassNotFoundException e) {
+            System.out.println("# range " + range + " failed: " + e);
+        }
+        new File("bench-heavy-" + range + ".bin").delete();
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+}
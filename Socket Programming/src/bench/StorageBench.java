@@ -0,0 +1,129 @@
+package bench;
+
+import server.StorageEngine;
+import util.Rates;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+
+// the storage engines against each other over file sizes from 1 KB to 4 GB, through the same Output and Input calls the
+// upload and download paths make
+//   write    a whole file in chunks through openOutput(path, 0, size), as an upload does, MB/s
+//   read     the whole file in chunks from the start through openInput, as a download does, MB/s
+//   range    a chunk at a random position, as a resumed or ranged download starts, microseconds per read
+// every measurement repeats until it took at least a second (once for the large files) and reports the best round,
+// the page cache is warm for the reads, as it is for a file that was just uploaded or is downloaded often
+// "stream" is the old FileOutputStream and FileInputStream code, "mapped" the default engine
+// usage: java bench.StorageBench [largest size, 4g] [chunk sizes, 1000,64k] [directory, .]
+// a 4g run needs twice that in free disk space for a moment, the files are deleted as soon as they are measured
+public class StorageBench {
+    private static final String[] ENGINES = {"stream", "mapped"};
+    private static final long MIN_MILLIS = 1000;
+    private static final int RANGES = 2000; // random reads per round
+    private static long sink; // keeps the jit from dropping reads
+
+    public static void main(String[] args) throws Exception {
+        long largest = args.length > 0 ? Rates.parse(args[0]) : 4L << 30;
+        String[] chunkArgs = (args.length > 1 ? args[1] : "1000,64k").split(",");
+        Path dir = Paths.get(args.length > 2 ? args[2] : ".");
+
+        int[] chunks = new int[chunkArgs.length];
+        for (int i = 0; i < chunks.length; i++) chunks[i] = (int) Rates.parse(chunkArgs[i]);
+        byte[] content = new byte[1 << 20];
+        new Random(1).nextBytes(content);
+
+        System.out.println("engine,size,chunk,write_mb_s,read_mb_s,range_us");
+        for (long size = 1024; size <= largest; size *= 16) {
+            for (int chunk : chunks) {
+                for (String name : ENGINES) {
+                    long fileSize = size;
+                    StorageEngine engine = StorageEngine.named(name);
+                    Path path = dir.resolve("storage-bench-" + name + ".bin");
+                    try {
+                        double write = best(fileSize, () -> write(engine, path, fileSize, chunk, content));
+                        double read = best(fileSize, () -> read(engine, path, chunk));
+                        double range = ranges(engine, path, fileSize, chunk);
+                        System.out.printf("%s,%s,%d,%.1f,%.1f,%.2f%n", name, sizeName(size), chunk, write, read, range);
+                    } finally {
+                        Files.deleteIfExists(path);
+                    }
+                }
+            }
+            if (size < largest && size * 16 > largest) size = largest / 16; // end on largest itself
+        }
+        if (sink == 42) System.out.println();
+    }
+
+    private interface Round {
+        void run() throws IOException;
+    }
+
+    // MB/s of the fastest round, rounds repeat until MIN_MILLIS have gone by
+    private static double best(long size, Round round) throws IOException {
+        long fastest = Long.MAX_VALUE, total = 0;
+        do {
+            long t = System.nanoTime();
+            round.run();
+            t = System.nanoTime() - t;
+            fastest = Math.min(fastest, t);
+            total += t;
+        } while (total < MIN_MILLIS * 1000000);
+        return size / (fastest / 1e9) / (1 << 20);
+    }
+
+    // into a new file, as an upload gets a temp file of its own
+    private static void write(StorageEngine engine, Path path, long size, int chunk, byte[] content) throws IOException {
+        Files.deleteIfExists(path);
+        try (StorageEngine.Output out = engine.openOutput(path, 0, size)) {
+            int at = 0;
+            for (long left = size; left > 0; ) {
+                int n = (int) Math.min(Math.min(chunk, left), content.length - at);
+                out.write(content, at, n);
+                at = (at + n) % content.length;
+                left -= n;
+            }
+        }
+    }
+
+    private static void read(StorageEngine engine, Path path, int chunk) throws IOException {
+        byte[] buffer = new byte[chunk];
+        try (StorageEngine.Input in = engine.openInput(path)) {
+            long position = 0;
+            int n;
+            while ((n = in.read(position, buffer, 0, chunk)) != -1) {
+                sink += buffer[0];
+                position += n;
+            }
+        }
+    }
+
+    // microseconds per random read, the file stays open as it does for a download
+    private static double ranges(StorageEngine engine, Path path, long size, int chunk) throws IOException {
+        byte[] buffer = new byte[chunk];
+        Random random = new Random(size);
+        long fastest = Long.MAX_VALUE, total = 0;
+        try (StorageEngine.Input in = engine.openInput(path)) {
+            do {
+                long t = System.nanoTime();
+                for (int i = 0; i < RANGES; i++) {
+                    long position = size <= chunk ? 0 : (random.nextLong() & Long.MAX_VALUE) % (size - chunk);
+                    sink += in.read(position, buffer, 0, chunk);
+                }
+                t = System.nanoTime() - t;
+                fastest = Math.min(fastest, t);
+                total += t;
+            } while (total < MIN_MILLIS * 1000000);
+        }
+        return fastest / 1e3 / RANGES;
+    }
+
+    private static String sizeName(long size) {
+        if (size >= 1L << 30 && size % (1L << 30) == 0) return (size >> 30) + "g";
+        if (size >= 1 << 20 && size % (1 << 20) == 0) return (size >> 20) + "m";
+        if (size >= 1024 && size % 1024 == 0) return (size >> 10) + "k";
+        return String.valueOf(size);
+    }
+}
@@ -0,0 +1,78 @@
+package bench;
+
+import server.Catalog;
+import server.MetadataStore;
+import util.FileInfo;
+import util.FileRequest;
+import util.UserMessage;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+// write throughput of the catalog log with group commit, then restart time from the log alone and from a snapshot
+// every writer waits for its record to be durable, like an upload does before it reports success
+// usage: java bench.StoreBench [entries] [writer threads] [dir]
+public class StoreBench {
+    public static void main(String[] args) throws Exception {
+        int entries = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+        File dir = new File(args.length > 2 ? args[2] : "bench-store");
+
+        System.out.println("phase,entries,threads,ms,ops_per_s,records_per_fsync,records_replayed");
+        for (String phase : new String[]{"wal_only", "snapshot"}) {
+            clear(dir);
+            dir.mkdirs();
+            // wal_only never rotates, snapshot folds every 100k records like the server does
+            int snapshotEvery = phase.equals("wal_only") ? Integer.MAX_VALUE : 100000;
+
+            MetadataStore store = new MetadataStore(dir, new Catalog(), snapshotEvery);
+            for (int u = 0; u < 100; u++) store.registerUser("user" + u);
+            AtomicLong next = new AtomicLong();
+            CountDownLatch done = new CountDownLatch(threads);
+            long t = System.nanoTime();
+            for (int w = 0; w < threads; w++) {
+                new Thread(() -> {
+                    long i;
+                    while ((i = next.getAndIncrement()) < entries) {
+                        String owner = "user" + (i % 100);
+                        if (i % 20 == 0) {
+                            FileRequest request = new FileRequest(owner, "looking for dataset " + i);
+                            request.requestID = i + "";
+                            store.addFileRequest(request);
+                            store.broadcast(owner, new UserMessage(owner, "all", true, "request " + i));
+                        } else {
+                            FileInfo file = new FileInfo("file-" + i + ".bin", i % 3 == 0, owner, i * 1000);
+                            file.fileID = i + "";
+                            store.addFile(file);
+                        }
+                        if (i % 50 == 0) store.takeMessages("user" + (i / 50 % 100)); // every user reads now and then
+                    }
+                    done.countDown();
+                }).start();
+            }
+            done.await();
+            double writeMs = (System.nanoTime() - t) / 1e6;
+            long syncs = store.syncs;
+            store.close();
+            System.out.printf("%s_write,%d,%d,%.0f,%.0f,%.1f,%n", phase, entries, threads, writeMs, entries / (writeMs / 1000), entries / (double) syncs);
+
+            Catalog restored = new Catalog();
+            MetadataStore reopened = new MetadataStore(dir, restored, snapshotEvery);
+            System.out.printf("%s_restart,%d,,%d,,,%d%n", phase, entries, reopened.restoreMillis, reopened.recordsReplayed);
+            long expectedFiles = entries - (entries + 19) / 20;
+            if (restored.fileCount() != expectedFiles || restored.userCount() != 100) {
+                System.out.println("FAIL restored " + restored.fileCount() + " files, expected " + expectedFiles);
+                System.exit(1);
+            }
+            reopened.close();
+        }
+        clear(dir);
+    }
+
+    private static void clear(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) for (File f : files) f.delete();
+        dir.delete();
+    }
+}
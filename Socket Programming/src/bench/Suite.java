@@ -0,0 +1,180 @@
+package bench;
+
+import server.Server;
+import server.TransferScheduler;
+import util.*;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+// the benchmarks of the request and transfer pipelines, over the real code paths, run by Harness into a JMH style result file
+//   wire.roundtrip          a message written by one NetworkUtil, read by the other and sent back, over loopback,
+//                           for a small Request and a 100 entry SendableList, java serialization and the binary protocol
+//   transfer.upload         a whole upload through ServerThread.receiveFile (no window, an ack per chunk), per chunk size
+//   transfer.download       a whole download through ServerThread.sendFile, chunks in the object stream, per chunk size
+//   broadcast.request       Server.broadcastRequest, the shared log entry plus a wake per push target, per push target count
+//   catalog.shared_files    Server.getSharedFiles over catalogs of 10^3 up to 10^6 files
+//   catalog.check_availability  Server.checkFileAvailability of a random file ID over the same catalogs
+// the server is in process, set up without listening for the catalog and broadcast ones, which call it directly
+// the filter is a regex on the benchmark names, "transfer" runs only the transfers
+// the server's own output goes to bench-server.log, the csv lines to stdout
+// usage: java bench.Suite [filter] [result file] [largest catalog] [transfer file MB]
+// run from an empty directory, the server keeps its storage under ./src/storage
+public class Suite {
+    private static final int PORT = 33333;
+    private static final int[] CHUNKS = {1000, 8 * 1024, 64 * 1024, 256 * 1024};
+    private static final int[] PUSH_TARGETS = {0, 100, 10000};
+    private static long sink; // keeps the jit from dropping results
+
+    public static void main(String[] args) throws Exception {
+        Pattern filter = Pattern.compile(args.length > 0 ? args[0] : ".*");
+        String resultFile = args.length > 1 ? args[1] : "bench-results.json";
+        int maxFiles = args.length > 2 ? Integer.parseInt(args[2]) : 1000000;
+        int fileMB = args.length > 3 ? Integer.parseInt(args[3]) : 16;
+
+        PrintStream csv = System.out;
+        System.setOut(new PrintStream(new FileOutputStream("bench-server.log"), true));
+        new File("src/storage").mkdirs();
+        Server server = new Server(1000000000, 64 * 1024, 64 * 1024, "thread", 1, 10 * 60 * 1000, 256L << 20, new TransferScheduler(0, 0), false);
+
+        Harness harness = new Harness(csv);
+        wire(harness, filter);
+        transfer(harness, filter, server, fileMB);
+        broadcast(harness, filter, server);
+        catalog(harness, filter, server, maxFiles);
+        harness.writeJson(Paths.get(resultFile));
+        csv.println("# " + harness.results.size() + " results in " + resultFile);
+        System.exit(0);
+    }
+
+    private static boolean wanted(Pattern filter, String benchmark) {
+        return filter.matcher(benchmark).find();
+    }
+
+    private static Map<String, String> params(Object... keyValues) {
+        Map<String, String> params = new LinkedHashMap<>();
+        for (int i = 0; i < keyValues.length; i += 2) params.put(keyValues[i].toString(), keyValues[i + 1].toString());
+        return params;
+    }
+
+    private static void wire(Harness harness, Pattern filter) throws Exception {
+        if (!wanted(filter, "wire.roundtrip")) return;
+        for (String message : new String[]{"request", "sendable_list_100"}) {
+            // a fresh message every time, a live connection does not send the same instance twice
+            Supplier<Object> make = message.equals("request") ? () -> new Request(RequestType.SHOW_MY_FILES) : Suite::fileList;
+            for (String protocol : new String[]{"object", "binary"}) {
+                NetworkUtil[] pair = connectedPair(protocol.equals("binary"));
+                harness.run("wire.roundtrip", params("message", message, "protocol", protocol), 1, "ops/s", () -> {
+                    pair[0].write(make.get());
+                    pair[1].write(pair[1].read());
+                    sink += pair[0].read().hashCode();
+                }, null);
+                pair[0].closeConnection();
+                pair[1].closeConnection();
+            }
+        }
+    }
+
+    private static SendableList fileList() {
+        List<String> files = new ArrayList<>();
+        for (int i = 0; i < 100; i++) files.add("dataset-" + i + ".csv (File ID: " + i + ", Owner: user" + i + ")O");
+        return new SendableList(files);
+    }
+
+    // two NetworkUtils on the ends of one loopback connection, each constructor waits for the other's stream header
+    private static NetworkUtil[] connectedPair(boolean binary) throws Exception {
+        NetworkUtil[] pair = new NetworkUtil[2];
+        try (ServerSocket listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            IOException[] failure = new IOException[1];
+            Thread acceptor = new Thread(() -> {
+                try {
+                    pair[1] = new NetworkUtil(listener.accept());
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+            });
+            acceptor.start();
+            pair[0] = new NetworkUtil("127.0.0.1", listener.getLocalPort());
+            acceptor.join();
+            if (failure[0] != null) throw failure[0];
+        }
+        if (binary) {
+            pair[0].useBinaryProtocol();
+            pair[1].useBinaryProtocol();
+        }
+        return pair;
+    }
+
+    private static void transfer(Harness harness, Pattern filter, Server server, int fileMB) throws Exception {
+        boolean up = wanted(filter, "transfer.upload"), down = wanted(filter, "transfer.download");
+        if (!up && !down) return;
+        Thread listener = new Thread(server::listen, "listen");
+        listener.setDaemon(true);
+        listener.start();
+        BenchClient.waitForServer(PORT);
+
+        NetworkUtil conn = BenchClient.loginBinary(PORT, "suite-transfer", false);
+        byte[] content = new byte[fileMB << 20];
+        new Random(fileMB).nextBytes(content); // the same content every time, the blob store keeps one copy of it
+        for (int chunk : CHUNKS) {
+            server.MIN_CHUNK_SIZE = chunk;
+            server.MAX_CHUNK_SIZE = chunk;
+            String[] fileID = {BenchClient.upload(conn, "suite-transfer", content, false)};
+            Map<String, String> params = params("chunk", chunk, "file_mb", fileMB);
+            if (up) harness.run("transfer.upload", params, fileMB, "MB/s", () -> fileID[0] = BenchClient.upload(conn, "suite-transfer", content, false), null);
+            // the file cache may serve a repeated download from memory, as it would for a popular file
+            if (down) harness.run("transfer.download", params, fileMB, "MB/s", () -> BenchClient.download(conn, new FileDownloadRequest(fileID[0], false), content.length, null), null);
+        }
+        conn.write(new Request(RequestType.LOGOUT));
+    }
+
+    private static void broadcast(Harness harness, Pattern filter, Server server) throws Exception {
+        if (!wanted(filter, "broadcast.request")) return;
+        LongAdder wakes = new LongAdder(); // a pusher would be unparked here
+        FileRequest request = new FileRequest("suite-requester", "any recording of the 1998 final");
+        request.requestID = "1";
+        int targets = 0;
+        for (int count : PUSH_TARGETS) {
+            for (; targets < count; targets++) {
+                String username = "suite-push-" + targets;
+                server.login(username, new Object());
+                server.enablePush(username, wakes::increment);
+            }
+            // everyone reads their messages between iterations, the broadcast log would only grow otherwise
+            harness.run("broadcast.request", params("push_targets", count), 1, "ops/s", () -> server.broadcastRequest(request), () -> {
+                for (String username : server.getUserList("registered")) server.getMessages(username);
+            });
+        }
+    }
+
+    private static void catalog(Harness harness, Pattern filter, Server server, int maxFiles) throws Exception {
+        boolean shared = wanted(filter, "catalog.shared_files"), check = wanted(filter, "catalog.check_availability");
+        if (!shared && !check) return;
+        String[] ids = new String[maxFiles];
+        int added = 0;
+        for (int files = 1000; files <= maxFiles; files *= 10) {
+            for (; added < files; added++) {
+                FileInfo fileInfo = new FileInfo("dataset-" + added + ".csv", added % 2 == 1, "owner" + (added % 1000), 1000 + added);
+                ids[added] = server.generateFileID();
+                server.addFile(new FileUploadInitiationRequest(fileInfo, false, null), ids[added]);
+            }
+            Map<String, String> params = params("files", files);
+            if (shared) harness.run("catalog.shared_files", params, 1, "ops/s", () -> sink += server.getSharedFiles().size(), null);
+            if (check) {
+                Random rnd = new Random(files);
+                int n = files;
+                harness.run("catalog.check_availability", params, 1, "ops/s", () -> sink += server.checkFileAvailability(ids[rnd.nextInt(n)]).fileSize, null);
+            }
+        }
+    }
+}
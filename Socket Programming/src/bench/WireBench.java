@@ -0,0 +1,122 @@
+package bench;
+
+import util.*;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+// encode/decode cost and bytes on the wire per message, java serialization vs WireCodec
+// both paths are measured in steady state: class descriptors (or nothing, for the codec) already sent once
+// every op gets a fresh message, a live connection never resends the same String instances,
+// and the cost of building the message is measured separately and subtracted
+// usage: java bench.WireBench [messages per round] [rounds]
+public class WireBench {
+    private static int sink; // keeps the jit from dropping decoded messages
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        Object[][] cases = {
+                {"ack_string", (Supplier<Object>) () -> new String("ack")},
+                {"chunk_ack", (Supplier<Object>) () -> new ChunkAck(12345)},
+                {"show_my_files", (Supplier<Object>) () -> new Request(RequestType.SHOW_MY_FILES)},
+                {"upload_initiation", (Supplier<Object>) () -> new FileUploadInitiationRequest(new FileInfo(new String("report.pdf"), false, new String("alice"), 123456789L), false, null, true)},
+                {"upload_response", (Supplier<Object>) () -> new FileUploadInitiationResponse(1000, new String("42"), 32)},
+                {"download_request", (Supplier<Object>) () -> new FileDownloadRequest(new String("42"), true)},
+                {"sendable_list_100", (Supplier<Object>) WireBench::fileList},
+        };
+
+        System.out.println("message,path,encode_ns_op,decode_ns_op,bytes_op");
+        for (Object[] c : cases) {
+            String name = (String) c[0];
+            @SuppressWarnings("unchecked")
+            Supplier<Object> factory = (Supplier<Object>) c[1];
+            double build = measureFactory(factory, count, rounds);
+            report(name, "serialization", measureSerialization(factory, count, rounds), build);
+            report(name, "binary", measureBinary(factory, count, rounds), build);
+        }
+    }
+
+    private static SendableList fileList() {
+        List<String> files = new ArrayList<>();
+        for (int i = 0; i < 100; i++) files.add("dataset-" + i + ".csv (File ID: " + i + ", Owner: user" + i + ")O");
+        return new SendableList(files);
+    }
+
+    private static double measureFactory(Supplier<Object> factory, int count, int rounds) {
+        double best = Double.MAX_VALUE;
+        for (int r = 0; r < rounds; r++) {
+            long t = System.nanoTime();
+            for (int i = 0; i < count; i++) sink += factory.get().hashCode();
+            best = Math.min(best, (System.nanoTime() - t) / (double) count);
+        }
+        return best;
+    }
+
+    private static void report(String name, String path, double[] r, double build) {
+        System.out.printf("%s,%s,%.1f,%.1f,%.1f%n", name, path, Math.max(0, r[0] - build), r[1], r[2]);
+    }
+
+    // returns {best encode ns/op, best decode ns/op, bytes/op}
+    private static double[] measureSerialization(Supplier<Object> factory, int count, int rounds) throws Exception {
+        double bestEncode = Double.MAX_VALUE, bestDecode = Double.MAX_VALUE, bytes = 0;
+        for (int r = 0; r < rounds; r++) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ObjectOutputStream oos = new ObjectOutputStream(out);
+            oos.writeUnshared(factory.get()); // class descriptors go out once per connection
+            oos.flush();
+            int before = out.size();
+
+            long t = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                oos.writeUnshared(factory.get());
+                oos.flush();
+            }
+            bestEncode = Math.min(bestEncode, (System.nanoTime() - t) / (double) count);
+            bytes = (out.size() - before) / (double) count;
+
+            ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(out.toByteArray()));
+            ois.readUnshared();
+            t = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                sink += ois.readUnshared().hashCode();
+            }
+            bestDecode = Math.min(bestDecode, (System.nanoTime() - t) / (double) count);
+        }
+        return new double[]{bestEncode, bestDecode, bytes};
+    }
+
+    private static double[] measureBinary(Supplier<Object> factory, int count, int rounds) throws Exception {
+        double bestEncode = Double.MAX_VALUE, bestDecode = Double.MAX_VALUE, bytes = 0;
+        for (int r = 0; r < rounds; r++) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            DataOutputStream dout = new DataOutputStream(out);
+            ByteArrayOutputStream frameBytes = new ByteArrayOutputStream();
+            DataOutputStream frame = new DataOutputStream(frameBytes);
+
+            // same steps as NetworkUtil.write in binary mode
+            long t = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                frameBytes.reset();
+                WireCodec.encode(factory.get(), frame);
+                WireCodec.writeVarInt(dout, frameBytes.size());
+                frameBytes.writeTo(dout);
+                dout.flush();
+            }
+            bestEncode = Math.min(bestEncode, (System.nanoTime() - t) / (double) count);
+            bytes = out.size() / (double) count;
+
+            DataInputStream din = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+            t = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                WireCodec.readVarInt(din);
+                sink += WireCodec.decode(din.readByte(), din).hashCode();
+            }
+            bestDecode = Math.min(bestDecode, (System.nanoTime() - t) / (double) count);
+        }
+        return new double[]{bestEncode, bestDecode, bytes};
+    }
+}
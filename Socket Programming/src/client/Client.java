@@ -2,22 +2,41 @@ package client;
 
 import java.io.*;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.HashMap;
 import java.util.Scanner;
+import java.util.zip.CRC32C;
 
 import util.*;
 
 import static java.lang.System.exit;
 
 public class Client {
-    private static NetworkUtil networkUtil;
+    private static NetworkUtil networkUtil; // the control connection, or on a mux connection the stream for menu commands
+    private static PushReader pushReader; // set if the server pushes new messages
+    private static MuxSession session; // set if the server agreed to a mux connection, transfers then get streams of their own
     private static String clientName;
     private static Scanner scanner = new Scanner(System.in);
+    private static String serverAddress;
+    private static int serverPort;
+    private static String uploadDir = "src/client/to_upload", downloadDir = "src/client/download";
+    private static final int MAX_RETRIES = 3; // reconnects per interrupted transfer before giving up
+    private static final int DOWNLOAD_STREAMS = 4; // data connections offered for a large download
+    private static final int PAGE_SIZE = 500; // entries asked for per ListRequest
+    private static HashMap<String, ListPage> listings = new HashMap<>(); // lists seen so far, later only what is new is fetched
 
     public Client(String serverAddress, int serverPort) {
-        File file = new File("src/client/to_upload");
-        file.mkdir();
-        File file2 = new File("src/client/download");
-        file2.mkdir();
+        Client.serverAddress = serverAddress;
+        Client.serverPort = serverPort;
+        File file = new File(uploadDir);
+        file.mkdirs();
+        File file2 = new File(downloadDir);
+        file2.mkdirs();
 
         try {
             System.out.print("Enter your username: ");
@@ -25,9 +44,13 @@ public class Client {
             clientName = scanner.nextLine();
 
             networkUtil = new NetworkUtil(serverAddress, serverPort);
-            networkUtil.write(clientName);
+            networkUtil.write(loginRequest());
 
-            String response = (String) networkUtil.read();
+            LoginResponse loginResponse = (LoginResponse) networkUtil.read();
+            if (loginResponse.binary) networkUtil.useBinaryProtocol();
+            if (loginResponse.mux) startMux(loginResponse);
+            else startPushReader(loginResponse);
+            String response = loginResponse.message;
             System.out.println(response);
 
             String[] tokens = response.split(" ");
@@ -39,9 +62,13 @@ public class Client {
         }
     }
 
+    // usage: Client [server address] [port] [upload dir] [download dir]
+    // for a client driven from code instead of the menu see ClientSession
     public static void main(String[] args) throws IOException, ClassNotFoundException {
-        String serverAddress = "127.0.0.1";
-        int serverPort = 33333;
+        String serverAddress = args.length > 0 ? args[0] : "127.0.0.1";
+        int serverPort = args.length > 1 ? Integer.parseInt(args[1]) : 33333;
+        if (args.length > 2) uploadDir = args[2];
+        if (args.length > 3) downloadDir = args[3];
         new Client(serverAddress, serverPort);
 
         while (true) {
@@ -55,42 +82,28 @@ public class Client {
             System.out.println("7. Show File Requests");
             System.out.println("8. Upload A File"); // ask here if it is a requested file
             System.out.println("9. Download A File");
-            System.out.println("10. Log Out\n");
+            System.out.println("10. Log Out");
+            System.out.println("11. Search Files and Requests\n");
 
+            if (pushReader != null) pushReader.release(); // the last command is over, pushed messages show up while we wait
             int choice = scanner.nextInt();
 
             if (choice == 1) {
                 // show all registered users
-                networkUtil.write(new Request(RequestType.SHOW_REGISTERED_USERLIST));
-                Object o = networkUtil.read();
-                if (o instanceof SendableList) {
-                    SendableList sendableList = (SendableList) o;
-                    sendableList.showUsers("Registered");
-                }
+                ListPage listing = fetchList(ListRequest.REGISTERED_USERS);
+                if (listing != null) listing.showUsers("Registered");
             } else if (choice == 2) {
                 // show all active users
-                networkUtil.write(new Request(RequestType.SHOW_ACTIVE_USERLIST));
-                Object o = networkUtil.read();
-                if (o instanceof SendableList) {
-                    SendableList sendableList = (SendableList) o;
-                    sendableList.showUsers("Active");
-                }
+                ListPage listing = fetchList(ListRequest.ACTIVE_USERS);
+                if (listing != null) listing.showUsers("Active");
             } else if (choice == 3) {
                 // show my files
-                networkUtil.write(new Request(RequestType.SHOW_MY_FILES));
-                Object o = networkUtil.read();
-                if (o instanceof SendableList) {
-                    SendableList sendableList = (SendableList) o;
-                    sendableList.showFiles("Your");
-                }
+                ListPage listing = fetchList(ListRequest.MY_FILES);
+                if (listing != null) listing.showFiles("Your");
             } else if (choice == 4) {
                 // show shared files
-                networkUtil.write(new Request(RequestType.SHOW_SHARED_FILES));
-                Object o = networkUtil.read();
-                if (o instanceof SendableList) {
-                    SendableList sendableList = (SendableList) o;
-                    sendableList.showFiles("Shared");
-                }
+                ListPage listing = fetchList(ListRequest.SHARED_FILES);
+                if (listing != null) listing.showFiles("Shared");
             } else if (choice == 5) {
                 // request a file
                 scanner.nextLine();
@@ -101,19 +114,15 @@ public class Client {
             } else if (choice == 6) {
                 // show unread messages
                 networkUtil.write(new Request(RequestType.SHOW_MESSAGES));
-                Object o = networkUtil.read();
+                Object o = read();
                 if (o instanceof SendableList) {
                     SendableList sendableList = (SendableList) o;
                     sendableList.showMessages();
                 }
             } else if (choice == 7) {
                 // show file requests
-                networkUtil.write(new Request(RequestType.SHOW_FILE_REQUESTS));
-                Object o = networkUtil.read();
-                if (o instanceof SendableList) {
-                    SendableList sendableList = (SendableList) o;
-                    sendableList.showFileRequests();
-                }
+                ListPage listing = fetchList(ListRequest.FILE_REQUESTS);
+                if (listing != null) listing.showFileRequests();
             } else if (choice == 8) {
                 // upload a file
                 System.out.print("Do you want to upload a requested file? (y/n): ");
@@ -122,7 +131,7 @@ public class Client {
                     System.out.print("Enter request ID for the file: ");
                     String requestID = scanner.next();
                     networkUtil.write(new MatchFileRequestID(requestID));
-                    String response = (String) networkUtil.read();
+                    String response = (String) read();
                     if (response.charAt(0) == 'y') {
                         System.out.println("Server: Upload request found. Proceeding to upload...");
                         initiateFileUpload(true, requestID);
@@ -136,21 +145,23 @@ public class Client {
                 // download a file
                 System.out.print("Enter the ID of the file you want to download: ");
                 String fileID = scanner.next();
-                networkUtil.write(new FileDownloadRequest(fileID));
-                FileDownloadRequestResponse response = (FileDownloadRequestResponse) networkUtil.read();
-                if (!response.isAccepted) {
-                    System.out.println("From Server: No file with this ID exists.");
-                } else {
-                    String fileName = response.fileName;
-                    System.out.println("From Server: File found. Downloading " + fileName + "...");
-                    downloadFile(fileName, response.chunkSize, response.fileSize);
-                }
+                runTransfer(conn -> downloadWithResume(conn, fileID));
             } else if (choice == 10) {
                 // log out
                 networkUtil.write(new Request(RequestType.LOGOUT));
-                String response = (String) networkUtil.read();
+                String response = (String) read();
                 if (response.equals("ok")) System.out.println("Logged out successfully.");
                 exit(0);
+            } else if (choice == 11) {
+                // search shared files by name and file requests by description
+                scanner.nextLine();
+                System.out.println("Enter words to search for: ");
+                String query = scanner.nextLine();
+                networkUtil.write(new SearchRequest(query, null, 0));
+                Object o = read();
+                if (o instanceof ListPage) {
+                    ((ListPage) o).showSearchResults();
+                }
             } else {
                 System.out.println("Invalid choice!");
             }
@@ -163,7 +174,7 @@ public class Client {
         String fileName = scanner.nextLine();
 
 
-        File file = new File("src/client/to_upload/" + fileName);
+        File file = new File(uploadDir, fileName);
         if (!file.exists()) {
             System.out.println("File does not exist locally!");
             return;
@@ -181,46 +192,119 @@ public class Client {
         } else isPublic = true;
 
         FileInfo fileInfo = new FileInfo(fileName, !isPublic, clientName, fileSize);
-        FileUploadInitiationRequest req = new FileUploadInitiationRequest(fileInfo, isRequested, requestID);
-        networkUtil.write(req);
+        // the server checks the upload against it, and skips the transfer if it has this content already
+        fileInfo.sha256 = Checksums.sha256(file);
+        FileUploadInitiationRequest req = new FileUploadInitiationRequest(fileInfo, isRequested, requestID, true);
+        req.adaptive = true;
+        runTransfer(conn -> {
+            conn.write(req);
+            Object response = read(conn);
+
+            if (response instanceof FileUploadInitiationResponse) {
+                FileUploadInitiationResponse fileUploadInitiationResponse = (FileUploadInitiationResponse) response;
+                if (fileUploadInitiationResponse.isOK && fileUploadInitiationResponse.deduplicated) {
+                    System.out.println("Server already has this content, file added without uploading (File ID: " + fileUploadInitiationResponse.fileID + ").");
+                } else if (fileUploadInitiationResponse.isOK) {
+                    System.out.println("File upload initiated.");
+                    return uploadWithResume(conn, fileUploadInitiationResponse, file);
+                } else {
+                    System.out.println("File upload initiation failed.");
+                }
+            }
+            return conn;
+        });
+    }
 
-        Object response = networkUtil.read();
+    // an upload or a download, on its connection, returns the connection it ended on (a retry may have replaced it)
+    private interface Transfer {
+        NetworkUtil run(NetworkUtil conn) throws IOException, ClassNotFoundException;
+    }
 
-        if (response instanceof FileUploadInitiationResponse) {
-            FileUploadInitiationResponse fileUploadInitiationResponse = (FileUploadInitiationResponse) response;
-            if (fileUploadInitiationResponse.isOK) {
-                System.out.println("File upload initiated.");
-                uploadFile(fileUploadInitiationResponse.chunkSize, file);
-            } else {
-                System.out.println("File upload initiation failed.");
+    // on a mux connection the transfer gets a stream and a thread of its own and the menu is back right away,
+    // otherwise it runs here on the control connection, as the menu waits
+    private static void runTransfer(Transfer transfer) throws IOException, ClassNotFoundException {
+        if (session == null) {
+            transfer.run(networkUtil);
+            return;
+        }
+        MuxStream stream = session.open();
+        Thread thread = new Thread(() -> {
+            NetworkUtil conn = stream;
+            try {
+                conn = transfer.run(stream);
+            } catch (IOException | ClassNotFoundException e) {
+                System.out.println(e);
+            } finally {
+                try {
+                    conn.closeConnection();
+                } catch (IOException ignored) {
+                }
             }
+        }, "transfer-" + stream.id);
+        thread.start();
+    }
+
+    // sends the file from wherever the server stands, an interrupted upload is resumed over a new connection
+    private static NetworkUtil uploadWithResume(NetworkUtil conn, FileUploadInitiationResponse response, File file) throws IOException, ClassNotFoundException {
+        for (int attempt = 1; ; attempt++) {
+            boolean finished;
+            try {
+                if (response.windowSize > 0) {
+                    finished = uploadFileWindowed(conn, response.chunkSize, response.maxChunkSize, response.windowSize, file, response.offset);
+                } else {
+                    finished = uploadFile(conn, response.chunkSize, file, response.offset);
+                }
+            } catch (IOException e) {
+                System.out.println(e);
+                finished = false;
+            }
+            if (finished) return conn;
+
+            // the old connection may still have acks or half a chunk in it, a new one starts clean
+            conn = restart(conn);
+            if (response.uploadID == null || attempt > MAX_RETRIES) {
+                System.out.println("File upload failed.");
+                return conn;
+            }
+            FileUploadResumeRequest resume = new FileUploadResumeRequest(response.uploadID, true);
+            resume.adaptive = true;
+            conn.write(resume);
+            response = (FileUploadInitiationResponse) read(conn);
+            if (!response.isOK) {
+                System.out.println("Server could not resume the upload.");
+                return conn;
+            }
+            System.out.println("Resuming upload from byte " + response.offset + " (attempt " + attempt + " of " + MAX_RETRIES + ")");
         }
     }
 
-    private static void uploadFile(int chunkSize, File file) throws IOException, ClassNotFoundException {
+    // returns false if the upload was interrupted and can be resumed
+    private static boolean uploadFile(NetworkUtil conn, int chunkSize, File file, long offset) throws IOException, ClassNotFoundException {
         FileInputStream fileInputStream;
         try {
             fileInputStream = new FileInputStream(file);
         } catch (FileNotFoundException e) {
             System.out.println("File does not exist locally!");
-            return;
+            return true;
         }
+        fileInputStream.getChannel().position(offset);
+        long started = System.nanoTime();
 
         byte[] buffer = new byte[chunkSize];
         int read_bytes;
 
-        networkUtil.setTimeout(30000); // for reading server's acknowledgement message
+        conn.setTimeout(30000); // for reading server's acknowledgement message
         boolean success = true;
 
         while (true) {
             read_bytes = fileInputStream.read(buffer);
             if (read_bytes == -1) break;
 
-            networkUtil.write(buffer, 0, read_bytes);
+            conn.write(buffer, 0, read_bytes);
 
             // tries to read acknowledgement message here
             try {
-                String msg = (String) networkUtil.read();
+                String msg = (String) read(conn);
                 if (!msg.equals("ack")) {
                     System.out.println("Did not receive acknowledgement message from server.");
                     success = false;
@@ -228,55 +312,331 @@ public class Client {
                 }
             } catch (SocketTimeoutException e) {
                 System.out.println("Timeout in receiving acknowledgement message from server.");
-                networkUtil.write("timeout");
+                conn.write("timeout");
                 success = false;
                 break;
             }
         }
 
-        networkUtil.setTimeout(0);
+        conn.setTimeout(0);
         fileInputStream.close();
 
         if (success) {
-            networkUtil.write("done"); // final confirmation
-            String msg = (String) networkUtil.read();
+            conn.write("done"); // final confirmation
+            String msg = (String) read(conn);
             System.out.println("Response from Server: " + msg);
+            System.out.println("Sent " + (file.length() - offset) + " bytes at " + Rates.since(file.length() - offset, started) + ".");
         }
+        return success;
     }
 
-    private static void downloadFile(String fileName, int chunkSize, long fileSize) throws IOException, ClassNotFoundException {
-        FileOutputStream fileOutputStream = new FileOutputStream("src/client/download/" + fileName);
+    // keeps up to windowSize chunks unacknowledged instead of waiting for an "ack" after each one
+    // every ChunkAck carries the crc32c the server computed for that chunk, a mismatch aborts the whole upload
+    // if the server allows chunks up to maxChunkSize, a CongestionWindow decides how much is in flight and how big the chunks are,
+    // a new size is announced with "chunk <n>" before the first chunk of that size
+    private static boolean uploadFileWindowed(NetworkUtil conn, int chunkSize, int maxChunkSize, int windowSize, File file, long offset) throws IOException, ClassNotFoundException {
+        FileInputStream fileInputStream;
+        try {
+            fileInputStream = new FileInputStream(file);
+        } catch (FileNotFoundException e) {
+            System.out.println("File does not exist locally!");
+            return true;
+        }
+        fileInputStream.getChannel().position(offset);
+        long started = System.nanoTime();
+
+        CongestionWindow window = maxChunkSize > 0 ? new CongestionWindow(chunkSize, maxChunkSize, windowSize) : null;
+        byte[] buffer = new byte[Math.max(chunkSize, maxChunkSize)];
+        int size = chunkSize; // of the chunks the server expects now
+        long left = file.length() - offset;
+        long sent = 0, acked = 0;
+        boolean eof = false;
+        ArrayDeque<Integer> crcs = new ArrayDeque<>(); // of the chunks sent but not acked yet, oldest first
+        CRC32C crc = new CRC32C();
+
+        conn.setTimeout(30000); // no acknowledgement for this long means the upload failed
+        boolean success = true;
 
+        while (true) {
+            while (!eof && (window == null ? sent - acked < windowSize : window.canSend())) {
+                if (window != null && window.chunkSize() != size && left > 0) {
+                    size = window.chunkSize();
+                    conn.write("chunk " + size);
+                }
+                int read_bytes = fileInputStream.read(buffer, 0, (int) Math.min(size, Math.max(left, 1)));
+                if (read_bytes == -1) {
+                    eof = true;
+                    break;
+                }
+                conn.write(buffer, 0, read_bytes);
+                if (window != null) window.onSend(read_bytes);
+                left -= read_bytes;
+                crc.reset();
+                crc.update(buffer, 0, read_bytes);
+                crcs.add((int) crc.getValue());
+                sent++;
+            }
+            if (eof && acked == sent) break;
+
+            try {
+                Object msg = read(conn);
+                if (!(msg instanceof ChunkAck)) {
+                    System.out.println("Did not receive acknowledgement message from server.");
+                    success = false;
+                    break;
+                }
+                ChunkAck ack = (ChunkAck) msg;
+                if (window != null) window.onAck(ack.seq - acked);
+                int expected = 0;
+                while (acked < ack.seq) {
+                    expected = crcs.remove();
+                    acked++;
+                }
+                if (expected != ack.crc) {
+                    System.out.println("Chunk " + ack.seq + " arrived corrupted, aborting upload.");
+                    conn.write("abort");
+                    fileInputStream.close();
+                    if (session == null) reconnect(); // acks for later chunks may still be on the way, a stream is just closed
+                    System.out.println("File upload failed.");
+                    return true; // not resumable, the server has thrown the upload away
+                }
+            } catch (SocketTimeoutException e) {
+                System.out.println("Timeout in receiving acknowledgement message from server.");
+                conn.write("timeout");
+                success = false;
+                break;
+            }
+        }
+
+        conn.setTimeout(0);
+        fileInputStream.close();
+
+        if (success) {
+            conn.write("done"); // final confirmation
+            String msg = (String) read(conn);
+            System.out.println("Response from Server: " + msg);
+            System.out.println("Sent " + (file.length() - offset) + " bytes at " + Rates.since(file.length() - offset, started) + ".");
+        }
+        return success;
+    }
+
+    // the file goes to <download dir>/.<fileID>.part and is renamed once complete, so an interrupted download leaves no truncated file,
+    // and asking for the same file again only fetches what the part file lacks
+    private static NetworkUtil downloadWithResume(NetworkUtil conn, String fileID) throws IOException, ClassNotFoundException {
+        File part = new File(downloadDir, "." + fileID + ".part");
+        for (int attempt = 1; ; attempt++) {
+            long started = System.nanoTime();
+            conn.write(new FileDownloadRequest(fileID, true, part.length(), 0, DOWNLOAD_STREAMS));
+            FileDownloadRequestResponse response = (FileDownloadRequestResponse) read(conn);
+            if (!response.isAccepted) {
+                System.out.println("From Server: No file with this ID exists.");
+                return conn;
+            }
+            String fileName = response.fileName;
+            if (response.offset == 0) System.out.println("From Server: File found. Downloading " + fileName + "...");
+            else System.out.println("From Server: File found. Continuing " + fileName + " from byte " + response.offset + "...");
+
+            if (response.token != null) {
+                // parallel: the ranges come over their own connections, this one has nothing more to read
+                System.out.println("Downloading over " + (response.ranges.length - 1) + " connections...");
+                if (!ParallelDownload.fetch(serverAddress, serverPort, response, part, MAX_RETRIES)) {
+                    part.delete(); // sized up front, its length says nothing about what arrived
+                    System.out.println("File download failed.");
+                    return conn;
+                }
+                if (!verify(part, response.sha256)) return conn;
+                Files.move(part.toPath(), new File(downloadDir, fileName).toPath(), StandardCopyOption.REPLACE_EXISTING);
+                System.out.println("File " + fileName + " downloaded successfully (" + response.length + " bytes at " + Rates.since(response.length, started) + ").");
+                return conn;
+            }
+
+            boolean finished;
+            conn.setTimeout(30000);
+            try {
+                if (response.raw) finished = downloadFileRaw(conn, part, response);
+                else finished = downloadFile(conn, part, response);
+            } catch (IOException e) {
+                System.out.println(e);
+                finished = false;
+            }
+
+            if (finished) {
+                conn.setTimeout(0);
+                if (part.length() != response.fileSize) {
+                    System.out.println("File download failed, size mismatch.");
+                    part.delete();
+                    return conn;
+                }
+                if (!verify(part, response.sha256)) return conn;
+                Files.move(part.toPath(), new File(downloadDir, fileName).toPath(), StandardCopyOption.REPLACE_EXISTING);
+                System.out.println("File " + fileName + " downloaded successfully (" + response.length + " bytes at " + Rates.since(response.length, started) + ").");
+                return conn;
+            }
+
+            // whatever the server still sends for this download would be read as the next reply, a new connection starts clean
+            conn = restart(conn);
+            if (attempt > MAX_RETRIES) {
+                System.out.println("File download failed, " + part.length() + " bytes kept, download it again to continue.");
+                return conn;
+            }
+            System.out.println("Download interrupted at byte " + part.length() + ", retrying (attempt " + attempt + " of " + MAX_RETRIES + ")");
+        }
+    }
+
+    // compares a finished download with the hash the server announced, a mismatch deletes the part file
+    // files stored before checksums have no hash and are only checked by size
+    private static boolean verify(File part, String sha256) throws IOException {
+        if (sha256 == null || Checksums.sha256(part).equals(sha256)) return true;
+        part.delete();
+        System.out.println("File download failed, checksum mismatch.");
+        return false;
+    }
+
+    // opens the part file cut back to where the server continues
+    private static FileChannel openPart(File part, long offset) throws IOException {
+        FileChannel fileChannel = FileChannel.open(part.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        fileChannel.truncate(offset);
+        fileChannel.position(offset);
+        return fileChannel;
+    }
+
+    // returns false if the download was interrupted, the part file keeps what arrived
+    private static boolean downloadFile(NetworkUtil conn, File part, FileDownloadRequestResponse response) throws IOException, ClassNotFoundException {
+        FileChannel fileChannel = openPart(part, response.offset);
         try {
-            byte[] buffer = new byte[chunkSize];
+            byte[] buffer = new byte[response.chunkSize];
+            long remaining = response.length;
 
-            while (fileSize > 0) {
+            while (remaining > 0) {
                 int read_bytes;
                 try {
-                    read_bytes = networkUtil.read(buffer, 0, Math.min(buffer.length, (int) fileSize));
+                    read_bytes = conn.read(buffer, 0, (int) Math.min(buffer.length, remaining));
                 } catch (SocketTimeoutException e) {
-                    System.out.println("Timeout in receiving file " + fileName);
-                    fileOutputStream.close();
-                    return;
+                    System.out.println("Timeout in receiving file " + response.fileName);
+                    return false;
                 }
 
                 if (read_bytes == -1) break;
 
-                fileOutputStream.write(buffer, 0, read_bytes);
-                fileSize -= read_bytes;
+                fileChannel.write(ByteBuffer.wrap(buffer, 0, read_bytes));
+                remaining -= read_bytes;
             }
+        } finally {
+            fileChannel.close();
+        }
 
-            fileOutputStream.close();
-        } catch (IOException e) {
-            System.out.println(e);
-            fileOutputStream.close();
+        String final_msg = (String) read(conn);
+        return final_msg.equals("done");
+    }
+
+    // raw mode: the file bytes arrive outside the object stream, followed by the usual "done"
+    private static boolean downloadFileRaw(NetworkUtil conn, File part, FileDownloadRequestResponse response) throws IOException, ClassNotFoundException {
+        FileChannel fileChannel = openPart(part, response.offset);
+        try {
+            conn.receiveFile(fileChannel, response.offset, response.length);
+        } catch (SocketTimeoutException e) {
+            System.out.println("Timeout in receiving file " + response.fileName);
+            return false;
+        } finally {
+            fileChannel.close();
+        }
+
+        String final_msg = (String) read(conn);
+        return final_msg.equals("done");
+    }
+
+    // brings the kept copy of a list up to date page by page, asking only for what was added since the last time
+    // active users change both ways, so that list is fetched whole every time
+    private static ListPage fetchList(String list) throws IOException, ClassNotFoundException {
+        ListPage listing = list.equals(ListRequest.ACTIVE_USERS) ? null : listings.get(list);
+        String since = listing == null ? null : listing.version;
+        String cursor = null;
+        while (true) {
+            networkUtil.write(new ListRequest(list, PAGE_SIZE, cursor, since));
+            Object o = read();
+            if (!(o instanceof ListPage)) {
+                System.out.println("Server: " + o);
+                return null;
+            }
+            ListPage page = (ListPage) o;
+            if (listing == null || page.reset) listing = page; // the server restarted, what we kept is stale
+            else listing.merge(page);
+            if (page.next == null) break;
+            cursor = page.next;
         }
+        listings.put(list, listing);
+        return listing;
+    }
+
+    // replies go through the push reader if the server agreed to push messages, straight to the connection otherwise
+    private static Object read() throws IOException, ClassNotFoundException {
+        return read(networkUtil);
+    }
+
+    private static Object read(NetworkUtil conn) throws IOException, ClassNotFoundException {
+        return pushReader != null && conn == networkUtil ? pushReader.read() : conn.read();
+    }
+
+    private static LoginRequest loginRequest() {
+        LoginRequest req = new LoginRequest(clientName, true, true);
+        req.mux = true;
+        return req;
+    }
 
-        String final_msg = (String) networkUtil.read();
-        if (final_msg.equals("done")) {
-            System.out.println("File " + fileName + " downloaded successfully.");
-        } else {
-            System.out.println("File download failed.");
+    private static void startPushReader(LoginResponse loginResponse) {
+        if (!loginResponse.push) return;
+        pushReader = new PushReader(networkUtil);
+        pushReader.start();
+    }
+
+    // the connection becomes a mux session: its frames are read in the background, pushed messages come on stream 0 and
+    // are only ever shown, menu commands go on a stream of their own, so replies need no push reader to sort them out
+    private static void startMux(LoginResponse loginResponse) throws IOException {
+        session = new MuxSession(networkUtil, Thread::new, null, 0);
+        Thread reader = new Thread(session, "mux-reader");
+        reader.setDaemon(true);
+        reader.start();
+        if (loginResponse.push) new PushReader(session.stream(0)).start();
+        networkUtil = session.open();
+    }
+
+    // a connection for the next attempt of a transfer: a new stream on a mux connection, a new login otherwise
+    private static NetworkUtil restart(NetworkUtil conn) throws IOException, ClassNotFoundException {
+        if (session == null) {
+            reconnect();
+            return networkUtil;
+        }
+        try {
+            conn.closeConnection();
+        } catch (IOException ignored) {
+        }
+        return session.open(); // fails once the connection itself is gone, there is no stream to retry on then
+    }
+
+    // drops the connection and logs in again, the server may need a moment to notice the old one is gone
+    private static void reconnect() throws IOException, ClassNotFoundException {
+        if (pushReader != null) pushReader.stop();
+        pushReader = null;
+        try {
+            networkUtil.closeConnection();
+        } catch (IOException ignored) {
+        }
+        for (int attempt = 1; ; attempt++) {
+            networkUtil = new NetworkUtil(serverAddress, serverPort);
+            networkUtil.write(new LoginRequest(clientName, true, true)); // not mux, restart() only reconnects without it
+            LoginResponse loginResponse = (LoginResponse) networkUtil.read();
+            if (loginResponse.message.contains("Welcome")) {
+                if (loginResponse.binary) networkUtil.useBinaryProtocol();
+                startPushReader(loginResponse);
+                return;
+            }
+            networkUtil.closeConnection();
+            if (attempt == 10) throw new IOException("could not log in again: " + loginResponse.message);
+            try {
+                Thread.sleep(500);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
         }
     }
 }
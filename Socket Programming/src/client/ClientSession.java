@@ -0,0 +1,208 @@
+package client;
+
+import util.*;
+
+import java.io.*;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+// the client without the menu: one logged in connection and a method per operation, for scripts, tests and load generators
+// nothing is printed and nothing read from stdin, a refusal or a broken exchange comes back as an IOException with the reason
+// one request at a time, like the connection it runs on, use a ClientSession per thread
+// it speaks the binary protocol without push or mux: every reply is the answer to the request just sent, and an upload
+// is windowed with the crc of every chunk checked; it does not resume, a failed transfer is thrown and the caller decides,
+// the connection may be out of step after that, close the session and log in again
+public class ClientSession implements Closeable {
+    public static final int TIMEOUT = 30000; // ms without a reply before an operation fails
+    private static final int PAGE_SIZE = 500; // entries asked for per ListRequest
+
+    public final String username;
+    public final String greeting; // the server's welcome
+    private NetworkUtil networkUtil;
+
+    // connects and logs in, an IOException if the server says no (already logged in, say)
+    public ClientSession(String host, int port, String username) throws IOException {
+        this.username = username;
+        networkUtil = new NetworkUtil(host, port);
+        try {
+            networkUtil.write(new LoginRequest(username, true));
+            LoginResponse response = (LoginResponse) networkUtil.read();
+            if (!response.message.startsWith("Welcome")) throw new IOException(response.message);
+            greeting = response.message;
+            if (response.binary) networkUtil.useBinaryProtocol();
+            networkUtil.setTimeout(TIMEOUT);
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            networkUtil.closeConnection();
+            throw e instanceof IOException ? (IOException) e : new IOException(e);
+        }
+    }
+
+    private Object read() throws IOException {
+        try {
+            return networkUtil.read();
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private <T> T expect(Class<T> type) throws IOException {
+        Object o = read();
+        if (!type.isInstance(o)) throw new IOException("server: " + o);
+        return type.cast(o);
+    }
+
+    // a whole list (ListRequest.REGISTERED_USERS, ACTIVE_USERS, MY_FILES, SHARED_FILES or FILE_REQUESTS), every page of it
+    public ListPage list(String list) throws IOException {
+        ListPage listing = null;
+        String cursor = null;
+        do {
+            networkUtil.write(new ListRequest(list, PAGE_SIZE, cursor, null));
+            ListPage page = expect(ListPage.class);
+            if (listing == null) listing = page;
+            else listing.merge(page);
+            cursor = page.next;
+        } while (cursor != null);
+        return listing;
+    }
+
+    // the best matches among shared file names and file request descriptions
+    public ListPage search(String query) throws IOException {
+        networkUtil.write(new SearchRequest(query, null, 0));
+        return expect(ListPage.class);
+    }
+
+    // asks everyone for a file, the server sends no reply
+    public void request(String description) throws IOException {
+        networkUtil.write(new FileRequest(username, description));
+    }
+
+    // the unread messages, they are read once and gone from the server
+    public List<String> messages() throws IOException {
+        networkUtil.write(new Request(RequestType.SHOW_MESSAGES));
+        return expect(SendableList.class).getList();
+    }
+
+    // uploads a local file, its hash lets the server skip the transfer if it has the content already; returns the file ID
+    public String upload(File file, boolean isPublic, String requestID) throws IOException {
+        FileInfo fileInfo = new FileInfo(file.getName(), !isPublic, username, file.length());
+        fileInfo.sha256 = Checksums.sha256(file);
+        try (InputStream in = new FileInputStream(file)) {
+            return upload(fileInfo, in, requestID);
+        }
+    }
+
+    // uploads size bytes from in under the given name, for content that is not in a file; returns the file ID
+    public String upload(String fileName, long size, InputStream in, boolean isPublic, String requestID) throws IOException {
+        return upload(new FileInfo(fileName, !isPublic, username, size), in, requestID);
+    }
+
+    // requestID, if not null, names the file request this upload answers, the file is public then
+    private String upload(FileInfo fileInfo, InputStream in, String requestID) throws IOException {
+        if (requestID != null) {
+            networkUtil.write(new MatchFileRequestID(requestID));
+            String match = expect(String.class);
+            if (match.charAt(0) != 'y') throw new IOException("no file request with ID " + requestID);
+            fileInfo.isPrivate = false;
+        }
+        networkUtil.write(new FileUploadInitiationRequest(fileInfo, requestID != null, requestID, true));
+        FileUploadInitiationResponse response = expect(FileUploadInitiationResponse.class);
+        if (!response.isOK) throw new IOException("upload of " + fileInfo.fileName + " refused");
+        if (response.deduplicated) return response.fileID;
+
+        int window = Math.max(1, response.windowSize);
+        byte[] buffer = new byte[response.chunkSize];
+        ArrayDeque<Integer> crcs = new ArrayDeque<>(); // of the chunks sent but not acked yet, oldest first
+        CRC32C crc = new CRC32C();
+        long left = fileInfo.fileSize, sent = 0, acked = 0;
+        while (left > 0 || acked < sent) {
+            while (left > 0 && sent - acked < window) {
+                int n = in.readNBytes(buffer, 0, (int) Math.min(buffer.length, left));
+                if (n == 0) throw new EOFException(fileInfo.fileName + " ended " + left + " bytes early");
+                networkUtil.write(buffer, 0, n);
+                crc.reset();
+                crc.update(buffer, 0, n);
+                crcs.add((int) crc.getValue());
+                left -= n;
+                sent++;
+            }
+            Object reply;
+            try {
+                reply = read();
+            } catch (SocketTimeoutException e) {
+                networkUtil.write("timeout");
+                throw e;
+            }
+            if (response.windowSize == 0) {
+                if (!"ack".equals(reply)) throw new IOException("server: " + reply);
+                crcs.remove();
+                acked++;
+                continue;
+            }
+            if (!(reply instanceof ChunkAck)) throw new IOException("server: " + reply);
+            ChunkAck ack = (ChunkAck) reply;
+            int expected = 0;
+            while (acked < ack.seq) {
+                expected = crcs.remove();
+                acked++;
+            }
+            if (expected != ack.crc) {
+                networkUtil.write("abort");
+                throw new IOException("chunk " + ack.seq + " of " + fileInfo.fileName + " arrived corrupted");
+            }
+        }
+        networkUtil.write("done");
+        String result = expect(String.class);
+        if (!result.contains("successful")) throw new IOException("server: " + result);
+        return response.fileID;
+    }
+
+    // downloads the file into a local file, returns its name on the server
+    public String download(String fileID, File target) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(target), 1 << 16)) {
+            return download(fileID, out);
+        }
+    }
+
+    // downloads the file into out, which is left open; returns its name on the server
+    public String download(String fileID, OutputStream out) throws IOException {
+        networkUtil.write(new FileDownloadRequest(fileID, false));
+        FileDownloadRequestResponse response = expect(FileDownloadRequestResponse.class);
+        if (!response.isAccepted) throw new IOException("no file with ID " + fileID);
+        byte[] buffer = new byte[Math.max(response.chunkSize, 1 << 16)];
+        long remaining = response.length;
+        while (remaining > 0) {
+            int n = networkUtil.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (n == -1) throw new EOFException(response.fileName + " ended " + remaining + " bytes early");
+            out.write(buffer, 0, n);
+            remaining -= n;
+        }
+        String end = expect(String.class);
+        if (!end.equals("done")) throw new IOException("server: " + end);
+        return response.fileName;
+    }
+
+    // the IDs of the shared files, handy for picking something to download
+    public List<String> sharedFileIDs() throws IOException {
+        List<String> ids = new ArrayList<>();
+        for (FileInfo f : list(ListRequest.SHARED_FILES).files) ids.add(f.fileID);
+        return ids;
+    }
+
+    public void logout() throws IOException {
+        networkUtil.write(new Request(RequestType.LOGOUT));
+        try {
+            read(); // "ok"
+        } finally {
+            networkUtil.closeConnection();
+        }
+    }
+
+    // drops the connection without logging out, the server notices and marks the user inactive
+    @Override
+    public void close() throws IOException {
+        networkUtil.closeConnection();
+    }
+}
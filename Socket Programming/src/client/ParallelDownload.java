@@ -0,0 +1,74 @@
+package client;
+
+import util.DataConnectionRequest;
+import util.FileDownloadRequestResponse;
+import util.NetworkUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+
+// fetches the ranges of a parallel download, each over its own connection and thread
+// the part file is sized up front and every range is written at its own position, so no connection waits for another
+public class ParallelDownload {
+    // returns true once every range is in the part file, a failed range is fetched again up to retries times
+    public static boolean fetch(String serverAddress, int serverPort, FileDownloadRequestResponse response, File part, int retries) throws IOException {
+        long[] ranges = response.ranges;
+        int count = ranges.length - 1;
+        boolean[] fetched = new boolean[count];
+
+        try (RandomAccessFile file = new RandomAccessFile(part, "rw")) {
+            file.setLength(response.fileSize);
+            FileChannel fileChannel = file.getChannel();
+
+            Thread[] workers = new Thread[count];
+            for (int i = 0; i < count; i++) {
+                final int range = i;
+                workers[i] = new Thread(() -> {
+                    for (int attempt = 0; attempt <= retries && !fetched[range]; attempt++) {
+                        fetched[range] = fetchRange(serverAddress, serverPort, response.token, range, ranges[range], ranges[range + 1] - ranges[range], fileChannel);
+                    }
+                }, "download-range-" + i);
+                workers[i].start();
+            }
+            for (Thread worker : workers) {
+                try {
+                    worker.join(); // join also makes the fetched[] writes visible here
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+
+        for (boolean ok : fetched) if (!ok) return false;
+        return true;
+    }
+
+    private static boolean fetchRange(String serverAddress, int serverPort, String token, int range, long start, long length, FileChannel fileChannel) {
+        NetworkUtil networkUtil = null;
+        try {
+            networkUtil = new NetworkUtil(serverAddress, serverPort);
+            networkUtil.setTimeout(30000);
+            networkUtil.write(new DataConnectionRequest(token, range));
+            String reply = (String) networkUtil.read();
+            if (!reply.equals("ok")) {
+                System.out.println("Range " + range + " refused: " + reply);
+                return false;
+            }
+            networkUtil.receiveFile(fileChannel, start, length); // positional, other ranges write the same channel meanwhile
+            return true;
+        } catch (IOException | ClassNotFoundException e) {
+            System.out.println("Range " + range + " interrupted: " + e);
+            return false;
+        } finally {
+            if (networkUtil != null) {
+                try {
+                    networkUtil.closeConnection();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package client;
+
+import util.NetworkUtil;
+import util.UserMessage;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+// reads the control connection in the background, so pushed messages show up while the menu waits for input
+// the first object that is not a UserMessage is a reply, it is handed to the main thread, which then reads the
+// connection itself (acks, raw file bytes, more replies) until release() at the end of the command
+public class PushReader implements Runnable {
+    private NetworkUtil networkUtil;
+    private ArrayBlockingQueue<Object> replies = new ArrayBlockingQueue<>(1);
+    private Semaphore released = new Semaphore(0); // the main thread is done with the connection
+    private boolean owned = false; // only touched by the main thread
+    private volatile boolean stopped = false;
+    private volatile Exception failure;
+
+    public PushReader(NetworkUtil networkUtil) {
+        this.networkUtil = networkUtil;
+    }
+
+    public void start() {
+        Thread thread = new Thread(this, "push-reader");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // the next reply, pushed messages that come first are shown and skipped
+    public Object read() throws IOException, ClassNotFoundException {
+        if (owned) {
+            while (true) {
+                Object o = networkUtil.read();
+                if (!(o instanceof UserMessage)) return o;
+                show((UserMessage) o); // the server pushes only between requests, so one can show up right before a reply
+            }
+        }
+        Object o;
+        try {
+            o = replies.take();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+        if (o == failure) {
+            replies.offer(o); // every later read fails the same way
+            if (failure instanceof IOException) throw (IOException) failure;
+            throw (ClassNotFoundException) failure;
+        }
+        owned = true;
+        return o;
+    }
+
+    // the command is over, the background thread reads again
+    public void release() throws IOException {
+        if (!owned) return;
+        owned = false;
+        networkUtil.setTimeout(0); // a transfer may have set one, the background read waits as long as it takes
+        released.release();
+    }
+
+    // before the connection is closed on purpose, the background thread ends with it
+    public void stop() {
+        stopped = true;
+        released.release(); // in case it waits for a command that will never end
+    }
+
+    @Override
+    public void run() {
+        while (!stopped) {
+            Object o;
+            try {
+                o = networkUtil.read();
+            } catch (SocketTimeoutException e) {
+                continue;
+            } catch (IOException | ClassNotFoundException e) {
+                failure = e;
+                replies.offer(e);
+                return;
+            }
+            if (o instanceof UserMessage) {
+                show((UserMessage) o);
+                continue;
+            }
+            try {
+                replies.put(o);
+                released.acquire();
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private static void show(UserMessage m) {
+        System.out.println();
+        System.out.println("New message" + (m.isRequest ? " (file request)" : "") + ": " + m.msg);
+    }
+}
@@ -0,0 +1,73 @@
+package server;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+
+// the metrics snapshot for whoever connects to the admin port, which only listens on the loopback address
+// answers plain http (curl http://127.0.0.1:33335/metrics) and a bare connection alike, one snapshot and the connection is closed
+// one thread serves the connections in turn, it is for an operator or a scraper and not on any client's path
+public class AdminEndpoint implements Runnable {
+    private ServerSocket serverSocket;
+    private Metrics metrics;
+
+    public AdminEndpoint(int port, Metrics metrics) throws IOException {
+        serverSocket = new ServerSocket(port, 8, InetAddress.getLoopbackAddress());
+        this.metrics = metrics;
+    }
+
+    public void start() {
+        Thread thread = new Thread(this, "admin");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try (Socket socket = serverSocket.accept()) {
+                socket.setSoTimeout(2000);
+                serve(socket);
+            } catch (IOException e) {
+                if (serverSocket.isClosed()) return;
+            }
+        }
+    }
+
+    private void serve(Socket socket) throws IOException {
+        PushbackInputStream in = new PushbackInputStream(socket.getInputStream());
+        OutputStream out = socket.getOutputStream();
+        // an http client sends its request first, a bare connection (nc) sends nothing and gets the snapshot after a moment
+        boolean http = false;
+        if (hasInput(socket, in)) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.US_ASCII));
+            String line = reader.readLine();
+            http = line != null && line.startsWith("GET ");
+            while (http && line != null && !line.isEmpty()) line = reader.readLine(); // the rest of the headers
+        }
+        byte[] body = metrics.snapshot().getBytes(StandardCharsets.UTF_8);
+        if (http) {
+            String header = "HTTP/1.0 200 OK\r\nContent-Type: text/plain; charset=utf-8\r\nContent-Length: " + body.length + "\r\n\r\n";
+            out.write(header.getBytes(StandardCharsets.US_ASCII));
+        }
+        out.write(body);
+        out.flush();
+    }
+
+    private static boolean hasInput(Socket socket, PushbackInputStream in) throws IOException {
+        socket.setSoTimeout(200);
+        try {
+            int b = in.read();
+            if (b == -1) return false;
+            in.unread(b);
+            return true;
+        } catch (SocketTimeoutException e) {
+            return false;
+        } finally {
+            socket.setSoTimeout(2000);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package server;
+
+import java.util.AbstractCollection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+// an append-only list that readers index without locking, each item carries the catalog version it was added at
+// items live in segments that double in size (8, 16, 32, ...), so appending never copies and a short list stays small
+// versions only grow along the list, so "everything after version v" is a binary search away
+// appends must be serialized by the caller, readers see a prefix of the list
+public class AppendList<T> extends AbstractCollection<T> {
+    private static final int BASE = 8;
+
+    private final Object[][] items = new Object[32][];
+    private final long[][] versions = new long[32][];
+    private volatile int size;
+
+    public void append(T item, long version) {
+        int n = size;
+        int segment = segment(n), offset = n - start(segment);
+        if (items[segment] == null) {
+            items[segment] = new Object[BASE << segment];
+            versions[segment] = new long[BASE << segment];
+        }
+        items[segment][offset] = item;
+        versions[segment][offset] = version;
+        size = n + 1; // publishes the item
+    }
+
+    @SuppressWarnings("unchecked")
+    public T get(int index) {
+        int segment = segment(index);
+        return (T) items[segment][index - start(segment)];
+    }
+
+    public long version(int index) {
+        int segment = segment(index);
+        return versions[segment][index - start(segment)];
+    }
+
+    // index of the first item added after version, size() if there is none
+    public int firstAfter(long version) {
+        int lo = 0, hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (version(mid) <= version) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    // walks the items that were there when it was created
+    @Override
+    public Iterator<T> iterator() {
+        int end = size;
+        return new Iterator<T>() {
+            int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                return next < end;
+            }
+
+            @Override
+            public T next() {
+                if (next >= end) throw new NoSuchElementException();
+                return get(next++);
+            }
+        };
+    }
+
+    private static int segment(int index) {
+        return 31 - Integer.numberOfLeadingZeros(index / BASE + 1);
+    }
+
+    private static int start(int segment) {
+        return BASE * ((1 << segment) - 1);
+    }
+}
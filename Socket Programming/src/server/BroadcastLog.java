@@ -0,0 +1,68 @@
+package server;
+
+import util.UserMessage;
+
+// every broadcast is stored here once, users read it through their own cursor instead of getting a copy each
+// an entry counts the users that still have to read it, the oldest entries are dropped once that reaches zero,
+// so the log only holds what someone has not read yet
+// not thread safe, Catalog guards it
+public class BroadcastLog {
+    public static class Entry {
+        public UserMessage m;
+        public String except; // the sender, it does not get its own broadcast
+        public int refs; // users whose cursor has not passed this entry yet
+
+        Entry(UserMessage m, String except, int refs) {
+            this.m = m;
+            this.except = except;
+            this.refs = refs;
+        }
+    }
+
+    private Entry[] ring = new Entry[64];
+    private long head = 0, tail = 0; // entries head..tail-1 are kept, entry n lives at ring[n % ring.length]
+
+    // appends in O(1), returns the position of the new entry
+    public long publish(UserMessage m, String except, int refs) {
+        if (tail - head == ring.length) grow();
+        ring[(int) (tail % ring.length)] = new Entry(m, except, refs);
+        return tail++;
+    }
+
+    public Entry get(long position) {
+        if (position < head || position >= tail) return null;
+        return ring[(int) (position % ring.length)];
+    }
+
+    // one reader is past the entry, the head moves on while nobody needs it anymore
+    public void release(long position) {
+        Entry entry = get(position);
+        if (entry != null && entry.refs > 0) entry.refs--;
+        trim();
+    }
+
+    public void trim() {
+        while (head < tail && ring[(int) (head % ring.length)].refs <= 0) {
+            ring[(int) (head % ring.length)] = null;
+            head++;
+        }
+    }
+
+    public long head() {
+        return head;
+    }
+
+    public long tail() {
+        return tail;
+    }
+
+    public int size() {
+        return (int) (tail - head);
+    }
+
+    private void grow() {
+        Entry[] bigger = new Entry[ring.length * 2];
+        for (long n = head; n < tail; n++) bigger[(int) (n % bigger.length)] = ring[(int) (n % ring.length)];
+        ring = bigger;
+    }
+}
@@ -0,0 +1,260 @@
+package server;
+
+import util.FileInfo;
+import util.FileRequest;
+import util.UserMessage;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// users, files, file requests and mailboxes, shared by every session thread
+// all lookups are hash lookups, and every structure is concurrent, so listing or downloading never waits for an upload
+// the secondary indexes (per owner, shared, per requester) are only appended to, so they never disagree with the primary maps
+// every addition gets the next catalog version, the lists keep it so listings can page and send deltas by version
+// a mailbox is a cursor into the shared broadcast log plus the messages sent to that user alone,
+// so a broadcast costs the same with ten users or a million, and the messages share one lock since they are cheap
+public class Catalog {
+    public final long epoch = new Random().nextLong() & Long.MAX_VALUE; // versions mean nothing across catalogs
+    private final Object writeLock = new Object(); // a version and the appends that carry it happen together
+    private long version;
+
+    private Set<String> users = ConcurrentHashMap.newKeySet();
+    private AppendList<String> userOrder = new AppendList<>(); // registration order, for listing
+
+    private ConcurrentHashMap<String, FileInfo> filesByID = new ConcurrentHashMap<>();
+    private ConcurrentHashMap<String, AppendList<FileInfo>> filesByOwner = new ConcurrentHashMap<>();
+    private AppendList<FileInfo> sharedFiles = new AppendList<>();
+
+    private ConcurrentHashMap<String, FileRequest> requestsByID = new ConcurrentHashMap<>();
+    private ConcurrentHashMap<String, AppendList<FileRequest>> requestsByRequester = new ConcurrentHashMap<>();
+    private AppendList<FileRequest> requests = new AppendList<>();
+
+    private SearchIndex<FileInfo> fileSearch = new SearchIndex<>(f -> f.fileName); // shared files only
+    private SearchIndex<FileRequest> requestSearch = new SearchIndex<>(r -> r.description);
+
+    public static class Direct {
+        public UserMessage m;
+        public long tail; // end of the broadcast log when it was sent, broadcasts before that come first
+
+        public Direct(UserMessage m, long tail) {
+            this.m = m;
+            this.tail = tail;
+        }
+    }
+
+    public static class Inbox {
+        public long cursor; // next broadcast this user has not read
+        public ArrayDeque<Direct> directs; // null while empty, most users never get one
+
+        Inbox(long cursor) {
+            this.cursor = cursor;
+        }
+    }
+
+    private final Object messageLock = new Object();
+    private BroadcastLog log = new BroadcastLog();
+    private HashMap<String, Inbox> inboxes = new HashMap<>();
+
+    // returns true if the user is new
+    public boolean registerUser(String username) {
+        // mailbox first, so a broadcast that already sees the user never finds it missing
+        synchronized (messageLock) {
+            inboxes.putIfAbsent(username, new Inbox(log.tail())); // earlier broadcasts were not meant for this user
+        }
+        if (!users.add(username)) return false;
+        synchronized (writeLock) {
+            userOrder.append(username, ++version);
+        }
+        return true;
+    }
+
+    public boolean isRegistered(String username) {
+        return users.contains(username);
+    }
+
+    public List<String> getUsers() {
+        return new ArrayList<>(userOrder);
+    }
+
+    public AppendList<String> getRegisteredUsers() {
+        return userOrder;
+    }
+
+    public int userCount() {
+        return users.size();
+    }
+
+    public void addFile(FileInfo fileInfo) {
+        filesByID.put(fileInfo.fileID, fileInfo);
+        AppendList<FileInfo> owned = filesByOwner.computeIfAbsent(fileInfo.ownerName, k -> new AppendList<>());
+        synchronized (writeLock) {
+            long v = ++version;
+            owned.append(fileInfo, v);
+            if (!fileInfo.isPrivate) sharedFiles.append(fileInfo, v);
+        }
+        if (!fileInfo.isPrivate) fileSearch.add(fileInfo);
+    }
+
+    public FileInfo getFile(String fileID) {
+        return fileID == null ? null : filesByID.get(fileID);
+    }
+
+    public AppendList<FileInfo> getFilesOf(String owner) {
+        AppendList<FileInfo> files = filesByOwner.get(owner);
+        return files == null ? new AppendList<>() : files;
+    }
+
+    public Collection<FileInfo> getFiles() {
+        return filesByID.values();
+    }
+
+    public AppendList<FileInfo> getSharedFiles() {
+        return sharedFiles;
+    }
+
+    public int fileCount() {
+        return filesByID.size();
+    }
+
+    public void addFileRequest(FileRequest fileRequest) {
+        requestsByID.put(fileRequest.requestID, fileRequest);
+        AppendList<FileRequest> mine = requestsByRequester.computeIfAbsent(fileRequest.requester, k -> new AppendList<>());
+        synchronized (writeLock) {
+            long v = ++version;
+            mine.append(fileRequest, v);
+            requests.append(fileRequest, v);
+        }
+        requestSearch.add(fileRequest);
+    }
+
+    public FileRequest getFileRequest(String requestID) {
+        return requestID == null ? null : requestsByID.get(requestID);
+    }
+
+    public AppendList<FileRequest> getFileRequests() {
+        return requests;
+    }
+
+    public AppendList<FileRequest> getFileRequestsBy(String requester) {
+        AppendList<FileRequest> mine = requestsByRequester.get(requester);
+        return mine == null ? new AppendList<>() : mine;
+    }
+
+    public List<FileInfo> searchFiles(String query, int limit) {
+        return fileSearch.search(query, limit);
+    }
+
+    public List<FileRequest> searchFileRequests(String query, int limit) {
+        return requestSearch.search(query, limit);
+    }
+
+    public int requestCount() {
+        return requestsByID.size();
+    }
+
+    public void addMessage(String username, UserMessage m) {
+        synchronized (messageLock) {
+            Inbox inbox = inboxes.get(username);
+            if (inbox == null) return;
+            if (inbox.directs == null) inbox.directs = new ArrayDeque<>();
+            inbox.directs.add(new Direct(m, log.tail()));
+        }
+    }
+
+    // one entry in the log for everyone except the sender, each reader releases it once
+    public void broadcast(String except, UserMessage m) {
+        synchronized (messageLock) {
+            int readers = inboxes.size() - (except != null && inboxes.containsKey(except) ? 1 : 0);
+            if (readers > 0) log.publish(m, except, readers);
+        }
+    }
+
+    public List<UserMessage> peekMessages(String username) {
+        synchronized (messageLock) {
+            return read(username, Integer.MAX_VALUE, false);
+        }
+    }
+
+    // removes and returns everything in the mailbox, a message added meanwhile is either taken now or kept for next time
+    public List<UserMessage> takeMessages(String username) {
+        return takeMessages(username, Integer.MAX_VALUE);
+    }
+
+    // the oldest max messages, the rest stay in the mailbox
+    public List<UserMessage> takeMessages(String username, int max) {
+        synchronized (messageLock) {
+            return read(username, max, true);
+        }
+    }
+
+    // broadcasts and direct messages merged in the order they were sent
+    private List<UserMessage> read(String username, int max, boolean take) {
+        List<UserMessage> messages = new ArrayList<>();
+        Inbox inbox = inboxes.get(username);
+        if (inbox == null) return messages;
+        Iterator<Direct> directs = inbox.directs == null ? Collections.emptyIterator() : inbox.directs.iterator();
+        Direct direct = directs.hasNext() ? directs.next() : null;
+        long position = inbox.cursor;
+        while (messages.size() < max) {
+            position = Math.max(position, log.head()); // a release may have dropped our own broadcasts in front of us
+            while (position < log.tail() && username.equals(log.get(position).except)) position++;
+            if (position < log.tail() && (direct == null || position < direct.tail)) {
+                messages.add(log.get(position).m);
+                if (take) log.release(position);
+                position++;
+            } else if (direct != null) {
+                messages.add(direct.m);
+                if (take) directs.remove();
+                direct = directs.hasNext() ? directs.next() : null;
+            } else {
+                break;
+            }
+        }
+        if (take) {
+            inbox.cursor = position;
+            if (inbox.directs != null && inbox.directs.isEmpty()) inbox.directs = null;
+            log.trim();
+        }
+        return messages;
+    }
+
+    // for snapshots, which work on their own copy of the catalog
+    public BroadcastLog getBroadcastLog() {
+        return log;
+    }
+
+    public Inbox getInbox(String username) {
+        return inboxes.get(username);
+    }
+
+    // a broadcast read back from a snapshot, restoreInbox() counts its readers
+    // entries nobody counts stay until the next read trims them
+    public void restoreBroadcast(String except, UserMessage m) {
+        synchronized (messageLock) {
+            log.publish(m, except, 0);
+        }
+    }
+
+    public void restoreInbox(String username, long cursor, List<Direct> directs) {
+        synchronized (messageLock) {
+            Inbox inbox = inboxes.get(username);
+            if (inbox == null) return;
+            inbox.cursor = Math.max(cursor, log.head());
+            for (long p = inbox.cursor; p < log.tail(); p++) {
+                BroadcastLog.Entry entry = log.get(p);
+                if (!username.equals(entry.except)) entry.refs++;
+            }
+            if (directs.isEmpty()) return;
+            if (inbox.directs == null) inbox.directs = new ArrayDeque<>();
+            inbox.directs.addAll(directs);
+        }
+    }
+}
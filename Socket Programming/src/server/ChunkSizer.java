@@ -0,0 +1,31 @@
+package server;
+
+// size of the next chunk of an object stream download, from the rate the previous chunks went out at
+// a chunk should take about TARGET_NANOS to send: on a fast link that is big enough for the per chunk overhead to vanish,
+// on a slow or rate limited one small enough that bytes keep flowing and the transfer scheduler gets a say often
+// starts at the smallest size and at most doubles per chunk, like slow start, but shrinks to the target right away
+public class ChunkSizer {
+    private static final long TARGET_NANOS = 5000000;
+
+    private int min, max, size;
+    private long last = System.nanoTime();
+
+    public ChunkSizer(int min, int max) {
+        this.min = min;
+        this.max = Math.max(min, max);
+        size = min;
+    }
+
+    public int next() {
+        return size;
+    }
+
+    // the previous chunk, n bytes, is out (for the event loops: queued)
+    public void sent(int n) {
+        long now = System.nanoTime();
+        long took = Math.max(now - last, 1000);
+        last = now;
+        long target = (long) ((double) n * TARGET_NANOS / took);
+        size = (int) Math.max(min, Math.min(Math.min(target, 2L * size), max));
+    }
+}
@@ -0,0 +1,29 @@
+package server;
+
+import util.FileInfo;
+
+// a parallel download handed out on the control connection, the data connections present its token to fetch their range
+public class DownloadGrant {
+    public String token;
+    public String username; // who asked for it, the ranges count against that user's rate limit
+    public FileInfo fileInfo;
+    public long[] bounds; // range i is [bounds[i], bounds[i + 1])
+    public long expiresAt;
+    public boolean cached; // the ranges are served from the file cache, decided once for the whole download
+
+    public DownloadGrant(String token, String username, FileInfo fileInfo, long[] bounds, long expiresAt) {
+        this.token = token;
+        this.username = username;
+        this.fileInfo = fileInfo;
+        this.bounds = bounds;
+        this.expiresAt = expiresAt;
+    }
+
+    public int rangeCount() {
+        return bounds.length - 1;
+    }
+
+    public boolean hasRange(int range) {
+        return range >= 0 && range < rangeCount();
+    }
+}
@@ -0,0 +1,79 @@
+package server;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// one selector thread, owns every NioConnection registered with it
+public class EventLoop implements Runnable {
+    private Server server;
+    private Selector selector;
+    private Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>(); // accepted, not yet registered
+    private Queue<Runnable> tasks = new ConcurrentLinkedQueue<>(); // handed over from other threads
+
+    public EventLoop(Server server) throws IOException {
+        this.server = server;
+        this.selector = Selector.open();
+    }
+
+    // called from the accept thread
+    public void register(SocketChannel channel) {
+        pending.add(channel);
+        selector.wakeup();
+    }
+
+    // runs the task on this loop's thread, connections are only ever touched from there
+    public void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                Log.warn("Selector failed: {}", e);
+                return;
+            }
+
+            SocketChannel channel;
+            while ((channel = pending.poll()) != null) {
+                try {
+                    channel.configureBlocking(false);
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    NioConnection connection = new NioConnection(server, this, channel, key);
+                    key.attach(connection);
+                    connection.start();
+                } catch (IOException e) {
+                    Log.warn("Could not register connection: {}", e);
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+
+            Runnable task;
+            while ((task = tasks.poll()) != null) task.run();
+
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                NioConnection connection = (NioConnection) key.attachment();
+                try {
+                    if (key.isValid() && key.isWritable()) connection.onWritable();
+                    if (key.isValid() && key.isReadable()) connection.onReadable();
+                } catch (Exception e) {
+                    connection.onDisconnect(e);
+                }
+            }
+        }
+    }
+}
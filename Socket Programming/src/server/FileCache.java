@@ -0,0 +1,131 @@
+package server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// keeps blocks of hot files in off-heap buffers so popular downloads stop going back to disk
+// a file is only cached from its second download on (or right away if it answers a file request),
+// so one big download that nobody asks for again cannot push out everything else
+// blocks are evicted least recently used first once the budget is full
+public class FileCache {
+    public static final int BLOCK_SIZE = 1 << 18;
+    private static final int SEEN_FILES = 4096; // files remembered for admission
+
+    private long capacity, used;
+    private LinkedHashMap<String, ByteBuffer> blocks = new LinkedHashMap<>(16, 0.75f, true); // "path#block" -> bytes
+    private LinkedHashMap<String, Integer> seen = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+            return size() > SEEN_FILES;
+        }
+    };
+    public long hits, misses, bytesFromCache, evictions;
+
+    public FileCache(long capacity) {
+        this.capacity = capacity;
+    }
+
+    // called once per download, true if this one should go through the cache
+    public synchronized boolean admit(Path path, long fileSize) {
+        if (fileSize > capacity / 4) return false; // a file this large would mostly evict itself
+        int downloads = seen.merge(path.toString(), 1, Integer::sum);
+        return downloads >= 2;
+    }
+
+    // the next download of this file is cached already, for files many users are waiting for
+    public synchronized void promote(Path path) {
+        seen.put(path.toString(), 1);
+    }
+
+    // a read-only view of the file from position to the end of its block, read from disk on a miss
+    public ByteBuffer get(Path path, long position) throws IOException {
+        long index = position / BLOCK_SIZE;
+        String key = path + "#" + index;
+        ByteBuffer block;
+        synchronized (this) {
+            block = blocks.get(key);
+            if (block != null) {
+                hits++;
+            } else {
+                misses++;
+            }
+        }
+
+        // the disk read happens outside the lock, two threads missing the same block both read it and one copy wins
+        if (block == null) {
+            block = load(path, index * BLOCK_SIZE);
+            synchronized (this) {
+                ByteBuffer raced = blocks.get(key);
+                if (raced != null) {
+                    block = raced;
+                } else {
+                    blocks.put(key, block);
+                    used += block.capacity();
+                    evict();
+                }
+            }
+        }
+
+        ByteBuffer view = block.asReadOnlyBuffer();
+        int start = (int) (position - index * BLOCK_SIZE);
+        if (start >= view.limit()) throw new EOFException("file is shorter than expected");
+        view.position(start);
+        return view;
+    }
+
+    // counts bytes handed out from cached blocks, the callers know how much of a view they used
+    public synchronized void served(long bytes) {
+        bytesFromCache += bytes;
+    }
+
+    // drops every block of the file, for when its content changes on disk
+    public synchronized void invalidate(Path path) {
+        String prefix = path + "#";
+        Iterator<Map.Entry<String, ByteBuffer>> it = blocks.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, ByteBuffer> entry = it.next();
+            if (entry.getKey().startsWith(prefix)) {
+                used -= entry.getValue().capacity();
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized long used() {
+        return used;
+    }
+
+    public synchronized String stats() {
+        long lookups = hits + misses;
+        return "hits " + hits + ", misses " + misses + ", hit ratio " + (lookups == 0 ? 0 : hits * 100 / lookups) + "%, "
+                + bytesFromCache + " bytes from cache, " + evictions + " evictions, " + used + " of " + capacity + " bytes used";
+    }
+
+    private void evict() {
+        Iterator<ByteBuffer> it = blocks.values().iterator();
+        while (used > capacity && it.hasNext()) {
+            used -= it.next().capacity();
+            it.remove();
+            evictions++;
+        }
+    }
+
+    private static ByteBuffer load(Path path, long start) throws IOException {
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            int length = (int) Math.max(0, Math.min(BLOCK_SIZE, file.size() - start));
+            ByteBuffer block = ByteBuffer.allocateDirect(length);
+            while (block.hasRemaining()) {
+                if (file.read(block, start + block.position()) == -1) throw new EOFException("file is shorter than expected");
+            }
+            block.flip();
+            return block;
+        }
+    }
+}
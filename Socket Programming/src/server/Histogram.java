@@ -0,0 +1,79 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+// counts of non negative values (latencies in ns, rates in bytes per second) in log-linear buckets, like HdrHistogram:
+// every power of two is split into SUB equal buckets, so a value is known to within 1/SUB of itself (about 3%)
+// whatever its size, in a fixed array; recording is one atomic increment plus two adders, no lock and no allocation
+// values below SUB get a bucket each
+public class Histogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB = 1 << SUB_BITS;
+
+    private AtomicLongArray counts = new AtomicLongArray((64 - SUB_BITS) * SUB);
+    private LongAdder count = new LongAdder();
+    private LongAdder sum = new LongAdder();
+    private LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public void record(long value) {
+        if (value < 0) value = 0;
+        counts.incrementAndGet(index(value));
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    private static int index(long value) {
+        if (value < SUB) return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS; // the bits below the SUB_BITS that tell the bucket
+        return (shift + 1) * SUB + (int) (value >>> shift) - SUB;
+    }
+
+    // the largest value that falls in the bucket, what a percentile reports, as HdrHistogram does
+    private static long highest(int index) {
+        if (index < SUB) return index;
+        int shift = index / SUB - 1;
+        long sub = index % SUB + SUB;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    public long count() {
+        return count.sum();
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    public double mean() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    // the values at the given percentiles (0 to 100), from one pass over a copy of the buckets,
+    // records that land meanwhile may or may not be in it
+    public long[] percentiles(double... ps) {
+        long[] copy = new long[counts.length()];
+        long total = 0;
+        for (int i = 0; i < copy.length; i++) {
+            copy[i] = counts.get(i);
+            total += copy[i];
+        }
+        long[] values = new long[ps.length];
+        if (total == 0) return values;
+        for (int p = 0; p < ps.length; p++) {
+            long rank = Math.max(1, (long) Math.ceil(ps[p] / 100 * total));
+            long seen = 0;
+            for (int i = 0; i < copy.length; i++) {
+                seen += copy[i];
+                if (seen >= rank) {
+                    values[p] = Math.min(highest(i), max.get());
+                    break;
+                }
+            }
+        }
+        return values;
+    }
+}
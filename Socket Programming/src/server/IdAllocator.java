@@ -0,0 +1,61 @@
+package server;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+// hands out increasing ids that stay unique across restarts
+// ids are reserved on disk a block at a time, so the common path is a single atomic increment
+// after a crash the unused rest of the last block is skipped, never reused
+public class IdAllocator {
+    private static final long BLOCK = 1000;
+
+    private Path file;
+    private AtomicLong last;
+    private volatile long limit; // every id below this has been reserved on disk
+
+    public IdAllocator(Path file) throws IOException {
+        this.file = file;
+        long persisted = 0;
+        if (Files.exists(file)) {
+            persisted = Long.parseLong(new String(Files.readAllBytes(file), StandardCharsets.UTF_8).trim());
+        }
+        last = new AtomicLong(persisted);
+        limit = persisted;
+    }
+
+    public long next() {
+        long id = last.incrementAndGet();
+        if (id >= limit) reserveUpTo(id);
+        return id;
+    }
+
+    private synchronized void reserveUpTo(long id) {
+        if (id < limit) return; // another thread reserved the next block meanwhile
+        long newLimit = limit;
+        while (id >= newLimit) newLimit += BLOCK;
+        try {
+            persist(newLimit);
+        } catch (IOException e) {
+            throw new UncheckedIOException("could not reserve ids in " + file, e);
+        }
+        limit = newLimit;
+    }
+
+    // write, fsync, then rename over the old value, so a crash leaves either the old or the new limit
+    private void persist(long value) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.write(ByteBuffer.wrap(Long.toString(value).getBytes(StandardCharsets.UTF_8)));
+            channel.force(true);
+        }
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -0,0 +1,273 @@
+package server;
+
+import util.RequestType;
+
+import java.io.PrintStream;
+import java.time.Instant;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// the server's log: a session thread or event loop puts a message into a ring of preallocated entries and goes on,
+// one writer thread formats the messages and prints them in batches, so no request waits for the console lock
+// a message is a template with up to three {} placeholders and their values, filled in by the writer, so a message of a
+// disabled level costs a comparison and an enabled one no string building on the caller's thread; the values are
+// printed later, pass values and not objects that change meanwhile
+// an event also carries the standard fields, user, file ID, request type, bytes and duration, printed as key=value
+// the ring is a bounded multi-producer queue (Vyukov): a producer claims a slot with one CAS on the tail and publishes it
+// by setting the slot's sequence, the writer frees it the same way; a full ring drops the message and counts it,
+// logging never blocks a request
+public class Log {
+    public enum Level {DEBUG, INFO, WARN, ERROR}
+
+    public static volatile Level level = Level.INFO;
+    public static volatile boolean async = true; // false prints on the caller's thread, as System.out.println did, for comparison
+
+    private static final int SIZE = 1 << 14; // entries in the ring
+    private static final int BATCH = 256; // entries printed at once
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("HH:mm:ss.SSS");
+    private static final ZoneId ZONE = ZoneId.systemDefault();
+
+    private static class Entry {
+        volatile long seq; // == position: free for the producer of that position, position + 1: published for the writer
+        Level level;
+        long time;
+        String thread, template;
+        Object a, b, c;
+        boolean event;
+        String user, fileID;
+        RequestType type;
+        long bytes, nanos;
+
+        void clear() {
+            template = null;
+            a = b = c = null;
+            user = fileID = null;
+            type = null;
+        }
+    }
+
+    private static final Entry[] ring = new Entry[SIZE];
+    private static final AtomicLong tail = new AtomicLong(); // next position to claim
+    private static long head; // next position to print, writer thread only
+    private static volatile long printed; // position up to which the writer is done
+    private static final AtomicLong dropped = new AtomicLong();
+    private static volatile boolean sleeping; // the writer found the ring empty and parks until a producer unparks it
+    private static final Thread writer;
+
+    static {
+        for (int i = 0; i < SIZE; i++) {
+            ring[i] = new Entry();
+            ring[i].seq = i;
+        }
+        writer = new Thread(Log::writeLoop, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "log-flush"));
+    }
+
+    public static boolean enabled(Level l) {
+        return l.ordinal() >= level.ordinal();
+    }
+
+    public static void debug(String template) {
+        if (enabled(Level.DEBUG)) put(Level.DEBUG, template, null, null, null);
+    }
+
+    public static void debug(String template, Object a) {
+        if (enabled(Level.DEBUG)) put(Level.DEBUG, template, a, null, null);
+    }
+
+    public static void debug(String template, Object a, Object b) {
+        if (enabled(Level.DEBUG)) put(Level.DEBUG, template, a, b, null);
+    }
+
+    public static void debug(String template, Object a, Object b, Object c) {
+        if (enabled(Level.DEBUG)) put(Level.DEBUG, template, a, b, c);
+    }
+
+    public static void info(String template) {
+        if (enabled(Level.INFO)) put(Level.INFO, template, null, null, null);
+    }
+
+    public static void info(String template, Object a) {
+        if (enabled(Level.INFO)) put(Level.INFO, template, a, null, null);
+    }
+
+    public static void info(String template, Object a, Object b) {
+        if (enabled(Level.INFO)) put(Level.INFO, template, a, b, null);
+    }
+
+    public static void info(String template, Object a, Object b, Object c) {
+        if (enabled(Level.INFO)) put(Level.INFO, template, a, b, c);
+    }
+
+    public static void warn(String template) {
+        if (enabled(Level.WARN)) put(Level.WARN, template, null, null, null);
+    }
+
+    public static void warn(String template, Object a) {
+        if (enabled(Level.WARN)) put(Level.WARN, template, a, null, null);
+    }
+
+    public static void warn(String template, Object a, Object b) {
+        if (enabled(Level.WARN)) put(Level.WARN, template, a, b, null);
+    }
+
+    public static void warn(String template, Object a, Object b, Object c) {
+        if (enabled(Level.WARN)) put(Level.WARN, template, a, b, c);
+    }
+
+    public static void error(String template, Object a) {
+        if (enabled(Level.ERROR)) put(Level.ERROR, template, a, null, null);
+    }
+
+    // a message with the standard fields, null or -1 for those that do not apply; nanos is a duration
+    public static void event(Level l, String message, String user, String fileID, RequestType type, long bytes, long nanos) {
+        if (!enabled(l)) return;
+        if (!async) {
+            StringBuilder s = new StringBuilder();
+            fields(s.append(message), user, fileID, type, bytes, nanos);
+            System.out.println(s);
+            return;
+        }
+        Entry e = claim();
+        if (e == null) return;
+        e.level = l;
+        e.template = message;
+        e.event = true;
+        e.user = user;
+        e.fileID = fileID;
+        e.type = type;
+        e.bytes = bytes;
+        e.nanos = nanos;
+        publish(e);
+    }
+
+    private static void put(Level l, String template, Object a, Object b, Object c) {
+        if (!async) {
+            System.out.println(format(new StringBuilder(), template, a, b, c));
+            return;
+        }
+        Entry e = claim();
+        if (e == null) return;
+        e.level = l;
+        e.template = template;
+        e.a = a;
+        e.b = b;
+        e.c = c;
+        e.event = false;
+        publish(e);
+    }
+
+    // the slot at the tail, null if the ring is full
+    private static Entry claim() {
+        while (true) {
+            long pos = tail.get();
+            Entry e = ring[(int) (pos & (SIZE - 1))];
+            long dif = e.seq - pos;
+            if (dif == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    e.time = System.currentTimeMillis();
+                    e.thread = Thread.currentThread().getName();
+                    return e;
+                }
+            } else if (dif < 0) {
+                dropped.incrementAndGet();
+                return null;
+            }
+            // another producer took this slot, try the next tail
+        }
+    }
+
+    private static void publish(Entry e) {
+        e.seq = e.seq + 1;
+        if (sleeping) LockSupport.unpark(writer);
+    }
+
+    // waits until the writer has printed everything logged so far, at most a second
+    public static void flush() {
+        long target = tail.get();
+        long deadline = System.currentTimeMillis() + 1000;
+        while (printed < target && System.currentTimeMillis() < deadline) {
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(100000);
+        }
+    }
+
+    public static long dropped() {
+        return dropped.get();
+    }
+
+    private static void writeLoop() {
+        StringBuilder s = new StringBuilder(1 << 16);
+        long reported = 0;
+        while (true) {
+            int n = 0;
+            while (n < BATCH) {
+                Entry e = ring[(int) (head & (SIZE - 1))];
+                if (e.seq != head + 1) break;
+                append(s, e);
+                e.clear();
+                e.seq = head + SIZE; // free for the producer one lap later
+                head++;
+                n++;
+            }
+            long lost = dropped.get();
+            if (lost != reported) {
+                s.append("WARN ").append(lost - reported).append(" log messages dropped, the log could not keep up\n");
+                reported = lost;
+            }
+            if (s.length() > 0) {
+                PrintStream out = System.out;
+                out.print(s);
+                out.flush();
+                s.setLength(0);
+                printed = head;
+                continue;
+            }
+            printed = head;
+            sleeping = true;
+            if (ring[(int) (head & (SIZE - 1))].seq != head + 1) LockSupport.parkNanos(100000000); // a producer unparks it sooner
+            sleeping = false;
+        }
+    }
+
+    private static long stampTime = -1; // the writer formats the time once per millisecond
+    private static String stamp;
+
+    private static void append(StringBuilder s, Entry e) {
+        if (e.time != stampTime) {
+            stampTime = e.time;
+            stamp = TIME.format(LocalTime.ofInstant(Instant.ofEpochMilli(e.time), ZONE));
+        }
+        s.append(stamp).append(' ').append(e.level);
+        if (e.level == Level.INFO || e.level == Level.WARN) s.append(' ');
+        s.append(" [").append(e.thread).append("] ");
+        if (e.event) fields(s.append(e.template), e.user, e.fileID, e.type, e.bytes, e.nanos);
+        else format(s, e.template, e.a, e.b, e.c);
+        s.append('\n');
+    }
+
+    private static StringBuilder format(StringBuilder s, String template, Object a, Object b, Object c) {
+        int from = 0, arg = 0;
+        while (true) {
+            int at = template.indexOf("{}", from);
+            if (at < 0 || arg == 3) break;
+            s.append(template, from, at).append(arg == 0 ? a : arg == 1 ? b : c);
+            from = at + 2;
+            arg++;
+        }
+        return s.append(template, from, template.length());
+    }
+
+    private static void fields(StringBuilder s, String user, String fileID, RequestType type, long bytes, long nanos) {
+        if (user != null) s.append(" user=").append(user);
+        if (fileID != null) s.append(" file=").append(fileID);
+        if (type != null) s.append(" request=").append(type);
+        if (bytes >= 0) s.append(" bytes=").append(bytes);
+        if (nanos >= 0) s.append(" ms=").append(nanos / 1000000).append('.').append(nanos / 100000 % 10);
+    }
+}
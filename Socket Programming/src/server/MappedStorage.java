@@ -0,0 +1,128 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// files of at least MAP_THRESHOLD bytes are read through memory mapped regions of REGION bytes: a chunk is a copy out of
+// the page cache with no system call, and a file over 2 GB (the most one MappedByteBuffer holds) is just more regions,
+// mapped one after the other as a download gets there; a read far from the current region is a positional read instead
+// writes do not go through a mapping, StorageBench has them slower that way: every page of a fresh file faults in on first
+// touch, which costs more than the write calls it saves; they are gathered into a direct buffer and written at their
+// position once it is full, so a 1000 byte chunk is no system call of its own either
+// an upload of a large file preallocates: the temp file gets its announced size before the first byte and the file system
+// sees the whole length at once (it is sparse until written, java has no fallocate); close() cuts it back to what arrived
+// smaller files skip that and use positional FileChannel reads, setting up a mapping costs more than it saves on them
+// java has no public unmap, a region goes when the gc collects it, so they are few and large
+public class MappedStorage implements StorageEngine {
+    public static final long MAP_THRESHOLD = 1 << 20;
+    public static final long REGION = 64L << 20; // a multiple of any page size, regions start on page boundaries
+    public static final int WRITE_BUFFER = 1 << 16;
+
+    @Override
+    public Output openOutput(Path path, long position, long size) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            if (channel.size() > position) channel.truncate(position);
+            if (size >= MAP_THRESHOLD && size > position) channel.write(ByteBuffer.wrap(new byte[1]), size - 1); // the file is size bytes long from now on
+            return new ChannelOutput(channel, position, (int) Math.min(WRITE_BUFFER, Math.max(0, size - position)));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public Input openInput(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        return new MappedInput(channel, channel.size());
+    }
+
+    @Override
+    public String name() {
+        return "mapped";
+    }
+
+    private static class ChannelOutput implements Output {
+        FileChannel channel;
+        long position; // where pending goes
+        ByteBuffer pending; // no larger than the file, a small one is a single write at close
+
+        ChannelOutput(FileChannel channel, long position, int buffer) {
+            this.channel = channel;
+            this.position = position;
+            pending = ByteBuffer.allocate(buffer);
+        }
+
+        @Override
+        public void write(byte[] buffer, int off, int len) throws IOException {
+            if (len > pending.remaining()) flush();
+            if (len >= pending.capacity()) {
+                ByteBuffer src = ByteBuffer.wrap(buffer, off, len);
+                while (src.hasRemaining()) position += channel.write(src, position);
+                return;
+            }
+            pending.put(buffer, off, len);
+        }
+
+        private void flush() throws IOException {
+            pending.flip();
+            while (pending.hasRemaining()) position += channel.write(pending, position);
+            pending.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+                if (channel.size() > position) channel.truncate(position);
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    private static class MappedInput implements Input {
+        FileChannel channel;
+        long size;
+        MappedByteBuffer region;
+        long regionStart;
+
+        MappedInput(FileChannel channel, long size) {
+            this.channel = channel;
+            this.size = size;
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+
+        @Override
+        public int read(long position, byte[] buffer, int off, int len) throws IOException {
+            if (position >= size) return -1;
+            if (size < MAP_THRESHOLD) return channel.read(ByteBuffer.wrap(buffer, off, len), position);
+            if (region == null || position < regionStart || position >= regionStart + region.capacity()) {
+                // a jump somewhere else is one positional read, only a reader going on into the next region maps it
+                if (region != null && (position < regionStart || position >= regionStart + region.capacity() + REGION)) {
+                    return channel.read(ByteBuffer.wrap(buffer, off, len), position);
+                }
+                regionStart = position - position % REGION;
+                region = channel.map(FileChannel.MapMode.READ_ONLY, regionStart, Math.min(REGION, size - regionStart));
+            }
+            int at = (int) (position - regionStart);
+            int n = Math.min(len, region.capacity() - at);
+            region.get(at, buffer, off, n);
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            region = null;
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,647 @@
+package server;
+
+import util.FileInfo;
+import util.FileRequest;
+import util.UserMessage;
+import util.WireCodec;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+// every change to the catalog goes through here, so it can be rebuilt after a restart
+// changes are appended to a write-ahead log (catalog.<gen>.wal) and applied to the catalog in the same order
+// one flusher thread writes and fsyncs whatever piled up while the previous fsync ran, so concurrent writers share one fsync
+// once a segment holds snapshotEvery records (or as many as the last snapshot, if that is more) the log moves to a new segment,
+// and a background thread folds the old ones into catalog.<gen>.snap, so rewriting snapshots costs amortized O(1) per record
+// a record on disk is [int length][int crc32][type][fields], a torn record at the end of the last segment is ignored
+// a failed write or fsync stops the store for good: after fsync fails the kernel may have dropped the dirty pages, so neither
+// retrying nor a new segment can say what is on disk; every change from then on throws before it touches the catalog,
+// and the changes of the failed batch, already in the catalog, throw to whoever waits for them
+public class MetadataStore {
+    private static final byte USER = 1, FILE = 2, REQUEST = 3, MESSAGE = 4, BROADCAST = 5, TAKE = 6;
+    private static final byte MESSAGE_DEF = 7, MAILBOX = 8; // older snapshots, still read
+    private static final byte LOG_ENTRY = 9, INBOX = 10; // snapshot only, the broadcast log as it is and each user's place in it
+    private static final Pattern NAME = Pattern.compile("catalog\\.(\\d+)\\.(wal|snap)");
+
+    private File dir;
+    private Catalog catalog;
+    private int snapshotEvery;
+
+    private final Object lock = new Object(); // orders catalog changes and log records the same way
+    private ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+    private DataOutputStream record = new DataOutputStream(recordBytes);
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream(), flushing = new ByteArrayOutputStream();
+    private long appended; // sequence number of the last record handed to the log
+    private boolean closed;
+
+    private final Object synced = new Object();
+    private long durable; // every record up to this one is fsynced
+    private volatile IOException failure; // set by the flusher if the log could not be written, no change is taken after that
+    private PriorityQueue<Waiter> waiters = new PriorityQueue<>(Comparator.comparingLong((Waiter w) -> w.seq)); // async callers, under synced
+
+    // only touched by the flusher thread
+    private FileChannel wal;
+    private long walGen, walRecords, flushedUpTo;
+
+    private volatile long snapGen; // newest snapshot, 0 if there is none yet
+    private volatile long snapRecords; // records in it
+    private volatile Thread compactor;
+    private Thread flusher;
+
+    public long recordsReplayed, restoreMillis, syncs;
+
+    public MetadataStore(File dir, Catalog catalog, int snapshotEvery) throws IOException {
+        this.dir = dir;
+        this.catalog = catalog;
+        this.snapshotEvery = snapshotEvery;
+
+        long t = System.currentTimeMillis();
+        TreeMap<Long, File> wals = new TreeMap<>(), snaps = new TreeMap<>();
+        listFiles(wals, snaps);
+        if (!snaps.isEmpty()) snapGen = snaps.lastKey();
+        long lastGen = snapGen;
+        if (snapGen > 0) recordsReplayed += replay(snaps.get(snapGen), catalog, true);
+        for (long gen : wals.keySet()) {
+            lastGen = Math.max(lastGen, gen);
+            if (gen > snapGen) recordsReplayed += replay(wals.get(gen), catalog, false);
+            if (wals.get(gen).length() == 0) wals.get(gen).delete(); // left by a restart with no changes
+        }
+        removeFolded(wals, snaps, snapGen);
+        snapRecords = recordsReplayed;
+        restoreMillis = System.currentTimeMillis() - t;
+
+        // always a fresh segment, so a torn tail in the old one stays where it is and is skipped next time too
+        walGen = lastGen + 1;
+        wal = openSegment(walGen);
+
+        flusher = new Thread(this::flushLoop, "catalog-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    // the changes below apply to the catalog right away, and the ones that return only do so once their record is on disk
+    // messages do not wait, a crash may lose the last few milliseconds of them, or show some already read ones again
+    // each of those has an async twin for callers that must not block, an nio event loop above all: the change is in the
+    // catalog when it returns, the future completes on the flusher thread once the record is on disk, or exceptionally
+    // (UncheckedIOException) if the log failed; what is chained onto it runs on the flusher, so it must not wait for the log
+
+    // returns true if the user is new
+    public boolean registerUser(String username) {
+        long seq = logUser(username);
+        if (seq == 0) return false;
+        awaitDurable(seq);
+        return true;
+    }
+
+    public CompletableFuture<Boolean> registerUserAsync(String username) {
+        try {
+            long seq = logUser(username);
+            if (seq == 0) return CompletableFuture.completedFuture(false);
+            return whenDurable(seq).thenApply(v -> true);
+        } catch (UncheckedIOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    public void addFile(FileInfo fileInfo) {
+        awaitDurable(logFile(fileInfo));
+    }
+
+    public CompletableFuture<Void> addFileAsync(FileInfo fileInfo) {
+        try {
+            return whenDurable(logFile(fileInfo));
+        } catch (UncheckedIOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    public void addFileRequest(FileRequest fileRequest) {
+        awaitDurable(logRequest(fileRequest));
+    }
+
+    public CompletableFuture<Void> addFileRequestAsync(FileRequest fileRequest) {
+        try {
+            return whenDurable(logRequest(fileRequest));
+        } catch (UncheckedIOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    // the sequence number of the record, 0 if the user was registered already and nothing was logged
+    private long logUser(String username) {
+        if (catalog.isRegistered(username)) return 0;
+        synchronized (lock) {
+            checkWritable();
+            if (!catalog.registerUser(username)) return 0;
+            try {
+                begin(USER);
+                WireCodec.writeString(record, username);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return end();
+        }
+    }
+
+    private long logFile(FileInfo fileInfo) {
+        synchronized (lock) {
+            checkWritable();
+            catalog.addFile(fileInfo);
+            try {
+                begin(FILE);
+                writeFile(record, fileInfo);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return end();
+        }
+    }
+
+    private long logRequest(FileRequest fileRequest) {
+        synchronized (lock) {
+            checkWritable();
+            catalog.addFileRequest(fileRequest);
+            try {
+                begin(REQUEST);
+                writeRequest(record, fileRequest);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return end();
+        }
+    }
+
+    public void addMessage(String username, UserMessage m) {
+        synchronized (lock) {
+            checkWritable();
+            catalog.addMessage(username, m);
+            try {
+                begin(MESSAGE);
+                WireCodec.writeString(record, username);
+                writeMessage(record, m);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            end();
+        }
+    }
+
+    public void broadcast(String except, UserMessage m) {
+        synchronized (lock) {
+            checkWritable();
+            catalog.broadcast(except, m);
+            try {
+                begin(BROADCAST);
+                WireCodec.writeString(record, except);
+                writeMessage(record, m);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            end();
+        }
+    }
+
+    public List<UserMessage> takeMessages(String username) {
+        return takeMessages(username, Integer.MAX_VALUE);
+    }
+
+    public List<UserMessage> takeMessages(String username, int max) {
+        synchronized (lock) {
+            checkWritable();
+            List<UserMessage> taken = catalog.takeMessages(username, max);
+            if (taken.isEmpty()) return taken;
+            try {
+                begin(TAKE);
+                WireCodec.writeString(record, username);
+                if (max != Integer.MAX_VALUE) WireCodec.writeVarInt(record, max);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            end();
+            return taken;
+        }
+    }
+
+    // waits for everything logged so far, then stops the flusher and any snapshot in progress
+    public void close() throws IOException {
+        long seq;
+        synchronized (lock) {
+            closed = true;
+            seq = appended;
+            lock.notify();
+        }
+        try {
+            awaitDurable(seq); // throws if the log failed, the rest is closed anyway
+        } finally {
+            try {
+                flusher.join();
+                Thread c = compactor;
+                if (c != null) c.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            wal.close();
+        }
+    }
+
+    // a change that can not be logged must not reach the catalog either, caller holds the lock
+    private void checkWritable() {
+        IOException f = failure;
+        if (f != null) throw new UncheckedIOException("the catalog log failed, no changes are taken until the server restarts", f);
+    }
+
+    private void begin(byte type) throws IOException {
+        recordBytes.reset();
+        record.writeByte(type);
+    }
+
+    // frames the record into the pending batch and wakes the flusher, caller holds the lock
+    private long end() {
+        byte[] body = recordBytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(body, 0, body.length);
+        writeInt(pending, body.length);
+        writeInt(pending, (int) crc.getValue());
+        pending.write(body, 0, body.length);
+        appended++;
+        lock.notify();
+        return appended;
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int v) {
+        out.write(v >>> 24);
+        out.write(v >>> 16);
+        out.write(v >>> 8);
+        out.write(v);
+    }
+
+    private void awaitDurable(long seq) {
+        synchronized (synced) {
+            while (durable < seq && failure == null) {
+                try {
+                    synced.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("interrupted while waiting for the catalog log");
+                }
+            }
+            if (durable < seq) throw new UncheckedIOException("catalog log failed", failure);
+        }
+    }
+
+    // completes once every record up to seq is on disk, the flusher completes it
+    private CompletableFuture<Void> whenDurable(long seq) {
+        synchronized (synced) {
+            if (durable >= seq) return CompletableFuture.completedFuture(null);
+            if (failure != null) return CompletableFuture.failedFuture(new UncheckedIOException("catalog log failed", failure));
+            Waiter w = new Waiter(seq);
+            waiters.add(w);
+            return w.done;
+        }
+    }
+
+    private static class Waiter {
+        final long seq;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Waiter(long seq) {
+            this.seq = seq;
+        }
+    }
+
+    // the waiters up to seq, or all of them once the log failed; completed by the caller outside the lock,
+    // whatever they go on to do runs on the flusher thread
+    private List<Waiter> takeWaiters(long seq) {
+        List<Waiter> ready = new ArrayList<>();
+        while (!waiters.isEmpty() && (waiters.peek().seq <= seq || failure != null)) ready.add(waiters.poll());
+        return ready;
+    }
+
+    private void flushLoop() {
+        while (true) {
+            long upTo;
+            synchronized (lock) {
+                while (pending.size() == 0 && !closed) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (pending.size() == 0) return; // closed and nothing left
+                ByteArrayOutputStream batch = pending;
+                pending = flushing;
+                flushing = batch;
+                upTo = appended;
+            }
+
+            try {
+                flushing.writeTo(Channels.newOutputStream(wal));
+                wal.force(false);
+                syncs++;
+            } catch (IOException e) {
+                Log.error("Catalog log write failed, the catalog takes no more changes until the server restarts: {}", e);
+                synchronized (lock) {
+                    failure = e; // under the lock, so no writer adds to pending after this
+                    pending.reset();
+                }
+                List<Waiter> failed;
+                synchronized (synced) {
+                    failed = takeWaiters(Long.MAX_VALUE);
+                    synced.notifyAll(); // everyone waiting for this batch or a later one gets the failure
+                }
+                for (Waiter w : failed) w.done.completeExceptionally(new UncheckedIOException("catalog log failed", e));
+                return;
+            }
+            flushing.reset();
+            walRecords += upTo - flushedUpTo;
+            flushedUpTo = upTo;
+            List<Waiter> ready;
+            synchronized (synced) {
+                durable = upTo;
+                ready = takeWaiters(upTo);
+                synced.notifyAll();
+            }
+            for (Waiter w : ready) w.done.complete(null);
+
+            if (walRecords >= Math.max(snapshotEvery, snapRecords) && compactor == null) {
+                try {
+                    rotate();
+                } catch (IOException e) {
+                    Log.warn("Could not start a new catalog log segment: {}", e);
+                }
+            }
+        }
+    }
+
+    // seals the current segment at a batch boundary, so the snapshot made from it is an exact point in the log
+    private void rotate() throws IOException {
+        long sealed = walGen;
+        FileChannel next = openSegment(sealed + 1);
+        wal.close();
+        wal = next;
+        walGen = sealed + 1;
+        walRecords = 0;
+        Thread c = new Thread(() -> compact(sealed), "catalog-compactor");
+        c.setDaemon(true);
+        compactor = c;
+        c.start();
+    }
+
+    // rebuilds the catalog up to the sealed segment in a separate Catalog, from the files alone,
+    // so the live catalog is never locked while the snapshot is written
+    private void compact(long sealed) {
+        try {
+            long t = System.currentTimeMillis();
+            TreeMap<Long, File> wals = new TreeMap<>(), snaps = new TreeMap<>();
+            listFiles(wals, snaps);
+            Catalog image = new Catalog();
+            if (snapGen > 0) replay(snaps.get(snapGen), image, true);
+            for (long gen : wals.keySet()) {
+                if (gen > snapGen && gen <= sealed) replay(wals.get(gen), image, false);
+            }
+
+            Path temp = new File(dir, "catalog." + sealed + ".snap.tmp").toPath();
+            Path target = new File(dir, "catalog." + sealed + ".snap").toPath();
+            long count;
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+                count = writeImage(image, out);
+                out.flush();
+                channel.force(true);
+            }
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            snapGen = sealed;
+            snapRecords = count;
+            removeFolded(wals, snaps, sealed);
+            Log.info("Catalog snapshot {} written, {} records in {} ms", sealed, count, System.currentTimeMillis() - t);
+        } catch (IOException e) {
+            Log.warn("Catalog snapshot failed, the log is kept: {}", e);
+        } finally {
+            compactor = null;
+        }
+    }
+
+    // files come out in id order, which is upload order, so listings keep their order after a restart
+    // the broadcast log comes first, so users registered by the USER records start past it,
+    // and only users with something left to read need an INBOX record
+    // positions are written relative to the start of the log, replaying them into an empty catalog makes them absolute again
+    private long writeImage(Catalog image, DataOutputStream out) throws IOException {
+        long count = 0;
+        BroadcastLog log = image.getBroadcastLog();
+        for (long p = log.head(); p < log.tail(); p++) {
+            BroadcastLog.Entry entry = log.get(p);
+            beginImage(LOG_ENTRY);
+            WireCodec.writeString(imageRecord, entry.except);
+            writeMessage(imageRecord, entry.m);
+            count += frame(out);
+        }
+        for (String username : image.getUsers()) {
+            beginImage(USER);
+            WireCodec.writeString(imageRecord, username);
+            count += frame(out);
+        }
+        List<FileInfo> files = new ArrayList<>(image.getFiles());
+        files.sort((a, b) -> a.fileID.length() != b.fileID.length() ? a.fileID.length() - b.fileID.length() : a.fileID.compareTo(b.fileID));
+        for (FileInfo f : files) {
+            beginImage(FILE);
+            writeFile(imageRecord, f);
+            count += frame(out);
+        }
+        for (FileRequest r : image.getFileRequests()) {
+            beginImage(REQUEST);
+            writeRequest(imageRecord, r);
+            count += frame(out);
+        }
+        for (String username : image.getUsers()) {
+            Catalog.Inbox inbox = image.getInbox(username);
+            if (inbox == null || (inbox.cursor >= log.tail() && inbox.directs == null)) continue;
+            beginImage(INBOX);
+            WireCodec.writeString(imageRecord, username);
+            WireCodec.writeVarLong(imageRecord, Math.max(inbox.cursor, log.head()) - log.head());
+            List<Catalog.Direct> directs = inbox.directs == null ? new ArrayList<>() : new ArrayList<>(inbox.directs);
+            WireCodec.writeVarInt(imageRecord, directs.size());
+            for (Catalog.Direct d : directs) {
+                WireCodec.writeVarLong(imageRecord, Math.max(d.tail, log.head()) - log.head());
+                writeMessage(imageRecord, d.m);
+            }
+            count += frame(out);
+        }
+        return count;
+    }
+
+    // separate buffers for the compactor, the live ones belong to whoever holds the lock
+    private ByteArrayOutputStream imageBytes = new ByteArrayOutputStream();
+    private DataOutputStream imageRecord = new DataOutputStream(imageBytes);
+
+    private void beginImage(byte type) throws IOException {
+        imageBytes.reset();
+        imageRecord.writeByte(type);
+    }
+
+    private int frame(DataOutputStream out) throws IOException {
+        byte[] body = imageBytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(body, 0, body.length);
+        out.writeInt(body.length);
+        out.writeInt((int) crc.getValue());
+        out.write(body);
+        return 1;
+    }
+
+    // applies every record in the file to the catalog and returns how many there were
+    // a snapshot must be complete, a log segment may end in a record that never made it to disk
+    private static long replay(File file, Catalog catalog, boolean mustBeComplete) throws IOException {
+        long count = 0;
+        CRC32 crc = new CRC32();
+        byte[] body = new byte[256];
+        List<UserMessage> defs = new ArrayList<>(); // MESSAGE_DEF records seen so far in this file
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            while (true) {
+                int length, sum;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    return count;
+                }
+                try {
+                    sum = in.readInt();
+                    if (length < 1 || length > (1 << 26)) throw new StreamCorruptedException("bad record length " + length);
+                    if (body.length < length) body = new byte[Math.max(length, body.length * 2)];
+                    in.readFully(body, 0, length);
+                    crc.reset();
+                    crc.update(body, 0, length);
+                    if ((int) crc.getValue() != sum) throw new StreamCorruptedException("bad checksum");
+                } catch (IOException e) {
+                    if (mustBeComplete) throw new IOException(file + " is damaged after " + count + " records", e);
+                    Log.warn("Ignoring the end of {} after {} records: {}", file.getName(), count, e.getMessage());
+                    return count;
+                }
+                apply(new DataInputStream(new ByteArrayInputStream(body, 0, length)), catalog, defs);
+                count++;
+            }
+        }
+    }
+
+    private static void apply(DataInputStream in, Catalog catalog, List<UserMessage> defs) throws IOException {
+        byte type = in.readByte();
+        if (type == USER) {
+            catalog.registerUser(WireCodec.readString(in));
+        } else if (type == FILE) {
+            catalog.addFile(readFile(in));
+        } else if (type == REQUEST) {
+            catalog.addFileRequest(readRequest(in));
+        } else if (type == MESSAGE) {
+            String username = WireCodec.readString(in);
+            catalog.addMessage(username, readMessage(in));
+        } else if (type == BROADCAST) {
+            String except = WireCodec.readString(in);
+            catalog.broadcast(except, readMessage(in));
+        } else if (type == TAKE) {
+            String username = WireCodec.readString(in);
+            catalog.takeMessages(username, in.available() > 0 ? WireCodec.readVarInt(in) : Integer.MAX_VALUE); // a plain TAKE empties the mailbox
+        } else if (type == MESSAGE_DEF) {
+            defs.add(readMessage(in));
+        } else if (type == MAILBOX) {
+            String username = WireCodec.readString(in);
+            int n = WireCodec.readVarInt(in);
+            for (int i = 0; i < n; i++) catalog.addMessage(username, defs.get(WireCodec.readVarInt(in)));
+        } else if (type == LOG_ENTRY) {
+            String except = WireCodec.readString(in);
+            catalog.restoreBroadcast(except, readMessage(in));
+        } else if (type == INBOX) {
+            String username = WireCodec.readString(in);
+            long cursor = WireCodec.readVarLong(in);
+            int n = WireCodec.readVarInt(in);
+            List<Catalog.Direct> directs = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                long tail = WireCodec.readVarLong(in);
+                directs.add(new Catalog.Direct(readMessage(in), tail));
+            }
+            catalog.restoreInbox(username, cursor, directs);
+        } else {
+            throw new StreamCorruptedException("unknown catalog record " + type);
+        }
+    }
+
+    private static void writeFile(DataOutputStream out, FileInfo f) throws IOException {
+        WireCodec.writeString(out, f.fileID);
+        WireCodec.writeString(out, f.fileName);
+        out.writeBoolean(f.isPrivate);
+        WireCodec.writeString(out, f.ownerName);
+        WireCodec.writeVarLong(out, f.fileSize);
+        WireCodec.writeString(out, f.sha256);
+    }
+
+    private static FileInfo readFile(DataInputStream in) throws IOException {
+        String fileID = WireCodec.readString(in);
+        FileInfo f = new FileInfo(WireCodec.readString(in), in.readBoolean(), WireCodec.readString(in), WireCodec.readVarLong(in));
+        f.fileID = fileID;
+        if (in.available() > 0) f.sha256 = WireCodec.readString(in); // records from before checksums end here
+        return f;
+    }
+
+    private static void writeRequest(DataOutputStream out, FileRequest r) throws IOException {
+        WireCodec.writeString(out, r.requestID);
+        WireCodec.writeString(out, r.requester);
+        WireCodec.writeString(out, r.description);
+    }
+
+    private static FileRequest readRequest(DataInputStream in) throws IOException {
+        String requestID = WireCodec.readString(in);
+        FileRequest r = new FileRequest(WireCodec.readString(in), WireCodec.readString(in));
+        r.requestID = requestID;
+        return r;
+    }
+
+    private static void writeMessage(DataOutputStream out, UserMessage m) throws IOException {
+        WireCodec.writeString(out, m.sender);
+        WireCodec.writeString(out, m.receiver);
+        out.writeBoolean(m.isRequest);
+        WireCodec.writeString(out, m.msg);
+    }
+
+    private static UserMessage readMessage(DataInputStream in) throws IOException {
+        return new UserMessage(WireCodec.readString(in), WireCodec.readString(in), in.readBoolean(), WireCodec.readString(in));
+    }
+
+    private FileChannel openSegment(long gen) throws IOException {
+        return FileChannel.open(new File(dir, "catalog." + gen + ".wal").toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private void listFiles(TreeMap<Long, File> wals, TreeMap<Long, File> snaps) {
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        for (File f : files) {
+            Matcher m = NAME.matcher(f.getName());
+            if (!m.matches()) continue;
+            if (m.group(2).equals("wal")) wals.put(Long.parseLong(m.group(1)), f);
+            else snaps.put(Long.parseLong(m.group(1)), f);
+        }
+    }
+
+    // the snapshot of gen covers every segment up to gen, so those and older snapshots can go
+    private static void removeFolded(TreeMap<Long, File> wals, TreeMap<Long, File> snaps, long gen) {
+        for (File f : wals.headMap(gen, true).values()) f.delete();
+        for (File f : snaps.headMap(gen, false).values()) f.delete();
+    }
+}
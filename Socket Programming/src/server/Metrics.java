@@ -0,0 +1,79 @@
+package server;
+
+import util.RequestType;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+// what the server counts while it runs, read as a text snapshot by the admin endpoint, the console and the periodic dump
+// counters are LongAdders and latencies Histograms, so the session threads and event loops update them without a lock;
+// gauges are read only when a snapshot is taken, they cost nothing in between
+public class Metrics {
+    public final long started = System.currentTimeMillis();
+
+    // file data as the transfer scheduler lets it through, in and out of the server
+    public final LongAdder bytesIn = new LongAdder(), bytesOut = new LongAdder();
+    public final LongAdder logins = new LongAdder(), disconnects = new LongAdder();
+    public final LongAdder uploadsRejected = new LongAdder(), downloadsRejected = new LongAdder(), resumesRejected = new LongAdder();
+    public final LongAdder uploadTimeouts = new LongAdder(), uploadsFailed = new LongAdder(), uploadsDone = new LongAdder();
+    public final Histogram uploadRate = new Histogram(), downloadRate = new Histogram(); // bytes per second of finished transfers
+
+    // ns from reading a request to queueing its reply, for a transfer that is the go-ahead, the transfer itself is in the rates
+    private final Histogram[] requests = new Histogram[RequestType.values().length];
+    private final ConcurrentSkipListMap<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+
+    public Metrics() {
+        for (int i = 0; i < requests.length; i++) requests[i] = new Histogram();
+    }
+
+    public void request(RequestType type, long startNanos) {
+        requests[type.ordinal()].record(System.nanoTime() - startNanos);
+    }
+
+    public void transferred(Transfer transfer) {
+        long nanos = System.nanoTime() - transfer.started;
+        if (transfer.bytes == 0 || nanos <= 0) return;
+        (transfer.upload ? uploadRate : downloadRate).record((long) (transfer.bytes * 1e9 / nanos));
+    }
+
+    // a value read at snapshot time, like the number of active sessions
+    public void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    // one "name value" line per metric, a histogram as count, mean, percentiles and max
+    public String snapshot() {
+        StringBuilder s = new StringBuilder();
+        line(s, "uptime_ms", System.currentTimeMillis() - started);
+        for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) line(s, gauge.getKey(), gauge.getValue().getAsLong());
+        line(s, "bytes_in", bytesIn.sum());
+        line(s, "bytes_out", bytesOut.sum());
+        line(s, "logins", logins.sum());
+        line(s, "disconnects", disconnects.sum());
+        line(s, "uploads_done", uploadsDone.sum());
+        line(s, "uploads_failed", uploadsFailed.sum());
+        line(s, "uploads_rejected", uploadsRejected.sum());
+        line(s, "upload_resumes_rejected", resumesRejected.sum());
+        line(s, "upload_timeouts", uploadTimeouts.sum());
+        line(s, "downloads_rejected", downloadsRejected.sum());
+        histogram(s, "upload_bytes_per_s", uploadRate);
+        histogram(s, "download_bytes_per_s", downloadRate);
+        for (RequestType type : RequestType.values()) {
+            if (requests[type.ordinal()].count() > 0) histogram(s, "request_ns{" + type.name().toLowerCase() + "}", requests[type.ordinal()]);
+        }
+        return s.toString();
+    }
+
+    private static void line(StringBuilder s, String name, long value) {
+        s.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void histogram(StringBuilder s, String name, Histogram h) {
+        long[] p = h.percentiles(50, 90, 99, 99.9);
+        s.append(name).append(" count=").append(h.count()).append(" mean=").append((long) h.mean())
+                .append(" p50=").append(p[0]).append(" p90=").append(p[1]).append(" p99=").append(p[2]).append(" p999=").append(p[3])
+                .append(" max=").append(h.max()).append('\n');
+    }
+}
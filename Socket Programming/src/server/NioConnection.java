@@ -0,0 +1,704 @@
+package server;
+
+import util.*;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+// state machine for one client in nio mode, speaks the same object stream protocol as ServerThread
+// everything here runs on the owning EventLoop's thread and must never block
+public class NioConnection {
+    private enum State {HANDSHAKE, LOGIN, ACTIVE, RECEIVING_FILE, AWAITING_DONE, SENDING_FILE, CLOSED}
+
+    private static final int HIGH_WATER_MARK = 64 * 1024; // stop producing download chunks above this many queued bytes
+
+    private Server server;
+    private EventLoop loop;
+    private SocketChannel channel;
+    private SelectionKey key;
+    private State state = State.HANDSHAKE;
+    private String username;
+    private boolean closeAfterFlush = false;
+    private boolean dataConnection = false; // serves one range of a parallel download and closes
+    private boolean awaitingStore = false; // a reply waits for the catalog log, nothing more is read or pushed until it goes out
+
+    // inbound: raw bytes, framed item by item, complete objects fed to ois
+    private byte[] in = new byte[8192];
+    private int inStart = 0, inEnd = 0;
+    private SerialStreamFramer framer;
+    private FrameInputStream frameInput = new FrameInputStream();
+    private ObjectInputStream ois;
+
+    // outbound: oos writes into outBytes, which is moved to the queue after every message
+    private ByteArrayOutputStream outBytes = new ByteArrayOutputStream();
+    private ObjectOutputStream oos;
+    private ArrayDeque<ByteBuffer> outQueue = new ArrayDeque<>();
+    private long queuedBytes = 0;
+
+    // upload in progress
+    private UploadSession upload;
+    private long remaining;
+    private int chunkReceived; // bytes of the current chunk so far, acked once a whole chunk is on disk
+    private boolean windowed;
+    private long chunkSeq;
+
+    // download in progress
+    private StorageEngine.Input downloadInput;
+    private byte[] downloadBuffer;
+    private ChunkSizer downloadSizer; // how much of downloadBuffer the next chunk uses
+    private FileChannel rawDownload; // raw mode, sent with transferTo instead of through oos
+    private long rawPosition, rawRemaining;
+    private long downloadPosition, downloadRemaining;
+    private Path cachedPath; // set when the download comes out of the file cache, then no file is open
+    private ByteBuffer cachedBlock; // what is left of the current cached block
+    private boolean rawCached;
+
+    // bandwidth of the upload or download in progress, a transfer out of tokens stops reading or sending until its grant comes in
+    private Transfer transfer;
+    private Runnable grantWake; // handed to the scheduler with a request that has to wait
+    private long allowance; // bytes a download was granted and has not sent yet
+    private int asked; // bytes of the request waiting for its grant
+    private long uploadOwed; // bytes of upload chunks received but not yet paid for
+    private boolean sendPaused, readPaused;
+
+    // pushed messages, if the client asked for them at login
+    private Runnable pushWake;
+    private boolean pushPending = false;
+
+    public NioConnection(Server server, EventLoop loop, SocketChannel channel, SelectionKey key) {
+        this.server = server;
+        this.loop = loop;
+        this.channel = channel;
+        this.key = key;
+        framer = new SerialStreamFramer(server.MAX_FRAME_SIZE);
+    }
+
+    public void start() throws IOException {
+        oos = new ObjectOutputStream(outBytes); // writes the stream header
+        enqueueOutput();
+        flushQueue();
+    }
+
+    public void onReadable() throws IOException, ClassNotFoundException {
+        if (inEnd == in.length) {
+            if (inStart > 0) {
+                System.arraycopy(in, inStart, in, 0, inEnd - inStart);
+                inEnd -= inStart;
+                inStart = 0;
+            } else {
+                // the framer keeps an item below MAX_FRAME_SIZE, only a client sending while it should not gets here
+                if (in.length >= 2 * server.MAX_FRAME_SIZE) throw new StreamCorruptedException("more than " + in.length + " unread bytes from " + username);
+                byte[] bigger = new byte[in.length * 2];
+                System.arraycopy(in, 0, bigger, 0, inEnd);
+                in = bigger;
+            }
+        }
+
+        int n = channel.read(ByteBuffer.wrap(in, inEnd, in.length - inEnd));
+        if (n == -1) {
+            onDisconnect(new EOFException("connection closed by client"));
+            return;
+        }
+        inEnd += n;
+        processInput();
+        if (uploadOwed > 0 && !readPaused) chargeUpload();
+        deliverPushes();
+    }
+
+    public void onWritable() throws IOException, ClassNotFoundException {
+        flushQueue();
+        if (state == State.SENDING_FILE) pumpDownload();
+        deliverPushes();
+    }
+
+    // pushes waiting messages while no reply or transfer is going on and the output queue has room,
+    // a slow client leaves the rest in its mailbox until its queue drains
+    private void deliverPushes() throws IOException {
+        while (pushPending && state == State.ACTIVE && !awaitingStore && !closeAfterFlush && queuedBytes < HIGH_WATER_MARK) {
+            List<UserMessage> batch = server.takePushBatch(username);
+            if (batch.isEmpty()) {
+                pushPending = false;
+                return;
+            }
+            for (UserMessage m : batch) write(m);
+        }
+    }
+
+    // called on another thread whenever the mailbox got something
+    private void wakePush() {
+        loop.execute(() -> {
+            if (state == State.CLOSED) return;
+            pushPending = true;
+            try {
+                deliverPushes();
+            } catch (Exception e) {
+                onDisconnect(e);
+            }
+        });
+    }
+
+    public void onDisconnect(Exception e) {
+        if (state == State.CLOSED) return;
+        if (state == State.RECEIVING_FILE || state == State.AWAITING_DONE) {
+            Log.warn("Client got disconnected while uploading file {}", upload.fileInfo.fileName);
+            server.metrics.uploadsFailed.increment();
+            server.suspendUpload(upload);
+        }
+        try {
+            if (downloadInput != null) downloadInput.close();
+            if (rawDownload != null) rawDownload.close();
+        } catch (IOException ignored) {
+        }
+        endTransfer();
+        if (username != null && state != State.LOGIN) {
+            Log.warn("{}", e);
+            server.makeUserInactive(username);
+            server.metrics.disconnects.increment();
+            Log.info("{} got disconnected.", username);
+        }
+        close();
+    }
+
+    private void processInput() throws IOException, ClassNotFoundException {
+        if (state == State.HANDSHAKE) {
+            if (inEnd - inStart < 4) return;
+            frameInput.set(in, inStart, inStart + 4);
+            ois = new ObjectInputStream(frameInput);
+            inStart += 4;
+            state = State.LOGIN;
+        }
+
+        // a download owns the connection until "done", the client sends nothing meanwhile
+        while (state != State.CLOSED && state != State.SENDING_FILE && !closeAfterFlush && !awaitingStore) {
+            if (!framer.next(in, inStart, inEnd)) break;
+            inStart = framer.itemEnd;
+
+            if (framer.itemType == SerialStreamFramer.BLOCK_DATA) {
+                onBlockData(framer.dataStart, framer.itemEnd);
+            } else {
+                frameInput.set(in, framer.itemStart, framer.itemEnd);
+                onObject(ois.readUnshared());
+            }
+        }
+        if (inStart == inEnd) inStart = inEnd = 0;
+    }
+
+    private void onObject(Object o) throws IOException, ClassNotFoundException {
+        if (state == State.LOGIN && o instanceof DataConnectionRequest) {
+            DataConnectionRequest req = (DataConnectionRequest) o;
+            DownloadGrant grant = server.getDownloadGrant(req.token);
+            if (grant == null || !grant.hasRange(req.range)) {
+                write("Invalid or expired download token.");
+                closeAfterFlush = true;
+                flushQueue();
+                return;
+            }
+            write("ok");
+            dataConnection = true;
+            startDownload(grant.username, "range " + req.range + " of " + grant.fileInfo.fileName, grant.fileInfo, true, grant.bounds[req.range], grant.bounds[req.range + 1] - grant.bounds[req.range], grant.cached);
+        } else if (state == State.LOGIN) {
+            // the nio mode only speaks the object stream, a LoginRequest asking for binary gets binary = false
+            boolean loginRequest = o instanceof LoginRequest;
+            username = loginRequest ? ((LoginRequest) o).username : (String) o;
+            boolean wantsPush = loginRequest && ((LoginRequest) o).push;
+            afterStore(server.loginAsync(username, this), response -> {
+                boolean push = wantsPush && response.startsWith("Welcome");
+                if (loginRequest) write(new LoginResponse(response, false, push));
+                else write(response);
+                if (response.startsWith("Welcome")) {
+                    state = State.ACTIVE;
+                    if (push) {
+                        pushWake = this::wakePush;
+                        server.enablePush(username, pushWake);
+                    }
+                } else {
+                    username = null;
+                    closeAfterFlush = true;
+                    flushQueue();
+                }
+            }, response -> {
+                if (response.startsWith("Welcome")) server.makeUserInactive(username); // gone before the greeting
+            });
+        } else if (state == State.RECEIVING_FILE) {
+            String s = (String) o;
+            if (chunkReceived == 0 && upload.resize(s)) return; // an adaptive client changing its chunk size between chunks
+            Log.debug("Received message from client: {}", s);
+            if (s.equals("timeout")) {
+                Log.warn("File upload from {} failed due to timeout.", username);
+                server.metrics.uploadTimeouts.increment();
+                server.metrics.uploadsFailed.increment();
+                server.suspendUpload(upload);
+                endTransfer();
+                state = State.ACTIVE;
+            } else if (s.equals("abort")) {
+                // the client saw a chunk come back with the wrong crc, nothing received so far can be trusted
+                Log.warn("File upload from {} aborted by the client.", username);
+                server.metrics.uploadsFailed.increment();
+                abortUpload();
+                endTransfer();
+                state = State.ACTIVE;
+            }
+        } else if (state == State.AWAITING_DONE) {
+            finishUpload((String) o);
+        } else if (o instanceof Request) {
+            long started = System.nanoTime();
+            onRequest((Request) o);
+            server.metrics.request(((Request) o).requestType, started); // the reply is queued, a transfer has just started
+            Log.event(Log.Level.DEBUG, "answered", username, null, ((Request) o).requestType, -1, System.nanoTime() - started);
+        }
+    }
+
+    private void onRequest(Request request) throws IOException, ClassNotFoundException {
+        RequestType requestType = request.requestType;
+
+        if (requestType == RequestType.UPLOAD_INITIATION) {
+            FileUploadInitiationRequest req = (FileUploadInitiationRequest) request;
+            String existing = server.linkExisting(req);
+            if (existing != null) {
+                FileUploadInitiationResponse response = new FileUploadInitiationResponse(0, existing);
+                response.deduplicated = true;
+                write(response);
+                return;
+            }
+            UploadSession opened = server.openUpload(req);
+            if (opened == null) {
+                write(new FileUploadInitiationResponse(false));
+                server.metrics.uploadsRejected.increment();
+                Log.warn("Rejected upload request from {} for exceeding buffer size", username);
+            } else {
+                Log.debug("File size fine, chunk size: {} (max {}), file ID: {}", opened.chunkSize, opened.maxChunkSize, opened.fileID);
+                startUpload(opened, req.windowed);
+            }
+        } else if (requestType == RequestType.UPLOAD_RESUME) {
+            FileUploadResumeRequest req = (FileUploadResumeRequest) request;
+            UploadSession resumed = server.resumeUpload(req, username);
+            if (resumed == null) {
+                write(new FileUploadInitiationResponse(false));
+                server.metrics.resumesRejected.increment();
+                Log.warn("Rejected resume of upload {} from {}, expired, unknown or busy", req.uploadID, username);
+            } else {
+                startUpload(resumed, req.windowed);
+            }
+        } else if (requestType == RequestType.DOWNLOAD_REQUEST) {
+            FileDownloadRequest fileDownloadRequest = (FileDownloadRequest) request;
+            String fileID = fileDownloadRequest.fileID;
+            FileInfo fileInfo = server.checkFileAvailability(fileID);
+            if (fileInfo == null) {
+                write(new FileDownloadRequestResponse(false));
+                server.metrics.downloadsRejected.increment();
+                Log.warn("Rejected download request from {}, no match with any file ID", username);
+            } else {
+                // a client finishing a partial download asks only for the part it lacks
+                long offset = Math.max(0, Math.min(fileDownloadRequest.offset, fileInfo.fileSize));
+                long length = fileInfo.fileSize - offset;
+                if (fileDownloadRequest.length > 0) length = Math.min(length, fileDownloadRequest.length);
+                // a large file can go over several data connections instead, this one stays free meanwhile
+                DownloadGrant grant = fileDownloadRequest.streams > 1 ? server.grantParallelDownload(username, fileInfo, offset, length, fileDownloadRequest.streams) : null;
+                if (grant != null) {
+                    FileDownloadRequestResponse response = new FileDownloadRequestResponse(true, fileInfo.fileName, fileInfo.fileSize, offset, length, grant.token, grant.bounds);
+                    response.sha256 = fileInfo.sha256;
+                    write(response);
+                    Log.info("Accepted download request from {} for file ID: {} over {} data connections", username, fileID, grant.rangeCount());
+                    return;
+                }
+                FileDownloadRequestResponse response = new FileDownloadRequestResponse(true, fileInfo.fileName, server.MAX_CHUNK_SIZE, fileInfo.fileSize, fileDownloadRequest.raw, offset, length);
+                response.sha256 = fileInfo.sha256;
+                write(response);
+                Log.event(Log.Level.INFO, "Accepted download request", username, fileID, RequestType.DOWNLOAD_REQUEST, length, -1);
+                boolean cached = server.cache.admit(Server.storagePath(fileInfo), fileInfo.fileSize);
+                startDownload(username, "download of " + fileInfo.fileName, fileInfo, fileDownloadRequest.raw, offset, length, cached);
+            }
+        } else if (requestType == RequestType.LOGOUT) {
+            server.makeUserInactive(username);
+            write("ok");
+            Log.info("{} logged out.", username);
+            username = null;
+            closeAfterFlush = true;
+            flushQueue();
+        } else if (requestType == RequestType.FILE_REQUEST) {
+            FileRequest fileRequest = (FileRequest) request;
+            fileRequest.requestID = server.generateRequestID();
+            Log.debug("{} requested a file, request ID: {}", username, fileRequest.requestID);
+            server.addFileRequestAsync(fileRequest);
+        } else {
+            Object response = server.handleControlRequest(username, request);
+            if (response != null) write(response);
+        }
+    }
+
+    // what the loop does once a catalog change is on disk: input and pushes stop until then, so nothing overtakes the reply,
+    // then the reply goes out on the loop and input goes on where it stopped
+    // orphaned runs instead if the connection closed meanwhile, the outcome is still the store's
+    private interface StoreReply<T> {
+        void run(T result) throws Exception;
+    }
+
+    private <T> void afterStore(CompletableFuture<T> stored, StoreReply<T> reply, StoreReply<T> orphaned) {
+        awaitingStore = true;
+        key.interestOps(interest());
+        stored.whenComplete((result, e) -> loop.execute(() -> {
+            awaitingStore = false;
+            try {
+                if (state == State.CLOSED) {
+                    if (e == null && orphaned != null) orphaned.run(result);
+                    return;
+                }
+                if (e != null) throw new IOException("catalog change failed", e);
+                reply.run(result);
+                key.interestOps(interest());
+                processInput(); // whatever the client sent meanwhile
+                if (uploadOwed > 0 && !readPaused) chargeUpload();
+                deliverPushes();
+            } catch (Exception ex) {
+                onDisconnect(ex);
+            }
+        }));
+    }
+
+    // tells the client where to start (0 for a new upload) and waits for the rest of the file
+    private void startUpload(UploadSession opened, boolean windowed) throws IOException {
+        int window = windowed ? server.UPLOAD_WINDOW : 0;
+        FileUploadInitiationResponse response = new FileUploadInitiationResponse(opened.chunkSize, opened.fileID, window, opened.sessionID, opened.received);
+        response.maxChunkSize = opened.maxChunkSize;
+        write(response);
+        upload = opened;
+        remaining = opened.fileInfo.fileSize - opened.received;
+        chunkReceived = 0;
+        this.windowed = windowed;
+        chunkSeq = 0;
+        beginTransfer(username, "upload of " + opened.fileInfo.fileName, true);
+        Log.debug("Receiving file {} from {}", opened.fileInfo.fileName, username);
+        Log.debug("File Size: {} bytes", remaining);
+        state = remaining > 0 ? State.RECEIVING_FILE : State.AWAITING_DONE;
+    }
+
+    private void onBlockData(int from, int to) throws IOException {
+        if (state != State.RECEIVING_FILE) {
+            throw new StreamCorruptedException("unexpected raw data from " + username);
+        }
+
+        // the client flushes one chunk at a time, but the stream may split a chunk into several blocks
+        while (from < to) {
+            int expected = (int) Math.min(upload.chunkSize, remaining);
+            int take = Math.min(expected - chunkReceived, to - from);
+            upload.write(in, from, take);
+            chunkReceived += take;
+            from += take;
+
+            if (chunkReceived == expected) {
+                chunkReceived = 0;
+                remaining -= expected;
+                uploadOwed += expected; // paid for once the bytes in hand are processed, see chargeUpload
+                int crc = upload.endChunk(); // covers every piece of the chunk, however the stream split it
+                if (windowed) write(new ChunkAck(++chunkSeq, crc));
+                else write("ack");
+                if (remaining == 0) {
+                    state = State.AWAITING_DONE;
+                    if (from < to) throw new StreamCorruptedException("more data than the announced file size from " + username);
+                }
+            }
+        }
+    }
+
+    private void finishUpload(String finalMsg) throws IOException {
+        state = State.ACTIVE;
+        endTransfer();
+        if (!finalMsg.equals("done")) {
+            server.metrics.uploadsFailed.increment();
+            Log.warn("Failed to receive file from {}", username);
+            abortUpload();
+            return;
+        }
+
+        boolean ok;
+        try {
+            ok = upload.commit();
+        } finally {
+            server.closeUpload(upload);
+        }
+        if (!ok) {
+            write(upload.failure + ", upload failed.");
+            server.metrics.uploadsFailed.increment();
+            Log.warn("Failed to receive file from {}", username);
+            return;
+        }
+        // listed before the reply, as in ServerThread, and only once it is on disk
+        afterStore(server.addFileAsync(upload.request, upload.fileID), v -> {
+            write("Final check done, upload successful.");
+            server.metrics.uploadsDone.increment();
+            Log.info("Successfully received file from {}", username);
+        }, null);
+    }
+
+    private void abortUpload() {
+        upload.abort();
+        server.closeUpload(upload);
+    }
+
+    private void startDownload(String user, String what, FileInfo fileInfo, boolean raw, long offset, long length, boolean cached) throws IOException, ClassNotFoundException {
+        Path path = Server.storagePath(fileInfo);
+        try {
+            if (cached) {
+                if (!Files.exists(path)) throw new NoSuchFileException(path.toString());
+                cachedPath = path;
+            }
+            if (raw) {
+                if (cached) rawCached = true;
+                else rawDownload = FileChannel.open(path, StandardOpenOption.READ);
+                rawPosition = offset;
+                rawRemaining = length;
+            } else {
+                if (!cached) downloadInput = server.storage.openInput(path);
+                downloadPosition = offset;
+                downloadRemaining = length;
+                downloadBuffer = new byte[server.MAX_CHUNK_SIZE];
+                downloadSizer = new ChunkSizer(server.MIN_CHUNK_SIZE, server.MAX_CHUNK_SIZE);
+            }
+        } catch (FileNotFoundException | NoSuchFileException e) {
+            Log.warn("File not found in server");
+            if (dataConnection) close();
+            return;
+        }
+        state = State.SENDING_FILE;
+        beginTransfer(user, what, false);
+        pumpDownload();
+    }
+
+    // produces chunks only while the socket keeps up and the scheduler allows, the rest happens on the next OP_WRITE or grant
+    private void pumpDownload() throws IOException, ClassNotFoundException {
+        if (sendPaused) return;
+        if (rawDownload != null || rawCached) {
+            // the response object must be fully out before the raw bytes start
+            if (!outQueue.isEmpty()) return;
+            while (rawRemaining > 0) {
+                if (!mayDownload(1, rawRemaining)) return;
+                long max = Math.min(rawRemaining, allowance);
+                long sent = rawCached ? sendCached(max) : rawDownload.transferTo(rawPosition, max, channel);
+                if (sent == 0) {
+                    if (rawDownload != null && rawPosition >= rawDownload.size()) throw new EOFException("file is shorter than expected");
+                    key.interestOps(interest()); // socket buffer full, go on when it drains
+                    return;
+                }
+                rawPosition += sent;
+                rawRemaining -= sent;
+                allowance -= sent;
+            }
+            finishDownload();
+            return;
+        }
+
+        while (state == State.SENDING_FILE && queuedBytes < HIGH_WATER_MARK) {
+            int len = (int) Math.min(downloadSizer.next(), downloadRemaining);
+            if (len > 0 && !mayDownload(len, len)) return;
+            int read_bytes = downloadRemaining == 0 ? -1 : cachedPath != null ? readCached(len) : downloadInput.read(downloadPosition, downloadBuffer, 0, len);
+            if (read_bytes == -1) {
+                finishDownload();
+                return;
+            }
+            downloadPosition += read_bytes;
+            downloadRemaining -= read_bytes;
+            allowance -= read_bytes;
+            oos.write(downloadBuffer, 0, read_bytes);
+            oos.flush();
+            downloadSizer.sent(read_bytes);
+            enqueueOutput();
+            flushQueue();
+        }
+    }
+
+    // raw download out of the cache, one non-blocking write of at most max bytes from the current block, a new block once it is used up
+    private long sendCached(long max) throws IOException {
+        if (cachedBlock == null || !cachedBlock.hasRemaining()) {
+            cachedBlock = server.cache.get(cachedPath, rawPosition);
+            if (cachedBlock.remaining() > rawRemaining) cachedBlock.limit(cachedBlock.position() + (int) rawRemaining);
+        }
+        int limit = cachedBlock.limit();
+        if (cachedBlock.remaining() > max) cachedBlock.limit(cachedBlock.position() + (int) max);
+        int sent = channel.write(cachedBlock);
+        cachedBlock.limit(limit);
+        server.cache.served(sent);
+        return sent;
+    }
+
+    // the next chunk of a cached download into downloadBuffer
+    private int readCached(int len) throws IOException {
+        if (cachedBlock == null || !cachedBlock.hasRemaining()) cachedBlock = server.cache.get(cachedPath, downloadPosition);
+        int n = Math.min(len, cachedBlock.remaining());
+        cachedBlock.get(downloadBuffer, 0, n);
+        server.cache.served(n);
+        return n;
+    }
+
+    private void finishDownload() throws IOException, ClassNotFoundException {
+        if (downloadInput != null) downloadInput.close();
+        if (rawDownload != null) rawDownload.close();
+        downloadInput = null;
+        downloadBuffer = null;
+        rawDownload = null;
+        cachedPath = null;
+        cachedBlock = null;
+        rawCached = false;
+        endTransfer();
+        if (dataConnection) {
+            closeAfterFlush = true;
+            flushQueue();
+            return;
+        }
+        state = State.ACTIVE;
+        write("done");
+        processInput(); // anything the client sent right after the download
+    }
+
+    private void write(Object o) throws IOException {
+        oos.writeUnshared(o);
+        oos.flush();
+        enqueueOutput();
+        flushQueue();
+    }
+
+    private void enqueueOutput() {
+        if (outBytes.size() == 0) return;
+        outQueue.add(ByteBuffer.wrap(outBytes.toByteArray()));
+        queuedBytes += outBytes.size();
+        outBytes.reset();
+    }
+
+    private void flushQueue() throws IOException {
+        while (!outQueue.isEmpty()) {
+            ByteBuffer buffer = outQueue.peek();
+            queuedBytes -= channel.write(buffer);
+            if (buffer.hasRemaining()) break;
+            outQueue.poll();
+        }
+
+        if (outQueue.isEmpty() && closeAfterFlush) {
+            close();
+            return;
+        }
+        key.interestOps(interest());
+    }
+
+    // OP_WRITE while there is output or a download that may go on, OP_READ unless an upload waits for tokens or a reply for the store
+    private int interest() {
+        int ops = readPaused || awaitingStore ? 0 : SelectionKey.OP_READ;
+        if (!outQueue.isEmpty() || (state == State.SENDING_FILE && !sendPaused)) ops |= SelectionKey.OP_WRITE;
+        return ops;
+    }
+
+    private void beginTransfer(String user, String what, boolean upload) {
+        Transfer t = server.transfers.open(user, what, upload);
+        transfer = t;
+        grantWake = () -> loop.execute(() -> onGranted(t));
+        allowance = 0;
+        uploadOwed = 0;
+    }
+
+    private void endTransfer() {
+        if (transfer == null) return;
+        if (uploadOwed > 0) server.transfers.charge(transfer, uploadOwed); // the last chunks, nothing left to hold up
+        server.transfers.close(transfer);
+        transfer = null;
+        grantWake = null;
+        sendPaused = readPaused = false;
+        allowance = 0;
+        uploadOwed = 0;
+    }
+
+    // true once the download was granted at least needed bytes, it asks for what is missing to make up to a slice of wanted
+    // otherwise sending pauses (no OP_WRITE) until onGranted
+    private boolean mayDownload(long needed, long wanted) {
+        if (allowance >= needed) return true;
+        int n = (int) (Math.max(needed, Math.min(wanted, TransferScheduler.SLICE)) - allowance);
+        if (server.transfers.tryAcquire(transfer, n, grantWake)) {
+            allowance += n;
+            return true;
+        }
+        asked = n;
+        sendPaused = true;
+        key.interestOps(interest());
+        return false;
+    }
+
+    // pays for the upload chunks received so far, if they have to wait reading stops and the client's tcp window fills up
+    private void chargeUpload() {
+        int n = (int) Math.min(uploadOwed, Integer.MAX_VALUE);
+        uploadOwed -= n;
+        if (!server.transfers.tryAcquire(transfer, n, grantWake)) {
+            readPaused = true;
+            key.interestOps(interest());
+        }
+    }
+
+    // runs on the loop once the scheduler granted the waiting request of t
+    private void onGranted(Transfer t) {
+        if (state == State.CLOSED || t != transfer) return;
+        try {
+            if (sendPaused) {
+                sendPaused = false;
+                allowance += asked;
+                key.interestOps(interest());
+                pumpDownload();
+            } else if (readPaused) {
+                readPaused = false;
+                key.interestOps(interest());
+                if (uploadOwed > 0) chargeUpload();
+            }
+        } catch (Exception e) {
+            onDisconnect(e);
+        }
+    }
+
+    private void close() {
+        if (pushWake != null) server.disablePush(pushWake);
+        state = State.CLOSED;
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.warn("Could not close the connection of {}: {}", username, e);
+        }
+    }
+
+    // hands exactly one framed item to the ObjectInputStream, reading past it would mean blocking
+    private static class FrameInputStream extends InputStream {
+        private byte[] buf;
+        private int pos, end;
+
+        void set(byte[] buf, int pos, int end) {
+            this.buf = buf;
+            this.pos = pos;
+            this.end = end;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (pos >= end) throw new EOFException("read past the framed item");
+            return buf[pos++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (pos >= end) throw new EOFException("read past the framed item");
+            int n = Math.min(len, end - pos);
+            System.arraycopy(buf, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return end - pos;
+        }
+    }
+}
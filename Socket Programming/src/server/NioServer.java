@@ -0,0 +1,39 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+// selector based alternative to the thread per client accept loop in Server
+// the calling thread accepts, connections are spread round robin over a small pool of event loops
+public class NioServer {
+    private Server server;
+    private int port;
+    private EventLoop[] loops;
+
+    public NioServer(Server server, int port, int loopCount) throws IOException {
+        this.server = server;
+        this.port = port;
+        this.loops = new EventLoop[Math.max(1, loopCount)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(server);
+            Thread thr = new Thread(loops[i], "event-loop-" + i);
+            thr.start();
+        }
+    }
+
+    public void run() throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        Log.info("Listening on port {} with {} event loops", port, loops.length);
+
+        int next = 0;
+        while (true) {
+            SocketChannel channel = serverChannel.accept(); // blocking, the login itself is handled by the loop
+            channel.socket().setTcpNoDelay(true); // like NetworkUtil, replies and chunks go out as soon as they are queued
+            loops[next].register(channel);
+            next = (next + 1) % loops.length;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package server;
+
+import util.NetworkUtil;
+import util.UserMessage;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+
+// pushes a user's new messages over their connection in thread and virtual mode, on a thread of its own
+// messages stay in the mailbox until taken here, at most Server.PUSH_BATCH at a time, so a slow client
+// never has more than one batch waiting in memory and the rest simply stays in its mailbox
+// writes only while holding the session lock, ServerThread holds it from reading a request to its last reply
+public class Pusher implements Runnable {
+    private String username;
+    private Server server;
+    private NetworkUtil networkUtil;
+    private Object lock;
+    private ArrayBlockingQueue<Boolean> signal = new ArrayBlockingQueue<>(1); // a wake-up pending, however many messages came
+    private volatile boolean stopped = false;
+
+    public Pusher(String username, Server server, NetworkUtil networkUtil, Object lock) {
+        this.username = username;
+        this.server = server;
+        this.networkUtil = networkUtil;
+        this.lock = lock;
+    }
+
+    public void wake() {
+        signal.offer(true);
+    }
+
+    public void stop() {
+        stopped = true;
+        signal.offer(true);
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!stopped) {
+                signal.take();
+                deliver();
+            }
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    private void deliver() {
+        while (!stopped) {
+            synchronized (lock) {
+                if (stopped) return;
+                List<UserMessage> batch = server.takePushBatch(username);
+                if (batch.isEmpty()) return;
+                for (int i = 0; i < batch.size(); i++) {
+                    try {
+                        networkUtil.write(batch.get(i));
+                    } catch (IOException e) {
+                        // the session notices the broken connection on its own, the messages wait for the next login
+                        server.returnMessages(username, batch.subList(i, batch.size()));
+                        stopped = true;
+                        return;
+                    }
+                }
+            }
+        }
+    }
+}
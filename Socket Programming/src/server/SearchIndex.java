@@ -0,0 +1,167 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Function;
+
+// inverted index over one text field of the items added to it (file names, request descriptions)
+// text is split into lowercase words, each word keeps the ids of the items that contain it, in the order they were added
+// the words are kept sorted, so a query word matches every word it is a prefix of, and all query words have to match
+// results are ranked by how many query words match a whole word, then newest first
+// adding is serialized, searching needs no lock
+public class SearchIndex<T> {
+    // ids of the items containing one word, ascending, readers see a prefix
+    private static class Postings {
+        volatile int[] ids = new int[2];
+        volatile int size;
+
+        void add(int id) {
+            int n = size;
+            if (n == ids.length) ids = Arrays.copyOf(ids, n * 2);
+            ids[n] = id;
+            size = n + 1;
+        }
+    }
+
+    // walks one postings list from the newest id down
+    private static class Cursor {
+        int[] ids;
+        int next;
+
+        Cursor(Postings postings) {
+            int n = postings.size; // size first, then ids, so the array holds at least n ids
+            ids = postings.ids;
+            next = n - 1;
+        }
+    }
+
+    private static class Hit {
+        int id, score;
+
+        Hit(int id, int score) {
+            this.id = id;
+            this.score = score;
+        }
+    }
+
+    private ConcurrentSkipListMap<String, Postings> words = new ConcurrentSkipListMap<>();
+    private AppendList<T> items = new AppendList<>(); // id -> item
+    private Function<T, String> text;
+
+    public SearchIndex(Function<T, String> text) {
+        this.text = text;
+    }
+
+    public synchronized void add(T item) {
+        int id = items.size();
+        items.append(item, id); // before its words, so a search that finds the id also finds the item
+        String previous = null;
+        String[] tokens = tokenize(text.apply(item));
+        Arrays.sort(tokens); // so a word that shows up twice is added once
+        for (String token : tokens) {
+            if (token.equals(previous)) continue;
+            words.computeIfAbsent(token, k -> new Postings()).add(id);
+            previous = token;
+        }
+    }
+
+    public int size() {
+        return items.size();
+    }
+
+    public int wordCount() {
+        return words.size();
+    }
+
+    // the best limit items that contain every query word (or a word starting with it)
+    // only the query word with the fewest candidates is walked, the others are checked on the item's own text,
+    // and the walk stops early once limit items have the best score any item can have
+    public List<T> search(String query, int limit) {
+        String[] terms = tokenize(query);
+        if (terms.length == 0 || limit <= 0) return new ArrayList<>();
+
+        Collection<Postings> driver = null;
+        long driverSize = Long.MAX_VALUE;
+        int topScore = 0; // a term can only match whole if it is a word of some item
+        for (String term : terms) {
+            if (words.containsKey(term)) topScore++;
+            Collection<Postings> matches = words.subMap(term, true, term + Character.MAX_VALUE, true).values();
+            long size = 0;
+            for (Postings p : matches) size += p.size;
+            if (size == 0) return new ArrayList<>();
+            if (size < driverSize) {
+                driver = matches;
+                driverSize = size;
+            }
+        }
+
+        // newest id first over all the words the driving term expands to
+        PriorityQueue<Cursor> cursors = new PriorityQueue<>((a, b) -> b.ids[b.next] - a.ids[a.next]);
+        for (Postings p : driver) {
+            Cursor c = new Cursor(p);
+            if (c.next >= 0) cursors.add(c);
+        }
+        PriorityQueue<Hit> best = new PriorityQueue<>((a, b) -> a.score != b.score ? a.score - b.score : a.id - b.id); // worst on top
+        int last = -1;
+        while (!cursors.isEmpty()) {
+            Cursor c = cursors.poll();
+            int id = c.ids[c.next--];
+            if (c.next >= 0) cursors.add(c);
+            if (id == last) continue; // the item has two words with this prefix
+            last = id;
+
+            int score = score(tokenize(text.apply(items.get(id))), terms);
+            if (score < 0) continue;
+            best.add(new Hit(id, score));
+            if (best.size() > limit) best.poll();
+            if (best.size() == limit && best.peek().score == topScore) break; // nothing older can rank higher
+        }
+
+        List<T> results = new ArrayList<>(best.size());
+        while (!best.isEmpty()) results.add(items.get(best.poll().id));
+        Collections.reverse(results);
+        return results;
+    }
+
+    // number of terms equal to a word of the item, -1 if some term is not even a prefix of one
+    private static int score(String[] tokens, String[] terms) {
+        int score = 0;
+        for (String term : terms) {
+            boolean prefix = false, whole = false;
+            for (String token : tokens) {
+                if (token.startsWith(term)) {
+                    prefix = true;
+                    if (token.length() == term.length()) {
+                        whole = true;
+                        break;
+                    }
+                }
+            }
+            if (!prefix) return -1;
+            if (whole) score++;
+        }
+        return score;
+    }
+
+    // lowercase runs of letters and digits, "Report_2023.PDF" is report, 2023 and pdf
+    public static String[] tokenize(String s) {
+        if (s == null) return new String[0];
+        List<String> tokens = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= s.length(); i++) {
+            boolean word = i < s.length() && Character.isLetterOrDigit(s.charAt(i));
+            if (word && start < 0) {
+                start = i;
+            } else if (!word && start >= 0) {
+                tokens.add(s.substring(start, i).toLowerCase());
+                start = -1;
+            }
+        }
+        return tokens.toArray(new String[0]);
+    }
+}
@@ -0,0 +1,304 @@
+package server;
+
+import java.io.IOException;
+import java.io.ObjectStreamConstants;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.List;
+
+// walks the java serialization grammar over bytes that arrived so far, just far enough to know where the
+// next top level item (an object written by writeUnshared or a block of raw bytes) ends.
+// the blocking server can simply call readUnshared() and wait, but a selector thread can not,
+// so NioConnection only hands complete items to its ObjectInputStream.
+// lengths come from the client, a negative one or an item growing past maxItem is a StreamCorruptedException,
+// otherwise a bad length could move backwards through the buffer or have the connection buffer it forever
+// https://docs.oracle.com/en/java/javase/17/docs/specs/serialization/protocol.html
+public class SerialStreamFramer implements ObjectStreamConstants {
+    public static final int OBJECT = 1, BLOCK_DATA = 2;
+
+    private static final Object OTHER_HANDLE = new Object();
+    private static final IOException INCOMPLETE = new IOException("incomplete item");
+
+    private static class ClassDesc {
+        byte flags;
+        char[] typeCodes;
+        String name;
+        ClassDesc superDesc;
+    }
+
+    // handle table, mirrors the one inside ObjectInputStream
+    private List<Object> handles = new ArrayList<>();
+
+    private byte[] buf;
+    private int pos, limit;
+    private int maxItem; // bytes one top level item may take
+
+    public SerialStreamFramer(int maxItem) {
+        this.maxItem = maxItem;
+    }
+
+    // result of the last successful call to next()
+    public int itemType;
+    public int itemStart, itemEnd; // whole item inside the buffer
+    public int dataStart; // payload start for block data
+
+    // tries to frame one item starting at buf[start], bytes up to limit are valid
+    // returns false (and leaves the handle table untouched) if more bytes are needed
+    public boolean next(byte[] buf, int start, int limit) throws IOException {
+        this.buf = buf;
+        this.pos = start;
+        this.limit = limit;
+        int savedHandles = handles.size();
+        List<Object> beforeReset = null;
+
+        try {
+            itemStart = start;
+            // a reset belongs to the object after it, ObjectInputStream reads both in one call
+            while (peekByte() == TC_RESET) {
+                pos++;
+                if (beforeReset == null) beforeReset = new ArrayList<>(handles);
+                handles.clear();
+            }
+            byte tc = readByte();
+            if (tc == TC_BLOCKDATA) {
+                int len = readByte() & 0xFF;
+                dataStart = pos;
+                skip(len);
+                itemType = BLOCK_DATA;
+            } else if (tc == TC_BLOCKDATALONG) {
+                int len = readInt();
+                dataStart = pos;
+                skip(len);
+                itemType = BLOCK_DATA;
+            } else {
+                pos--;
+                readContent();
+                itemType = OBJECT;
+            }
+            itemEnd = pos;
+            return true;
+        } catch (IOException e) {
+            if (e != INCOMPLETE) throw e;
+            if (beforeReset != null) handles = beforeReset;
+            else while (handles.size() > savedHandles) handles.remove(handles.size() - 1);
+            return false;
+        }
+    }
+
+    private void readContent() throws IOException {
+        byte tc = readByte();
+        switch (tc) {
+            case TC_NULL:
+                return;
+            case TC_REFERENCE:
+                lookup(readInt());
+                return;
+            case TC_STRING:
+                handles.add(OTHER_HANDLE);
+                skip(readUnsignedShort());
+                return;
+            case TC_LONGSTRING:
+                handles.add(OTHER_HANDLE);
+                skip(readLong());
+                return;
+            case TC_CLASSDESC:
+            case TC_PROXYCLASSDESC:
+                pos--;
+                readClassDesc();
+                return;
+            case TC_CLASS:
+                readClassDesc();
+                handles.add(OTHER_HANDLE);
+                return;
+            case TC_ENUM:
+                readClassDesc();
+                handles.add(OTHER_HANDLE);
+                readContent(); // constant name
+                return;
+            case TC_ARRAY:
+                readArray();
+                return;
+            case TC_OBJECT:
+                readObject();
+                return;
+            case TC_BLOCKDATA:
+                skip(readByte() & 0xFF);
+                return;
+            case TC_BLOCKDATALONG:
+                skip(readInt());
+                return;
+            default:
+                throw new StreamCorruptedException("unexpected type code " + tc + " in stream");
+        }
+    }
+
+    private ClassDesc readClassDesc() throws IOException {
+        byte tc = readByte();
+        if (tc == TC_NULL) return null;
+        if (tc == TC_REFERENCE) {
+            Object o = lookup(readInt());
+            if (!(o instanceof ClassDesc)) throw new StreamCorruptedException("reference is not a class descriptor");
+            return (ClassDesc) o;
+        }
+
+        ClassDesc desc = new ClassDesc();
+        if (tc == TC_CLASSDESC) {
+            desc.name = readUTF();
+            skip(8); // serialVersionUID
+            handles.add(desc);
+            desc.flags = readByte();
+            int fieldCount = readUnsignedShort();
+            desc.typeCodes = new char[fieldCount];
+            for (int i = 0; i < fieldCount; i++) {
+                desc.typeCodes[i] = (char) readByte();
+                readUTF(); // field name
+                if (desc.typeCodes[i] == 'L' || desc.typeCodes[i] == '[') readContent(); // field type string
+            }
+        } else if (tc == TC_PROXYCLASSDESC) {
+            desc.name = "proxy";
+            desc.flags = SC_SERIALIZABLE;
+            desc.typeCodes = new char[0];
+            handles.add(desc);
+            int interfaceCount = readInt();
+            for (int i = 0; i < interfaceCount; i++) readUTF();
+        } else {
+            throw new StreamCorruptedException("expected class descriptor, found type code " + tc);
+        }
+
+        skipAnnotation();
+        desc.superDesc = readClassDesc();
+        return desc;
+    }
+
+    private void readObject() throws IOException {
+        ClassDesc desc = readClassDesc();
+        handles.add(OTHER_HANDLE);
+
+        // class data is written from the topmost serializable superclass down
+        List<ClassDesc> chain = new ArrayList<>();
+        for (ClassDesc d = desc; d != null; d = d.superDesc) chain.add(0, d);
+
+        for (ClassDesc d : chain) {
+            if ((d.flags & SC_EXTERNALIZABLE) != 0) {
+                if ((d.flags & SC_BLOCK_DATA) == 0) {
+                    throw new StreamCorruptedException("can not frame old style externalizable " + d.name);
+                }
+                skipAnnotation();
+            } else {
+                readFieldValues(d);
+                if ((d.flags & SC_WRITE_METHOD) != 0) skipAnnotation();
+            }
+        }
+    }
+
+    private void readFieldValues(ClassDesc desc) throws IOException {
+        for (char typeCode : desc.typeCodes) {
+            readValue(typeCode);
+        }
+    }
+
+    private void readValue(char typeCode) throws IOException {
+        switch (typeCode) {
+            case 'B':
+            case 'Z':
+                skip(1);
+                break;
+            case 'C':
+            case 'S':
+                skip(2);
+                break;
+            case 'I':
+            case 'F':
+                skip(4);
+                break;
+            case 'J':
+            case 'D':
+                skip(8);
+                break;
+            case 'L':
+            case '[':
+                readContent();
+                break;
+            default:
+                throw new StreamCorruptedException("unknown field type code " + typeCode);
+        }
+    }
+
+    private void readArray() throws IOException {
+        ClassDesc desc = readClassDesc();
+        handles.add(OTHER_HANDLE);
+        int size = readInt();
+        if (size < 0) throw new StreamCorruptedException("negative array size " + size);
+        char elementType = desc.name.charAt(1); // array class names look like [B, [I, [Ljava.lang.String;
+        if (elementType == 'L' || elementType == '[') {
+            for (int i = 0; i < size; i++) readContent();
+        } else {
+            for (int i = 0; i < size; i++) readValue(elementType);
+        }
+    }
+
+    private void skipAnnotation() throws IOException {
+        while (true) {
+            if (peekByte() == TC_ENDBLOCKDATA) {
+                pos++;
+                return;
+            }
+            readContent();
+        }
+    }
+
+    private Object lookup(int handle) throws IOException {
+        int index = handle - baseWireHandle;
+        if (index < 0 || index >= handles.size()) throw new StreamCorruptedException("invalid handle " + handle);
+        return handles.get(index);
+    }
+
+    private void need(long n) throws IOException {
+        if (n < 0) throw new StreamCorruptedException("negative length " + n);
+        if (pos - itemStart + n > maxItem) throw new StreamCorruptedException("item of more than " + maxItem + " bytes");
+        if (limit - pos < n) throw INCOMPLETE;
+    }
+
+    private void skip(long n) throws IOException {
+        need(n);
+        pos += (int) n;
+    }
+
+    private byte peekByte() throws IOException {
+        need(1);
+        return buf[pos];
+    }
+
+    private byte readByte() throws IOException {
+        need(1);
+        return buf[pos++];
+    }
+
+    private int readUnsignedShort() throws IOException {
+        need(2);
+        int v = ((buf[pos] & 0xFF) << 8) | (buf[pos + 1] & 0xFF);
+        pos += 2;
+        return v;
+    }
+
+    private int readInt() throws IOException {
+        need(4);
+        int v = ((buf[pos] & 0xFF) << 24) | ((buf[pos + 1] & 0xFF) << 16) | ((buf[pos + 2] & 0xFF) << 8) | (buf[pos + 3] & 0xFF);
+        pos += 4;
+        return v;
+    }
+
+    private long readLong() throws IOException {
+        long high = readInt() & 0xFFFFFFFFL;
+        long low = readInt() & 0xFFFFFFFFL;
+        return (high << 32) | low;
+    }
+
+    private String readUTF() throws IOException {
+        int len = readUnsignedShort();
+        need(len);
+        String s = new String(buf, pos, len, java.nio.charset.StandardCharsets.UTF_8); // only used for class names
+        pos += len;
+        return s;
+    }
+}
@@ -1,93 +1,673 @@
 package server;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadFactory;
 
 import util.*;
 
 public class Server {
+    public static final String BLOB_DIR = "src/storage/.blobs"; // uploaded files, named by their sha-256
     private ServerSocket serverSocket;
-    private HashMap<String, NetworkUtil> clientMap;
-    private List<String> userList;
-    private HashMap<String, List<FileInfo>> fileMap;
-    private HashMap<String, List<UserMessage>> messageMap;
-    private List<FileRequest> fileRequestList;
-    private int FILE_COUNT;
-    public int MIN_CHUNK_SIZE, MAX_CHUNK_SIZE;
-    public long CUR_BUFFER_SIZE, MAX_BUFFER_SIZE; // in bytes
-    public HashMap<String, List<byte[]>> bufferMap; // fileID -> bufferArrays
-
-    public Server(long MAX_BUFFER_SIZE, int MIN_CHUNK_SIZE, int MAX_CHUNK_SIZE) {
+    private String mode; // thread, virtual or nio
+    private int loopCount; // event loops in nio mode
+    private ThreadFactory sessionThreads; // runs login + ServerThread for each connection
+    private ConcurrentSkipListMap<String, Object> clientMap; // username -> its NetworkUtil (or NioConnection in nio mode), sorted for paging
+    private Catalog catalog;
+    private MetadataStore store; // logs every catalog change, the catalog is read directly
+    private IdAllocator fileIDs, requestIDs, uploadIDs;
+    public int MIN_CHUNK_SIZE, MAX_CHUNK_SIZE; // transfers start at the smallest chunk and adaptive ones grow up to the largest
+    public int UPLOAD_WINDOW = 32; // chunks a windowed upload may have in flight before the next ChunkAck, at most
+    public long CUR_BUFFER_SIZE, MAX_BUFFER_SIZE; // in bytes, memory held by uploads in flight
+    public long UPLOAD_TTL = 10 * 60 * 1000; // ms an interrupted upload waits to be resumed before its temp file is deleted
+    public ConcurrentHashMap<String, UploadSession> uploadMap; // upload session ID -> upload in progress
+    public int MAX_DOWNLOAD_STREAMS = 8; // data connections one parallel download may use
+    public long MIN_STREAM_BYTES = 1 << 20; // no range of a parallel download is smaller than this
+    public long DOWNLOAD_GRANT_TTL = 60 * 1000; // ms the data connections of a parallel download have to show up
+    private ConcurrentHashMap<String, DownloadGrant> grants = new ConcurrentHashMap<>(); // token -> parallel download
+    private SecureRandom tokens = new SecureRandom();
+    public FileCache cache; // hot blocks of downloaded files
+    public static String STORAGE = "mapped"; // engine for the bytes of stored files, main sets it before the server starts
+    public StorageEngine storage = StorageEngine.named(STORAGE);
+    public TransferScheduler transfers; // rate limits and the order in which waiting transfers get bandwidth
+    public static final int PUSH_BATCH = 64; // messages taken from a mailbox per push, the rest wait for the next round
+    private ConcurrentHashMap<String, Runnable> pushTargets = new ConcurrentHashMap<>(); // username -> wakes its pusher
+    public static final int DEFAULT_PAGE = 100, MAX_PAGE = 1000; // entries per ListPage
+    public static final int DEFAULT_RESULTS = 20; // matches of each kind a search returns unless asked for more
+    public int MAX_MUX_STREAMS = 32; // streams one client may have open at once on a mux connection
+    public int MAX_FRAME_SIZE = 1 << 20; // bytes one object or data block from a client may take in nio mode, more closes the connection
+    public Metrics metrics = new Metrics();
+    public static int ADMIN_PORT = 0; // loopback port that answers with the metrics, 0 for none, main sets it before the server starts
+    public static final long METRICS_DUMP_MS = 10000; // how often the metrics go to METRICS_FILE
+    public static final String METRICS_FILE = "src/storage/.meta/metrics.txt";
+
+    public Server(long MAX_BUFFER_SIZE, int MIN_CHUNK_SIZE, int MAX_CHUNK_SIZE, String mode, int loopCount, long uploadTTL) {
+        this(MAX_BUFFER_SIZE, MIN_CHUNK_SIZE, MAX_CHUNK_SIZE, mode, loopCount, uploadTTL, 256L << 20);
+    }
+
+    public Server(long MAX_BUFFER_SIZE, int MIN_CHUNK_SIZE, int MAX_CHUNK_SIZE, String mode, int loopCount, long uploadTTL, long cacheBytes) {
+        this(MAX_BUFFER_SIZE, MIN_CHUNK_SIZE, MAX_CHUNK_SIZE, mode, loopCount, uploadTTL, cacheBytes, new TransferScheduler(0, 0));
+    }
+
+    public Server(long MAX_BUFFER_SIZE, int MIN_CHUNK_SIZE, int MAX_CHUNK_SIZE, String mode, int loopCount, long uploadTTL, long cacheBytes, TransferScheduler transfers) {
+        this(MAX_BUFFER_SIZE, MIN_CHUNK_SIZE, MAX_CHUNK_SIZE, mode, loopCount, uploadTTL, cacheBytes, transfers, true);
+    }
+
+    // listen false sets the server up without taking the port, so a benchmark can call its methods directly
+    // and start listen() on a thread of its own when it needs clients
+    public Server(long MAX_BUFFER_SIZE, int MIN_CHUNK_SIZE, int MAX_CHUNK_SIZE, String mode, int loopCount, long uploadTTL, long cacheBytes, TransferScheduler transfers, boolean listen) {
+        this.mode = mode;
+        this.loopCount = loopCount;
         this.MAX_BUFFER_SIZE = MAX_BUFFER_SIZE;
+        this.UPLOAD_TTL = uploadTTL;
         this.MIN_CHUNK_SIZE = MIN_CHUNK_SIZE;
         this.MAX_CHUNK_SIZE = MAX_CHUNK_SIZE;
         this.CUR_BUFFER_SIZE = 0;
-        clientMap = new HashMap<>();
-        userList = new ArrayList<>();
-        fileMap = new HashMap<>();
-        fileRequestList = new ArrayList<>();
-        messageMap = new HashMap<>();
-        bufferMap = new HashMap<>();
+        clientMap = new ConcurrentSkipListMap<>();
+        catalog = new Catalog();
+        uploadMap = new ConcurrentHashMap<>();
+        cache = new FileCache(cacheBytes);
+        this.transfers = transfers;
+        transfers.metrics = metrics;
+        metrics.gauge("sessions_active", clientMap::size);
+        metrics.gauge("uploads_open", uploadMap::size);
+        metrics.gauge("upload_buffer_bytes", this::bufferInUse);
+        metrics.gauge("upload_buffer_max_bytes", () -> this.MAX_BUFFER_SIZE);
+        metrics.gauge("file_cache_bytes", () -> cache.used());
 
         try {
-            System.out.println("Server started...");
-            serverSocket = new ServerSocket(33333);
+            Log.info("Server started in {} mode...", mode);
             File file = new File("src/storage");
             file.mkdir();
-            while (true) {
-                serve(serverSocket.accept());
+            File meta = new File("src/storage/.meta");
+            meta.mkdir();
+            new File(BLOB_DIR).mkdir();
+            fileIDs = new IdAllocator(new File(meta, "file.id").toPath());
+            requestIDs = new IdAllocator(new File(meta, "request.id").toPath());
+            uploadIDs = new IdAllocator(new File(meta, "upload.id").toPath());
+            store = new MetadataStore(meta, catalog, 100000);
+            Log.info("Catalog restored: {} records in {} ms", store.recordsReplayed, store.restoreMillis);
+            startReaper();
+            startMetricsDump();
+            if (ADMIN_PORT > 0) {
+                try {
+                    new AdminEndpoint(ADMIN_PORT, metrics).start();
+                    Log.info("Metrics on 127.0.0.1:{}", ADMIN_PORT);
+                } catch (IOException e) {
+                    Log.warn("No admin endpoint, port {}: {}", ADMIN_PORT, e);
+                }
+            }
+            if (listen) listen();
+        } catch (Exception e) {
+            Log.warn("Server failed to start: {}", e);
+        }
+    }
+
+    // accepts clients until the jvm ends
+    public void listen() {
+        try {
+            if (mode.equals("nio")) {
+                // a few selector threads handle every connection, no thread per client
+                new NioServer(this, 33333, loopCount).run();
+            } else {
+                if (mode.equals("virtual")) sessionThreads = virtualThreadFactory();
+                else sessionThreads = Thread::new;
+
+                // opened through a channel so accepted sockets can use FileChannel.transferTo for downloads
+                ServerSocketChannel serverChannel = ServerSocketChannel.open();
+                serverChannel.bind(new InetSocketAddress(33333));
+                serverSocket = serverChannel.socket();
+                while (true) {
+                    Socket clientSocket = serverSocket.accept();
+                    // the login handshake blocks too, so it runs on the session thread and not here
+                    sessionThreads.newThread(() -> {
+                        try {
+                            serve(clientSocket);
+                        } catch (Exception e) {
+                            Log.warn("Login failed: {}", e);
+                            try {
+                                clientSocket.close();
+                            } catch (IOException ignored) {
+                            }
+                        }
+                    }).start();
+                }
             }
         } catch (Exception e) {
-            System.out.println("Server failed to start: " + e);
+            Log.warn("Server failed to start: {}", e);
         }
     }
 
     public void serve(Socket clientSocket) throws IOException, ClassNotFoundException {
         NetworkUtil networkUtil = new NetworkUtil(clientSocket);
-        String clientName = (String) networkUtil.read();
+        Object hello = networkUtil.read();
+        if (hello instanceof DataConnectionRequest) {
+            serveDataConnection(networkUtil, (DataConnectionRequest) hello);
+            return;
+        }
 
-        if (clientMap.containsKey(clientName)) {
-            // user logged in already
-            networkUtil.write("User is already logged in!");
+        // old clients send just the username, newer ones a LoginRequest that can ask for the binary protocol
+        String clientName;
+        LoginRequest loginRequest = null;
+        if (hello instanceof LoginRequest) {
+            loginRequest = (LoginRequest) hello;
+            clientName = loginRequest.username;
+        } else {
+            clientName = (String) hello;
+        }
+
+        String response = login(clientName, networkUtil);
+        boolean accepted = response.startsWith("Welcome");
+        boolean push = false, mux = false;
+        if (loginRequest == null) {
+            networkUtil.write(response);
+        } else {
+            boolean binary = accepted && loginRequest.binary;
+            push = accepted && loginRequest.push;
+            mux = binary && loginRequest.mux;
+            LoginResponse loginResponse = new LoginResponse(response, binary, push);
+            loginResponse.mux = mux;
+            networkUtil.write(loginResponse);
+            if (binary) networkUtil.useBinaryProtocol();
+        }
+        if (!accepted) {
             networkUtil.closeConnection();
             return;
+        }
+        if (mux) {
+            serveMux(clientName, networkUtil, push);
+            return;
+        }
+
+        ServerThread serverThread = new ServerThread(clientName, this, networkUtil);
+        if (push) sessionThreads.newThread(serverThread.enablePush()).start();
+        serverThread.run(); // stays on the session thread
+    }
+
+    // every stream the client opens gets a ServerThread of its own, on a session thread as a connection would,
+    // so a listing answers while an upload on another stream goes on; pushed messages go out on stream 0
+    // the session thread reads the frames until the connection is gone
+    private void serveMux(String clientName, NetworkUtil networkUtil, boolean push) throws IOException {
+        MuxSession session = new MuxSession(networkUtil, sessionThreads,
+                stream -> sessionThreads.newThread(new ServerThread(clientName, this, stream, stream.session())).start(), MAX_MUX_STREAMS);
+        Pusher pusher = null;
+        Runnable wake = null;
+        if (push) {
+            pusher = new Pusher(clientName, this, session.stream(0), new Object()); // nothing else writes on stream 0
+            wake = pusher::wake;
+            sessionThreads.newThread(pusher).start();
+            enablePush(clientName, wake);
+        }
+        session.run();
+        if (pusher != null) {
+            disablePush(wake);
+            pusher.stop();
+        }
+        if (clientMap.remove(clientName, networkUtil)) { // not logged out
+            metrics.disconnects.increment();
+            Log.info("{} got disconnected.", clientName);
+        }
+    }
+
+    // one range of a parallel download, raw, then the connection is closed
+    private void serveDataConnection(NetworkUtil networkUtil, DataConnectionRequest req) throws IOException {
+        try {
+            DownloadGrant grant = getDownloadGrant(req.token);
+            if (grant == null || !grant.hasRange(req.range)) {
+                networkUtil.write("Invalid or expired download token.");
+                return;
+            }
+            networkUtil.write("ok");
+            long start = grant.bounds[req.range], end = grant.bounds[req.range + 1];
+            Transfer transfer = transfers.open(grant.username, "range " + req.range + " of " + grant.fileInfo.fileName, false);
+            try {
+                sendRaw(networkUtil, transfer, grant.fileInfo, start, end - start, grant.cached);
+                networkUtil.flush();
+            } finally {
+                transfers.close(transfer);
+            }
+        } finally {
+            networkUtil.closeConnection();
+        }
+    }
+
+    // sends [offset, offset + length) of the file raw, out of the cache or with transferTo straight from disk
+    // one slice at a time, each waits for its tokens from the transfer scheduler
+    public void sendRaw(NetworkUtil networkUtil, Transfer transfer, FileInfo fileInfo, long offset, long length, boolean cached) throws IOException {
+        Path path = storagePath(fileInfo);
+        if (!cached) {
+            try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+                while (length > 0) {
+                    int n = (int) Math.min(length, TransferScheduler.SLICE);
+                    transfers.acquire(transfer, n);
+                    networkUtil.sendFile(fileChannel, offset, n);
+                    offset += n;
+                    length -= n;
+                }
+            }
+            return;
+        }
+        ByteBuffer block = null;
+        while (length > 0) {
+            if (block == null || !block.hasRemaining()) {
+                block = cache.get(path, offset);
+                if (block.remaining() > length) block.limit(block.position() + (int) length);
+            }
+            int n = Math.min(block.remaining(), TransferScheduler.SLICE);
+            transfers.acquire(transfer, n);
+            ByteBuffer slice = block.duplicate();
+            slice.limit(slice.position() + n);
+            block.position(block.position() + n);
+            networkUtil.sendBytes(slice);
+            cache.served(n);
+            offset += n;
+            length -= n;
+        }
+    }
+
+    // virtual threads are final in java 21, looked up reflectively so the project still builds on 17
+    // falls back to platform threads when the running jvm does not have them
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "session-", 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            Log.warn("Virtual threads are not available on this JVM, using platform threads");
+            return Thread::new;
+        }
+    }
+
+    // registers the user as active and returns the greeting, or the rejection message if already logged in
+    public String login(String clientName, Object session) {
+        if (clientMap.putIfAbsent(clientName, session) != null) {
+            // user logged in already
+            return "User is already logged in!";
+        }
+        boolean isNew;
+        try {
+            isNew = store.registerUser(clientName);
+        } catch (RuntimeException e) {
+            clientMap.remove(clientName, session); // not logged in after all
+            throw e;
+        }
+        return greet(clientName, isNew);
+    }
+
+    // login for an event loop, which must not wait for the catalog log: a new user's greeting comes once the user is on disk
+    public CompletableFuture<String> loginAsync(String clientName, Object session) {
+        if (clientMap.putIfAbsent(clientName, session) != null) {
+            return CompletableFuture.completedFuture("User is already logged in!");
+        }
+        return store.registerUserAsync(clientName).handle((isNew, e) -> {
+            if (e == null) return greet(clientName, isNew);
+            clientMap.remove(clientName, session);
+            throw e instanceof RuntimeException ? (RuntimeException) e : new IllegalStateException(e);
+        });
+    }
+
+    private String greet(String clientName, boolean isNew) {
+        Log.info("{} logged in.", clientName);
+        metrics.logins.increment();
+
+        if (!isNew) {
+            // log user in, but no need to create a new directory
+            return "Welcome back, " + clientName + "!";
         } else {
-            System.out.println(clientName + " logged in.");
-            clientMap.put(clientName, networkUtil);
+            // log user in, and create a new directory
+            File file = new File("src/storage/" + clientName);
+            if (file.mkdir()) {
+                Log.debug("Directory created for {}", clientName);
+            } else {
+                Log.debug("Directory already exists for {}", clientName);
+            }
+            return "Welcome, " + clientName + "!";
+        }
+    }
 
-            if (userList.contains(clientName)) {
-                // log user in, but no need to create a new directory
-                networkUtil.write("Welcome back, " + clientName + "!");
+    public static void main(String[] args) {
+        // usage: Server [thread|virtual|nio] [event loop count] [upload ttl in seconds] [file cache MB] [global rate] [per user rate]
+        //        [min chunk KB] [max chunk KB] [admin port] [mapped|stream storage]
+        // rates are bytes per second like 512k or 10m, 0 for no limit, they can be changed later on the console
+        // transfers start at the min chunk size, adaptive uploads and downloads grow towards the max, equal bounds fix the size
+        String mode = args.length > 0 ? args[0] : "thread";
+        int loopCount = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        long uploadTTL = args.length > 2 ? Long.parseLong(args[2]) * 1000 : 10 * 60 * 1000;
+        long cacheBytes = args.length > 3 ? Long.parseLong(args[3]) << 20 : 256L << 20;
+        long globalRate = args.length > 4 ? Rates.parse(args[4]) : 0;
+        long userRate = args.length > 5 ? Rates.parse(args[5]) : 0;
+        int minChunk = args.length > 6 ? Integer.parseInt(args[6]) * 1024 : 1024;
+        int maxChunk = args.length > 7 ? Integer.parseInt(args[7]) * 1024 : 256 * 1024;
+        ADMIN_PORT = args.length > 8 ? Integer.parseInt(args[8]) : 33335;
+        STORAGE = args.length > 9 ? args[9] : "mapped";
+        TransferScheduler transfers = new TransferScheduler(globalRate, userRate);
+        startConsole(transfers);
+        Server server = new Server(1000000000, minChunk, Math.max(minChunk, maxChunk), mode, loopCount, uploadTTL, cacheBytes, transfers);
+    }
+
+    // commands typed on the server's stdin, to change the bandwidth limits and the log level without a restart and to look at the metrics
+    // their answers go straight to the console, not through the log
+    private static void startConsole(TransferScheduler transfers) {
+        Thread console = new Thread(() -> {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
+            while (true) {
+                String line;
+                try {
+                    line = reader.readLine();
+                } catch (IOException e) {
+                    return;
+                }
+                if (line == null) return; // no console
+                String[] words = line.trim().split("\\s+");
+                try {
+                    if (words.length == 3 && words[0].equals("rate") && words[1].equals("global")) {
+                        transfers.setGlobalRate(Rates.parse(words[2]));
+                    } else if (words.length == 3 && words[0].equals("rate") && words[1].equals("user")) {
+                        transfers.setUserRate(Rates.parse(words[2]));
+                    } else if (words.length == 4 && words[0].equals("rate") && words[1].equals("user")) {
+                        transfers.setUserRate(words[2], words[3].equals("default") ? -1 : Rates.parse(words[3]));
+                    } else if (words.length == 3 && words[0].equals("weight")) {
+                        transfers.setWeight(words[1], Double.parseDouble(words[2]));
+                    } else if (words.length == 1 && words[0].equals("metrics")) {
+                        Metrics metrics = transfers.metrics; // the server's, once it is up
+                        if (metrics != null) System.out.print(metrics.snapshot());
+                        continue;
+                    } else if (words.length == 2 && words[0].equals("log")) {
+                        Log.level = Log.Level.valueOf(words[1].toUpperCase());
+                        System.out.println("Logging " + Log.level + " and above");
+                        continue;
+                    } else if (!(words.length == 1 && words[0].equals("transfers"))) {
+                        if (!line.trim().isEmpty()) {
+                            System.out.println("Commands: rate global <rate>, rate user <rate>, rate user <name> <rate|default>, weight <name> <weight>, transfers, metrics, log debug|info|warn|error");
+                        }
+                        continue;
+                    }
+                    for (String s : transfers.describe()) System.out.println(s);
+                } catch (IllegalArgumentException e) {
+                    System.out.println("Bad value: " + e.getMessage());
+                }
+            }
+        }, "console");
+        console.setDaemon(true);
+        console.start();
+    }
+
+    // answers the requests that need no transfer state, used by both ServerThread and NioConnection
+    // returns the object to send back, or null if the request has no reply
+    public Object handleControlRequest(String username, Request request) {
+        RequestType requestType = request.requestType;
+
+        if (requestType == RequestType.SHOW_REGISTERED_USERLIST) {
+            Log.debug("Sending registered user list to {}", username);
+            return new SendableList(getUserList("registered"));
+        } else if (requestType == RequestType.SHOW_ACTIVE_USERLIST) {
+            Log.debug("Sending active user list to {}", username);
+            return new SendableList(getUserList("active"));
+        } else if (requestType == RequestType.SHOW_MY_FILES) {
+            Log.debug("Sending personal file list to {}", username);
+            return new SendableList(getMyFiles(username));
+        } else if (requestType == RequestType.SHOW_SHARED_FILES) {
+            Log.debug("Sending shared file list to {}", username);
+            return new SendableList(getSharedFiles());
+        } else if (requestType == RequestType.FILE_REQUEST) {
+            FileRequest fileRequest = (FileRequest) request;
+            fileRequest.requestID = generateRequestID();
+            Log.debug("{} requested a file, request ID: {}", username, fileRequest.requestID);
+            addFileRequest(fileRequest);
+            broadcastRequest(fileRequest);
+            return null;
+        } else if (requestType == RequestType.SHOW_MESSAGES) {
+            Log.debug("Showing messages to {}", username);
+            return new SendableList(getMessages(username));
+        } else if (requestType == RequestType.SHOW_FILE_REQUESTS) {
+            Log.debug("Showing file requests to {}", username);
+            return new SendableList(getFileRequests());
+        } else if (requestType == RequestType.LIST) {
+            ListRequest listRequest = (ListRequest) request;
+            Log.debug("Sending a page of the {} list to {}", listRequest.list, username);
+            return listPage(username, listRequest);
+        } else if (requestType == RequestType.SEARCH) {
+            SearchRequest searchRequest = (SearchRequest) request;
+            Log.debug("{} searched for: {}", username, searchRequest.query);
+            return search(searchRequest);
+        } else if (requestType == RequestType.REQUESTED_UPLOAD_CROSSCHECK) {
+            // crosscheck if the file_request ID for this upload really exists
+            String requestID = ((MatchFileRequestID) request).requestID;
+            boolean accepted = checkRequestID(requestID);
+            if (accepted) {
+                Log.debug("Go on with upload from {} for request ID: {}", username, requestID);
+                return "yes";
             } else {
-                // log user in, and create a new directory
-                fileMap.put(clientName, new ArrayList<>());
-                messageMap.put(clientName, new ArrayList<>());
-                userList.add(clientName);
-                File file = new File("src/storage/" + clientName);
-                if (file.mkdir()) {
-                    System.out.println("Directory created for " + clientName);
-                } else {
-                    System.out.println("Directory already exists for " + clientName);
+                Log.warn("Rejected upload request from {} for no match with any request ID", username);
+                return "no";
+            }
+        }
+        return null;
+    }
+
+    // admits an upload if its chunk buffer fits in the remaining buffer budget, returns null otherwise
+    // the file itself streams to disk, so the chunk buffer is all the memory an upload holds
+    // chunks start at MIN_CHUNK_SIZE, an adaptive client may grow them up to MAX_CHUNK_SIZE, so that is what it holds
+    public UploadSession openUpload(FileUploadInitiationRequest req) {
+        int maxChunkSize = maxChunkSize(req.windowed, req.adaptive);
+        int bufferSize = Math.max(MIN_CHUNK_SIZE, maxChunkSize);
+        synchronized (this) {
+            if (bufferSize + CUR_BUFFER_SIZE > MAX_BUFFER_SIZE) return null;
+            CUR_BUFFER_SIZE += bufferSize;
+        }
+
+        String fileID = generateFileID();
+        try {
+            UploadSession upload = new UploadSession(uploadIDs.next() + "", req, fileID, MIN_CHUNK_SIZE, maxChunkSize, storage);
+            uploadMap.put(upload.sessionID, upload);
+            return upload;
+        } catch (IOException e) {
+            Log.warn("Could not create upload file: {}", e);
+            synchronized (this) {
+                CUR_BUFFER_SIZE -= bufferSize;
+            }
+            return null;
+        }
+    }
+
+    // chunk sizes are only negotiated with windowed clients that said they adapt
+    private int maxChunkSize(boolean windowed, boolean adaptive) {
+        return windowed && adaptive ? MAX_CHUNK_SIZE : 0;
+    }
+
+    // content-addressed dedup: if the client announced a hash we already have a blob for, the file is added
+    // without receiving a byte and its new file ID is returned, otherwise null and the upload goes on as usual
+    public String linkExisting(FileUploadInitiationRequest req) {
+        String sha256 = req.fileInfo.sha256;
+        if (sha256 == null || !sha256.matches("[0-9a-f]{64}")) return null;
+        File blob = new File(BLOB_DIR, sha256);
+        if (!blob.isFile() || blob.length() != req.fileInfo.fileSize) return null;
+        String fileID = generateFileID();
+        addFile(req, fileID);
+        Log.info("Upload of {} deduplicated against blob {}", req.fileInfo.fileName, sha256);
+        return fileID;
+    }
+
+    // where the bytes of a file live, files from before the blob store keep their old place under the owner
+    public static Path storagePath(FileInfo fileInfo) {
+        if (fileInfo.sha256 != null) return Paths.get(BLOB_DIR, fileInfo.sha256);
+        return Paths.get("src/storage", fileInfo.ownerName, fileInfo.fileName);
+    }
+
+    // gives the chunk buffer back, the caller has already committed or aborted the upload
+    public void closeUpload(UploadSession upload) {
+        if (uploadMap.remove(upload.sessionID) == null) return;
+        synchronized (this) {
+            CUR_BUFFER_SIZE -= upload.bufferSize;
+        }
+    }
+
+    // keeps an interrupted upload for UPLOAD_TTL ms so its owner can resume it, only the chunk buffer is given back
+    public void suspendUpload(UploadSession upload) {
+        // a committed or aborted upload is gone from the map already, and one suspended twice only gives its buffer back once
+        if (uploadMap.get(upload.sessionID) != upload || !upload.suspend()) return;
+        synchronized (this) {
+            CUR_BUFFER_SIZE -= upload.bufferSize;
+        }
+        Log.info("Upload {} of {} suspended at {} bytes", upload.sessionID, upload.fileInfo.fileName, upload.received);
+    }
+
+    // returns the upload ready to receive the rest of the file, or null if there is no such suspended upload of this user
+    // or no room in the buffer for it right now
+    // the new connection starts over at the smallest chunk, the client measures its path again
+    public UploadSession resumeUpload(FileUploadResumeRequest req, String username) throws IOException {
+        UploadSession upload = req.uploadID == null ? null : uploadMap.get(req.uploadID);
+        if (upload == null || !upload.fileInfo.ownerName.equals(username)) return null;
+        int maxChunkSize = maxChunkSize(req.windowed, req.adaptive);
+        int bufferSize = Math.max(MIN_CHUNK_SIZE, maxChunkSize);
+        synchronized (this) {
+            if (bufferSize + CUR_BUFFER_SIZE > MAX_BUFFER_SIZE) return null;
+            CUR_BUFFER_SIZE += bufferSize;
+        }
+        boolean resumed = false;
+        try {
+            resumed = upload.resume();
+        } finally {
+            if (!resumed) {
+                synchronized (this) {
+                    CUR_BUFFER_SIZE -= bufferSize;
                 }
-                networkUtil.write("Welcome, " + clientName + "!");
             }
         }
+        if (!resumed) return null;
+        upload.limitChunks(MIN_CHUNK_SIZE, maxChunkSize); // only now, a failed resume must not touch a running upload
+        Log.info("Upload {} of {} resumed at {} bytes", upload.sessionID, upload.fileInfo.fileName, upload.received);
+        return upload;
+    }
 
-        new ServerThread(clientName, this, networkUtil);
+    // splits [offset, offset + length) into up to streams ranges for as many data connections
+    // returns null if the part is too small to be worth splitting, the file then goes over the control connection as usual
+    public DownloadGrant grantParallelDownload(String username, FileInfo fileInfo, long offset, long length, int streams) {
+        int count = (int) Math.min(Math.min(streams, MAX_DOWNLOAD_STREAMS), length / MIN_STREAM_BYTES);
+        if (count < 2) return null;
+        long[] bounds = new long[count + 1];
+        for (int i = 0; i <= count; i++) bounds[i] = offset + length * i / count;
+
+        byte[] raw = new byte[16];
+        tokens.nextBytes(raw);
+        StringBuilder token = new StringBuilder();
+        for (byte b : raw) token.append(String.format("%02x", b));
+
+        DownloadGrant grant = new DownloadGrant(token.toString(), username, fileInfo, bounds, System.currentTimeMillis() + DOWNLOAD_GRANT_TTL);
+        grant.cached = cache.admit(storagePath(fileInfo), fileInfo.fileSize);
+        grants.put(grant.token, grant);
+        return grant;
     }
 
-    public static void main(String[] args) {
-        Server server = new Server(1000000000, 1000, 1000);
+    public DownloadGrant getDownloadGrant(String token) {
+        DownloadGrant grant = token == null ? null : grants.get(token);
+        if (grant == null || grant.expiresAt < System.currentTimeMillis()) return null;
+        return grant;
+    }
+
+    // deletes suspended uploads nobody came back for, and expired download tokens
+    // also logs the file cache stats whenever they changed
+    private void startReaper() {
+        Thread reaper = new Thread(() -> {
+            String lastStats = cache.stats();
+            while (true) {
+                try {
+                    Thread.sleep(Math.max(1000, Math.min(UPLOAD_TTL / 4, 60000)));
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long now = System.currentTimeMillis();
+                grants.values().removeIf(grant -> grant.expiresAt < now);
+                for (UploadSession upload : uploadMap.values()) {
+                    if (upload.expire(UPLOAD_TTL)) {
+                        uploadMap.remove(upload.sessionID);
+                        Log.info("Upload {} of {} expired", upload.sessionID, upload.fileInfo.fileName);
+                    }
+                }
+                String stats = cache.stats();
+                if (!stats.equals(lastStats)) Log.info("File cache: {}", stats);
+                lastStats = stats;
+            }
+        }, "reaper");
+        reaper.setDaemon(true);
+        reaper.start();
+    }
+
+    private synchronized long bufferInUse() {
+        return CUR_BUFFER_SIZE;
+    }
+
+    // the metrics snapshot goes to METRICS_FILE every METRICS_DUMP_MS, replacing the last one, for whoever wants to look
+    // without connecting; written to a temp file first, so a reader never sees half a snapshot
+    private void startMetricsDump() {
+        Thread dumper = new Thread(() -> {
+            Path file = Paths.get(METRICS_FILE);
+            Path temp = Paths.get(METRICS_FILE + ".tmp");
+            while (true) {
+                try {
+                    Thread.sleep(METRICS_DUMP_MS);
+                    Files.write(temp, metrics.snapshot().getBytes(StandardCharsets.UTF_8));
+                    Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (InterruptedException e) {
+                    return;
+                } catch (IOException e) {
+                    Log.warn("Could not write the metrics: {}", e);
+                }
+            }
+        }, "metrics-dump");
+        dumper.setDaemon(true);
+        dumper.start();
+    }
+
+    // from now on wake runs whenever the user's mailbox gets a message, and once right away for what is in there
+    public void enablePush(String username, Runnable wake) {
+        pushTargets.put(username, wake);
+        wake.run();
+    }
+
+    public void disablePush(Runnable wake) {
+        pushTargets.values().remove(wake); // a newer session of the same user keeps its own
+    }
+
+    // the next messages to push, taken out of the mailbox like SHOW_MESSAGES does
+    public List<UserMessage> takePushBatch(String username) {
+        return store.takeMessages(username, PUSH_BATCH);
+    }
+
+    // messages that were taken for a push but never made it out go back to the mailbox
+    public void returnMessages(String username, List<UserMessage> unsent) {
+        for (UserMessage m : unsent) store.addMessage(username, m);
+    }
+
+    private void wakePush(String username) {
+        Runnable wake = pushTargets.get(username);
+        if (wake != null) wake.run();
     }
 
     public List<String> getUserList(String type) {
         if (type.equals("registered")) {
-            return userList;
+            return catalog.getUsers();
         } else if (type.equals("active")) {
             return new ArrayList<>(clientMap.keySet());
         } else {
@@ -99,9 +679,84 @@ public class Server {
         clientMap.remove(username);
     }
 
+    // one page of a listing, it costs the page and a binary search whatever the size of the catalog
+    // users, files and requests are only ever appended, so "after version v" is both where the next page starts
+    // and what changed since an earlier listing; tokens carry the catalog epoch, one from before a restart starts over
+    public Object listPage(String username, ListRequest request) {
+        int limit = request.limit <= 0 ? DEFAULT_PAGE : Math.min(request.limit, MAX_PAGE);
+        ListPage page = new ListPage(request.list);
+        if (ListRequest.ACTIVE_USERS.equals(request.list)) {
+            // sessions come and go, so there are no deltas, the cursor is the last name on the previous page
+            page.users = new ArrayList<>();
+            String last = null;
+            for (String user : request.cursor == null ? clientMap.keySet() : clientMap.keySet().tailSet(request.cursor, false)) {
+                if (page.users.size() == limit) {
+                    page.next = last;
+                    break;
+                }
+                page.users.add(user);
+                last = user;
+            }
+            return page;
+        }
+
+        String token = request.cursor != null ? request.cursor : request.since;
+        long after = 0;
+        if (token != null) {
+            after = parseVersion(token);
+            if (after < 0) {
+                page.reset = true;
+                after = 0;
+            }
+        }
+        if (ListRequest.REGISTERED_USERS.equals(request.list)) {
+            page.users = slice(catalog.getRegisteredUsers(), after, limit, page);
+        } else if (ListRequest.MY_FILES.equals(request.list)) {
+            page.files = slice(catalog.getFilesOf(username), after, limit, page);
+        } else if (ListRequest.SHARED_FILES.equals(request.list)) {
+            page.files = slice(catalog.getSharedFiles(), after, limit, page);
+        } else if (ListRequest.FILE_REQUESTS.equals(request.list)) {
+            page.requests = slice(catalog.getFileRequests(), after, limit, page);
+        } else {
+            return "Unknown list: " + request.list;
+        }
+        return page;
+    }
+
+    public ListPage search(SearchRequest request) {
+        int limit = request.limit <= 0 ? DEFAULT_RESULTS : Math.min(request.limit, MAX_PAGE);
+        ListPage page = new ListPage("search");
+        if (!ListRequest.FILE_REQUESTS.equals(request.scope)) page.files = catalog.searchFiles(request.query, limit);
+        if (!ListRequest.SHARED_FILES.equals(request.scope)) page.requests = catalog.searchFileRequests(request.query, limit);
+        return page;
+    }
+
+    // the entries added after version, at most limit of them, and the tokens to go on from there
+    private <T> List<T> slice(AppendList<T> list, long after, int limit, ListPage page) {
+        int size = list.size();
+        int start = list.firstAfter(after), end = Math.min(size, start + limit);
+        List<T> entries = new ArrayList<>(end - start);
+        for (int i = start; i < end; i++) entries.add(list.get(i));
+        long last = end > start ? list.version(end - 1) : after;
+        page.version = Long.toString(catalog.epoch, 36) + "." + last;
+        if (end < size) page.next = page.version;
+        return entries;
+    }
+
+    // -1 if the token is not from this catalog
+    private long parseVersion(String token) {
+        int dot = token.indexOf('.');
+        try {
+            if (dot < 0 || Long.parseLong(token.substring(0, dot), 36) != catalog.epoch) return -1;
+            return Long.parseLong(token.substring(dot + 1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
     public List<String> getMyFiles(String username) {
         List<String> myFiles = new ArrayList<>();
-        for (FileInfo file : fileMap.get(username)) {
+        for (FileInfo file : catalog.getFilesOf(username)) {
             String s = file.fileName;
             s += " (File ID: " + file.fileID + ")";
             if (file.isPrivate) s += "X";
@@ -113,46 +768,50 @@ public class Server {
 
     public List<String> getSharedFiles() {
         List<String> sharedFiles = new ArrayList<>();
-        for (String username : fileMap.keySet()) {
-            for (FileInfo file : fileMap.get(username)) {
-                if (!file.isPrivate) {
-                    String s = file.fileName;
-                    s += " (File ID: " + file.fileID + ", Owner: " + file.ownerName + ")O"; // ) for public
-                    sharedFiles.add(s);
-                }
-            }
+        for (FileInfo file : catalog.getSharedFiles()) {
+            String s = file.fileName;
+            s += " (File ID: " + file.fileID + ", Owner: " + file.ownerName + ")O"; // ) for public
+            sharedFiles.add(s);
         }
         return sharedFiles;
     }
 
     public void addFileRequest(FileRequest fileRequest) {
-        fileRequestList.add(fileRequest);
+        store.addFileRequest(fileRequest);
+    }
+
+    // for an event loop: the request is listed right away and broadcast once it is on disk, as addFileRequest then
+    // broadcastRequest would; there is no reply, so nothing waits for it
+    public void addFileRequestAsync(FileRequest fileRequest) {
+        store.addFileRequestAsync(fileRequest).whenComplete((v, e) -> {
+            if (e == null) broadcastRequest(fileRequest);
+            else Log.warn("File request {} of {} was not broadcast: {}", fileRequest.requestID, fileRequest.requester, e);
+        });
     }
 
     public void broadcastRequest(FileRequest fileRequest) {
         String description = fileRequest.requester + " has requested for a file of following description: (Request ID: " + fileRequest.requestID + ")\n";
         description += fileRequest.description;
         UserMessage m = new UserMessage(fileRequest.requester, "all", true, description);
-        // send message to all the registered clients
-        for (String username : userList) { // broadcast to all the connected clients (registered ones)
-            if (username.equals(fileRequest.requester)) continue; // do not send message to the requester
-            messageMap.get(username).add(m);
+        // send message to all the registered clients, except the requester
+        store.broadcast(fileRequest.requester, m);
+        for (String username : pushTargets.keySet()) {
+            if (!username.equals(fileRequest.requester)) wakePush(username);
         }
     }
 
     public List<String> getMessages(String username) {
         List<String> messages = new ArrayList<>();
-        for (UserMessage m : messageMap.get(username)) {
+        // taken out of the mailbox, because no option to show read messages, may as well omit the seen field then
+        for (UserMessage m : store.takeMessages(username)) {
             messages.add(m.msg);
-            m.seen = true;
         }
-        messageMap.get(username).clear(); // because no option to show read messages, may as well omit the seen field then
         return messages;
     }
 
     public List<String> getFileRequests() {
         List<String> fileRequests = new ArrayList<>();
-        for (FileRequest fileRequest : fileRequestList) {
+        for (FileRequest fileRequest : catalog.getFileRequests()) {
             String s = "Requested By: " + fileRequest.requester + ", Request ID: " + fileRequest.requestID + "\n";
             s += "Short Description: " + fileRequest.description;
             fileRequests.add(s);
@@ -161,48 +820,49 @@ public class Server {
     }
 
     public boolean checkRequestID(String requestID) {
-        for (FileRequest fileRequest : fileRequestList) {
-            if (fileRequest.requestID.equals(requestID)) {
-                return true;
-            }
-        }
-        return false;
+        return catalog.getFileRequest(requestID) != null;
     }
 
     public void addFile(FileUploadInitiationRequest req, String fileID) {
         req.fileInfo.fileID = fileID;
-        fileMap.get(req.fileInfo.ownerName).add(req.fileInfo);
-        FILE_COUNT++;
+        store.addFile(req.fileInfo);
+        fileAdded(req, fileID);
+    }
+
+    // for an event loop, completes once the file is on disk and the requester is told
+    public CompletableFuture<Void> addFileAsync(FileUploadInitiationRequest req, String fileID) {
+        req.fileInfo.fileID = fileID;
+        return store.addFileAsync(req.fileInfo).thenRun(() -> fileAdded(req, fileID));
+    }
+
+    private void fileAdded(FileUploadInitiationRequest req, String fileID) {
+        Path path = storagePath(req.fileInfo);
+        cache.invalidate(path); // the upload may have just replaced the file at this path
         if (req.requested) {
+            cache.promote(path); // whoever asked for it will download it soon, likely others too
+
             // send message to the person that requested the file
             String req_id = req.requestID;
 
-            for (FileRequest fileRequest : fileRequestList) {
-                if (fileRequest.requestID.equals(req_id)) {
-                    UserMessage m = new UserMessage(req.fileInfo.ownerName, fileRequest.requester, false, "File " + req.fileInfo.fileName + " has been uploaded by " + req.fileInfo.ownerName + " (File ID: " + fileID + ", Request ID: " + req_id + ")");
-                    messageMap.get(fileRequest.requester).add(m);
-                    break;
-                }
+            FileRequest fileRequest = catalog.getFileRequest(req_id);
+            if (fileRequest != null) {
+                UserMessage m = new UserMessage(req.fileInfo.ownerName, fileRequest.requester, false, "File " + req.fileInfo.fileName + " has been uploaded by " + req.fileInfo.ownerName + " (File ID: " + fileID + ", Request ID: " + req_id + ")");
+                store.addMessage(fileRequest.requester, m);
+                wakePush(fileRequest.requester);
             }
         }
     }
 
+    // ids come from persisted allocators, so two concurrent uploads or requests can never get the same one
     public String generateFileID() {
-        return FILE_COUNT + 1 + "";
+        return fileIDs.next() + "";
     }
 
     public String generateRequestID() {
-        return fileRequestList.size() + 1 + "";
+        return requestIDs.next() + "";
     }
 
     public FileInfo checkFileAvailability(String fileID) {
-        for (String username : fileMap.keySet()) {
-            for (FileInfo file : fileMap.get(username)) {
-                if (file.fileID.equals(fileID)) {
-                    return file;
-                }
-            }
-        }
-        return null;
+        return catalog.getFile(fileID);
     }
 }
@@ -5,23 +5,40 @@ import util.*;
 import java.io.*;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Random;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 
 public class ServerThread implements Runnable {
-    private Thread thr;
     private NetworkUtil networkUtil;
     private String username;
     private Server server;
-    Random random = new Random();
+    private Object lock = new Object(); // held while answering a request, see Pusher
+    private Pusher pusher; // set if the client asked for pushed messages
+    private Runnable wake;
+    private MuxSession session; // set if networkUtil is one stream of a mux connection
+    private RequestType requestType; // of the request being answered, until its latency is recorded
+    private long requestStarted;
 
     public ServerThread(String username, Server server, NetworkUtil networkUtil) {
         this.networkUtil = networkUtil;
         this.username = username;
         this.server = server;
-        this.thr = new Thread(this);
-        thr.start();
+    }
+
+    // serves one stream, the client ending the stream is not the end of the session
+    public ServerThread(String username, Server server, MuxStream stream, MuxSession session) {
+        this(username, server, stream);
+        this.session = session;
+    }
+
+    // returns the pusher to start for this session, it gets woken up from now on
+    public Pusher enablePush() {
+        pusher = new Pusher(username, server, networkUtil, lock);
+        wake = pusher::wake;
+        server.enablePush(username, wake);
+        return pusher;
     }
 
     @Override
@@ -30,226 +47,390 @@ public class ServerThread implements Runnable {
             while (true) {
                 Object o = networkUtil.read();
                 if (o instanceof Request) {
-                    RequestType requestType = ((Request) o).requestType;
-
-                    if (requestType == RequestType.SHOW_REGISTERED_USERLIST) {
-                        System.out.println("Sending registered user list to " + username);
-                        networkUtil.write(new SendableList(server.getUserList("registered")));
-                    } else if (requestType == RequestType.SHOW_ACTIVE_USERLIST) {
-                        System.out.println("Sending active user list to " + username);
-                        networkUtil.write(new SendableList(server.getUserList("active")));
-                    } else if (requestType == RequestType.SHOW_MY_FILES) {
-                        System.out.println("Sending personal file list to " + username);
-                        networkUtil.write(new SendableList(server.getMyFiles(username)));
-                    } else if (requestType == RequestType.SHOW_SHARED_FILES) {
-                        System.out.println("Sending shared file list to " + username);
-                        networkUtil.write(new SendableList(server.getSharedFiles()));
-                    } else if (requestType == RequestType.FILE_REQUEST) {
-                        FileRequest fileRequest = (FileRequest) o;
-                        fileRequest.requestID = server.generateRequestID();
-                        System.out.println(username + " requested a file, request ID: " + fileRequest.requestID);
-                        server.addFileRequest(fileRequest);
-                        server.broadcastRequest(fileRequest);
-                    } else if (requestType == RequestType.SHOW_MESSAGES) {
-                        System.out.println("Showing messages to " + username);
-                        networkUtil.write(new SendableList(server.getMessages(username)));
-                    } else if (requestType == RequestType.SHOW_FILE_REQUESTS) {
-                        System.out.println("Showing file requests to " + username);
-                        networkUtil.write(new SendableList(server.getFileRequests()));
-                    } else if (requestType == RequestType.REQUESTED_UPLOAD_CROSSCHECK) {
-                        // crosscheck if the file_request ID for this upload really exists
-                        String requestID = ((MatchFileRequestID) o).requestID;
-                        boolean accepted = server.checkRequestID(requestID);
-                        if (accepted) {
-                            System.out.println("Go on with upload from " + username + " for request ID: " + requestID);
-                            networkUtil.write("yes");
-                        } else {
-                            System.out.println("Rejected upload request from " + username + " for no match with any request ID");
-                            networkUtil.write("no");
-                        }
-                    } else if (requestType == RequestType.UPLOAD_INITIATION) {
-                        long fileSize = ((FileUploadInitiationRequest) o).fileInfo.fileSize;
-                        if (fileSize + server.CUR_BUFFER_SIZE > server.MAX_BUFFER_SIZE) {
-                            networkUtil.write(new FileUploadInitiationResponse(false));
-                            System.out.println("Rejected upload request from " + username + " for exceeding buffer size");
-                        } else {
-                            int chunkSize = generateRandomNumber(server.MIN_CHUNK_SIZE, server.MAX_CHUNK_SIZE);
-                            String fileID = server.generateFileID();
-                            System.out.println("File size fine, chunk size: " + chunkSize + ", file ID: " + fileID);
-                            networkUtil.write(new FileUploadInitiationResponse(chunkSize, fileID));
-                            boolean success = receiveFile((FileUploadInitiationRequest) o, chunkSize);
-                            if (success) {
-                                System.out.println("Successfully received file from " + username);
-                                server.addFile((FileUploadInitiationRequest) o, fileID);
-                            } else {
-                                System.out.println("Failed to receive file from " + username);
-                            }
-                        }
-                    } else if (requestType == RequestType.DOWNLOAD_REQUEST) {
-                        FileDownloadRequest fileDownloadRequest = (FileDownloadRequest) o;
-                        String fileID = fileDownloadRequest.fileID;
-                        FileInfo fileInfo = server.checkFileAvailability(fileID);
-                        if (fileInfo == null) {
-                            networkUtil.write(new FileDownloadRequestResponse(false));
-                            System.out.println("Rejected download request from " + username + ", no match with any file ID");
-                        } else {
-                            networkUtil.write(new FileDownloadRequestResponse(true, fileInfo.fileName, server.MAX_CHUNK_SIZE, fileInfo.fileSize));
-                            System.out.println("Accepted download request from " + username + " for file ID: " + fileID + ", starting download...");
-                            sendFile(fileInfo);
-                        }
-                    } else if (requestType == RequestType.LOGOUT) {
-                        server.makeUserInactive(username);
-                        networkUtil.write("ok");
-                        System.out.println(username + " logged out.");
-                        networkUtil.closeConnection();
-                        break;
-                    }
+                    requestType = ((Request) o).requestType;
+                    requestStarted = System.nanoTime();
+                }
+                boolean more;
+                synchronized (lock) { // a pushed message must not land in the middle of a reply or a transfer
+                    more = handle(o);
                 }
+                answered();
+                if (!more) break;
             }
         } catch (Exception e) {
-            System.out.println(e);
-            server.makeUserInactive(username);
-            System.out.println(username + " got disconnected.");
+            if (session == null) {
+                Log.warn("{}", e);
+                server.makeUserInactive(username);
+                server.metrics.disconnects.increment();
+                Log.info("{} got disconnected.", username);
+            } else if (session.isOpen() && !(e instanceof EOFException)) {
+                Log.warn("{}", e); // the session tells when the connection is gone
+            }
         } finally {
+            if (pusher != null) {
+                server.disablePush(wake);
+                pusher.stop();
+            }
             try {
                 networkUtil.closeConnection();
             } catch (Exception e) {
-                e.printStackTrace();
+                Log.warn("Could not close the connection of {}: {}", username, e);
             }
         }
     }
 
-    private int generateRandomNumber(int a, int b) { // for chunk size
-        int aa = random.nextInt() % (b - a + 1);
-        while (aa < 0) aa += (b - a + 1);
-        return aa + a;
+    // the reply to the request is queued, for a transfer that is its go-ahead and the transfer is left out
+    private void answered() {
+        if (requestType == null) return;
+        server.metrics.request(requestType, requestStarted);
+        Log.event(Log.Level.DEBUG, "answered", username, null, requestType, -1, System.nanoTime() - requestStarted);
+        requestType = null;
     }
 
-    private boolean receiveFile(FileUploadInitiationRequest fileDetail, int chunkSize) {
-        FileInfo fileInfo = fileDetail.fileInfo;
-        int read_bytes = 0;
-        System.out.println("Receiving file " + fileInfo.fileName + " from " + username);
+    // answers one request, returns false once the client logged out
+    private boolean handle(Object o) throws Exception {
+        if (o instanceof Request) {
+            RequestType requestType = ((Request) o).requestType;
 
+            if (requestType == RequestType.UPLOAD_INITIATION) {
+                FileUploadInitiationRequest req = (FileUploadInitiationRequest) o;
+                String existing = server.linkExisting(req);
+                if (existing != null) {
+                    FileUploadInitiationResponse response = new FileUploadInitiationResponse(0, existing);
+                    response.deduplicated = true;
+                    networkUtil.write(response);
+                    return true;
+                }
+                UploadSession upload = server.openUpload(req);
+                if (upload == null) {
+                    networkUtil.write(new FileUploadInitiationResponse(false));
+                    server.metrics.uploadsRejected.increment();
+                    Log.warn("Rejected upload request from {} for exceeding buffer size", username);
+                } else {
+                    Log.debug("File size fine, chunk size: {} (max {}), file ID: {}", upload.chunkSize, upload.maxChunkSize, upload.fileID);
+                    receiveUpload(upload, req.windowed);
+                }
+            } else if (requestType == RequestType.UPLOAD_RESUME) {
+                FileUploadResumeRequest req = (FileUploadResumeRequest) o;
+                UploadSession upload = server.resumeUpload(req, username);
+                if (upload == null) {
+                    networkUtil.write(new FileUploadInitiationResponse(false));
+                    server.metrics.resumesRejected.increment();
+                    Log.warn("Rejected resume of upload {} from {}, expired, unknown or busy", req.uploadID, username);
+                } else {
+                    receiveUpload(upload, req.windowed);
+                }
+            } else if (requestType == RequestType.DOWNLOAD_REQUEST) {
+                FileDownloadRequest fileDownloadRequest = (FileDownloadRequest) o;
+                String fileID = fileDownloadRequest.fileID;
+                FileInfo fileInfo = server.checkFileAvailability(fileID);
+                if (fileInfo == null) {
+                    networkUtil.write(new FileDownloadRequestResponse(false));
+                    server.metrics.downloadsRejected.increment();
+                    Log.warn("Rejected download request from {}, no match with any file ID", username);
+                } else {
+                    // a client finishing a partial download asks only for the part it lacks
+                    long offset = Math.max(0, Math.min(fileDownloadRequest.offset, fileInfo.fileSize));
+                    long length = fileInfo.fileSize - offset;
+                    if (fileDownloadRequest.length > 0) length = Math.min(length, fileDownloadRequest.length);
+                    // a large file can go over several data connections instead, this one stays free meanwhile
+                    DownloadGrant grant = fileDownloadRequest.streams > 1 ? server.grantParallelDownload(username, fileInfo, offset, length, fileDownloadRequest.streams) : null;
+                    if (grant != null) {
+                        FileDownloadRequestResponse response = new FileDownloadRequestResponse(true, fileInfo.fileName, fileInfo.fileSize, offset, length, grant.token, grant.bounds);
+                        response.sha256 = fileInfo.sha256;
+                        networkUtil.write(response);
+                        Log.info("Accepted download request from {} for file ID: {} over {} data connections", username, fileID, grant.rangeCount());
+                        return true;
+                    }
+                    FileDownloadRequestResponse response = new FileDownloadRequestResponse(true, fileInfo.fileName, server.MAX_CHUNK_SIZE, fileInfo.fileSize, fileDownloadRequest.raw, offset, length);
+                    response.sha256 = fileInfo.sha256;
+                    networkUtil.write(response);
+                    answered();
+                    Log.event(Log.Level.INFO, "Accepted download request", username, fileID, RequestType.DOWNLOAD_REQUEST, length, -1);
+                    boolean cached = server.cache.admit(Server.storagePath(fileInfo), fileInfo.fileSize);
+                    Transfer transfer = server.transfers.open(username, "download of " + fileInfo.fileName, false);
+                    try {
+                        if (fileDownloadRequest.raw) sendFileRaw(transfer, fileInfo, offset, length, cached);
+                        else sendFile(transfer, fileInfo, offset, length, cached);
+                    } finally {
+                        server.transfers.close(transfer);
+                    }
+                }
+            } else if (requestType == RequestType.LOGOUT) {
+                server.makeUserInactive(username);
+                networkUtil.write("ok");
+                Log.info("{} logged out.", username);
+                networkUtil.closeConnection();
+                if (session != null) session.close(); // on any stream, every other stream goes with it
+                return false;
+            } else {
+                Object response = server.handleControlRequest(username, (Request) o);
+                if (response != null) networkUtil.write(response);
+            }
+        }
+        return true;
+    }
+
+    // tells the client where to start (0 for a new upload) and receives the rest of the file
+    private void receiveUpload(UploadSession upload, boolean windowed) throws IOException {
+        int window = windowed ? server.UPLOAD_WINDOW : 0;
+        FileUploadInitiationResponse response = new FileUploadInitiationResponse(upload.chunkSize, upload.fileID, window, upload.sessionID, upload.received);
+        response.maxChunkSize = upload.maxChunkSize;
+        networkUtil.write(response);
+        answered();
+        Transfer transfer = server.transfers.open(username, "upload of " + upload.fileInfo.fileName, true);
+        boolean success;
         try {
-            long fileSize = fileInfo.fileSize;
-            server.CUR_BUFFER_SIZE += chunkSize;
-            server.bufferMap.put(fileDetail.fileInfo.fileID, new ArrayList<>());
-            List<byte[]> curBufferList = server.bufferMap.get(fileDetail.fileInfo.fileID);
+            success = window > 0 ? receiveFileWindowed(upload, transfer) : receiveFile(upload, transfer);
+        } finally {
+            server.transfers.close(transfer);
+        }
+        if (success) {
+            server.metrics.uploadsDone.increment();
+            Log.info("Successfully received file from {}", username);
+        } else {
+            server.metrics.uploadsFailed.increment();
+            Log.warn("Failed to receive file from {}", username);
+        }
+    }
 
-            System.out.println("File Size: " + fileSize + " bytes");
+    // the ack of a chunk waits for its tokens, the client does not send the next one before that
+    // an object stream hands out at most one 1024 byte block per read, so a chunk is collected whole before it is acked
+    private boolean receiveFile(UploadSession upload, Transfer transfer) {
+        FileInfo fileInfo = upload.fileInfo;
+        Log.debug("Receiving file {} from {}", fileInfo.fileName, username);
 
-            while (fileSize > 0) {
-                byte[] buffer = new byte[chunkSize];
-                try {
-                    read_bytes = networkUtil.read(buffer, 0, Math.min(buffer.length, (int) fileSize));
-                    curBufferList.add(buffer);
-                } catch (Exception e) {
-                    if (e instanceof SocketTimeoutException) {
-                        System.out.println("File upload from " + username + " failed due to timeout.");
-                    } else if (e instanceof SocketException) {
-                        System.out.println("Client got disconnected while uploading file " + fileInfo.fileName);
-                    } else System.out.println(e);
+        try {
+            long fileSize = fileInfo.fileSize - upload.received;
+            byte[] buffer = new byte[upload.chunkSize]; // reused for every chunk, the data goes to disk right away
 
-                    closeStuffs(chunkSize, fileDetail.fileInfo.fileID, "");
+            Log.debug("File Size: {} bytes", fileSize);
 
-                    return false;
-                }
+            while (fileSize > 0) {
+                int expected = (int) Math.min(buffer.length, fileSize);
+                int filled = 0;
+                String message = null;
+                while (filled < expected && message == null) {
+                    int read_bytes;
+                    try {
+                        read_bytes = networkUtil.read(buffer, filled, expected - filled);
+                    } catch (Exception e) {
+                        if (e instanceof SocketTimeoutException) {
+                            server.metrics.uploadTimeouts.increment();
+                            Log.warn("File upload from {} failed due to timeout.", username);
+                        } else if (e instanceof SocketException) {
+                            Log.warn("Client got disconnected while uploading file {}", fileInfo.fileName);
+                        } else Log.warn("{}", e);
 
+                        server.suspendUpload(upload);
 
-                if (read_bytes == -1) break; // -1 is returned when the end of the stream is reached.
+                        return false;
+                    }
 
-                fileSize -= read_bytes;
+                    // -1 is returned when the next thing in the stream is a message and not file data
+                    if (read_bytes == -1) message = (String) networkUtil.read();
+                    else filled += read_bytes;
+                }
+
+                upload.write(buffer, 0, filled);
+                fileSize -= filled;
+                server.transfers.acquire(transfer, filled);
 
                 // for testing
 //                Thread.sleep(32000);
 
-                if (networkUtil.available() > 0) {
-                    String s = (String) networkUtil.read();
-                    System.out.println("Received message from client: " + s);
-                    if (s.equals("timeout")) {
-                        System.out.println("File upload from " + username + " failed due to timeout.");
-                        closeStuffs(chunkSize, fileDetail.fileInfo.fileID, "");
+                if (message == null && networkUtil.available() > 0) message = (String) networkUtil.read();
+                if (message != null) {
+                    Log.debug("Received message from client: {}", message);
+                    if (message.equals("abort")) {
+                        closeStuffs(upload, false, "File upload from " + username + " aborted by the client.");
                         return false;
                     }
-                } else {
-                    try {
-                        networkUtil.write("ack");
-                    } catch (SocketException e) {
-                        System.out.println("Client got disconnected while uploading file " + fileInfo.fileName);
-                        closeStuffs(chunkSize, fileDetail.fileInfo.fileID, "");
-                        return false;
+                    if (message.equals("timeout")) {
+                        server.metrics.uploadTimeouts.increment();
+                        Log.warn("File upload from {} failed due to timeout.", username);
                     }
+                    server.suspendUpload(upload);
+                    return false;
+                }
+                try {
+                    networkUtil.write("ack");
+                } catch (SocketException e) {
+                    Log.warn("Client got disconnected while uploading file {}", fileInfo.fileName);
+                    server.suspendUpload(upload);
+                    return false;
                 }
             }
 
-            // seems ok as of now, next check the file size and write to file
-            return doFinalCheck(curBufferList, fileInfo, chunkSize, read_bytes);
+            // seems ok as of now, next check the file size and move the file in place
+            return doFinalCheck(upload);
         } catch (Exception e) {
-            System.out.println(e);
-            closeStuffs(chunkSize, fileDetail.fileInfo.fileID, "");
+            Log.warn("{}", e);
+            server.suspendUpload(upload);
             return false;
         }
     }
 
-    private void closeStuffs(int chunkSize, String fileID, String error_message) {
-        server.CUR_BUFFER_SIZE -= chunkSize;
-        server.bufferMap.remove(fileID);
-        if (!error_message.isEmpty()) System.out.println(error_message);
-    }
+    // windowed variant, the client streams up to UPLOAD_WINDOW chunks ahead and we answer each one with a ChunkAck
+    // carrying the crc32c of the chunk as written, so the client can tell a corrupted chunk from a good one
+    // a "timeout" or "abort" from the client shows up as the end of the raw data followed by the string,
+    // so does a "chunk <n>" from an adaptive client between two chunks, the chunks after it are n bytes
+    // acks wait for tokens, a client held up by a rate limit runs out of window and stops sending
+    private boolean receiveFileWindowed(UploadSession upload, Transfer transfer) {
+        FileInfo fileInfo = upload.fileInfo;
+        Log.debug("Receiving file {} from {} (window {})", fileInfo.fileName, username, server.UPLOAD_WINDOW);
 
-    private boolean doFinalCheck(List<byte[]> curBufferList, FileInfo fileInfo, int chunkSize, int lastChunkSize) throws IOException, ClassNotFoundException {
-        String final_msg = (String) networkUtil.read();
-        if (final_msg.equals("done")) {
-            FileOutputStream fileOutputStream = new FileOutputStream("src/storage/" + username + "/" + fileInfo.fileName);
-            for (int i = 0; i < curBufferList.size(); i++) {
-                byte[] buffer = curBufferList.get(i);
-                if (i == curBufferList.size() - 1) {
-                    fileOutputStream.write(buffer, 0, lastChunkSize);
-                } else {
-                    fileOutputStream.write(buffer, 0, chunkSize);
+        try {
+            long fileSize = fileInfo.fileSize - upload.received;
+            byte[] buffer = new byte[upload.bufferSize];
+            long seq = 0;
+
+            Log.debug("File Size: {} bytes", fileSize);
+
+            while (fileSize > 0) {
+                // a chunk can span several stream blocks, collect exactly one chunk before acking it
+                int expected = (int) Math.min(upload.chunkSize, fileSize);
+                int filled = 0;
+                while (filled < expected) {
+                    int read_bytes = networkUtil.read(buffer, filled, expected - filled);
+                    if (read_bytes == -1) {
+                        String s = (String) networkUtil.read();
+                        if (filled == 0 && upload.resize(s)) {
+                            expected = (int) Math.min(upload.chunkSize, fileSize);
+                            continue;
+                        }
+                        Log.debug("Received message from client: {}", s);
+                        if (s.equals("abort")) {
+                            // the client saw a chunk come back with the wrong crc, nothing received so far can be trusted
+                            closeStuffs(upload, false, "File upload from " + username + " aborted by the client.");
+                            return false;
+                        }
+                        if (s.equals("timeout")) {
+                            server.metrics.uploadTimeouts.increment();
+                            Log.warn("File upload from {} failed due to timeout.", username);
+                        }
+                        server.suspendUpload(upload);
+                        return false;
+                    }
+                    filled += read_bytes;
                 }
+
+                upload.write(buffer, 0, filled);
+                fileSize -= filled;
+                server.transfers.acquire(transfer, filled);
+                networkUtil.write(new ChunkAck(++seq, upload.endChunk()));
             }
-            fileOutputStream.close();
 
-            closeStuffs(chunkSize, fileInfo.fileID, "");
+            return doFinalCheck(upload);
+        } catch (Exception e) {
+            if (e instanceof SocketException) {
+                Log.warn("Client got disconnected while uploading file {}", fileInfo.fileName);
+            } else Log.warn("{}", e);
+            server.suspendUpload(upload);
+            return false;
+        }
+    }
+
+    private void closeStuffs(UploadSession upload, boolean committed, String error_message) {
+        if (!committed) upload.abort();
+        server.closeUpload(upload);
+        if (!error_message.isEmpty()) Log.warn("{}", error_message);
+    }
 
-            File file = new File("src/storage/" + username + "/" + fileInfo.fileName);
-            if (file.length() != fileInfo.fileSize) {
-                System.out.println("File Length: " + file.length() + " Expected: " + fileInfo.fileSize);
-                System.out.println("File Size Mismatch found");
-                file.delete();
-                networkUtil.write("File size mismatch found, upload failed.");
+    private boolean doFinalCheck(UploadSession upload) throws IOException, ClassNotFoundException {
+        String final_msg = (String) networkUtil.read();
+        if (final_msg.equals("done")) {
+            boolean ok = upload.commit();
+            closeStuffs(upload, true, "");
+            if (!ok) {
+                networkUtil.write(upload.failure + ", upload failed.");
                 return false;
             }
+            // listed before the reply, on a mux connection the client may ask for it on another stream right away
+            server.addFile(upload.request, upload.fileID);
             networkUtil.write("Final check done, upload successful.");
             return true;
         } else {
+            closeStuffs(upload, false, "");
             return false;
         }
     }
 
-    private void sendFile(FileInfo fileInfo) throws IOException {
-        FileInputStream fileInputStream;
+    private void sendFile(Transfer transfer, FileInfo fileInfo, long offset, long length, boolean cached) throws IOException {
+        if (cached) {
+            sendFileCached(transfer, fileInfo, offset, length);
+            return;
+        }
+        StorageEngine.Input input;
         try {
-            fileInputStream = new FileInputStream("src/storage/" + fileInfo.ownerName + "/" + fileInfo.fileName);
-        } catch (FileNotFoundException e) {
-            System.out.println("File not found in server");
+            input = server.storage.openInput(Server.storagePath(fileInfo));
+        } catch (FileNotFoundException | NoSuchFileException e) {
+            Log.warn("File not found in server");
             return;
         }
 
         byte[] buffer = new byte[server.MAX_CHUNK_SIZE];
+        ChunkSizer sizer = new ChunkSizer(server.MIN_CHUNK_SIZE, server.MAX_CHUNK_SIZE);
         int read_bytes = 0;
 
-        while (true) {
-            read_bytes = fileInputStream.read(buffer);
-            if (read_bytes == -1) break;
+        try {
+            while (length > 0) {
+                read_bytes = input.read(offset, buffer, 0, (int) Math.min(sizer.next(), length));
+                if (read_bytes == -1) break;
+
+                server.transfers.acquire(transfer, read_bytes);
+                networkUtil.write(buffer, 0, read_bytes);
+                sizer.sent(read_bytes);
+                offset += read_bytes;
+                length -= read_bytes;
 
-            networkUtil.write(buffer, 0, read_bytes);
+                // no wait for message from client
+            }
+        } finally {
+            input.close();
+        }
+        networkUtil.write("done");
+    }
 
-            // no wait for message from client
+    // sendFile for a hot file, the chunks are cut from cached blocks instead of read from disk
+    private void sendFileCached(Transfer transfer, FileInfo fileInfo, long offset, long length) throws IOException {
+        Path path = Server.storagePath(fileInfo);
+        if (!Files.exists(path)) {
+            Log.warn("File not found in server");
+            return;
         }
 
-        fileInputStream.close();
+        byte[] buffer = new byte[server.MAX_CHUNK_SIZE];
+        ChunkSizer sizer = new ChunkSizer(server.MIN_CHUNK_SIZE, server.MAX_CHUNK_SIZE);
+        ByteBuffer block = null;
+        long served = 0;
+        try {
+            while (length > 0) {
+                if (block == null || !block.hasRemaining()) block = server.cache.get(path, offset);
+                int n = (int) Math.min(Math.min(sizer.next(), block.remaining()), length);
+                block.get(buffer, 0, n);
+                server.transfers.acquire(transfer, n);
+                networkUtil.write(buffer, 0, n);
+                sizer.sent(n);
+                offset += n;
+                length -= n;
+                served += n;
+            }
+        } finally {
+            server.cache.served(served);
+        }
+        networkUtil.write("done");
+    }
+
+    // same as sendFile, but the bytes go to the socket without passing through the object stream,
+    // with transferTo from disk or straight out of the cached blocks
+    private void sendFileRaw(Transfer transfer, FileInfo fileInfo, long offset, long length, boolean cached) throws IOException {
+        try {
+            server.sendRaw(networkUtil, transfer, fileInfo, offset, length, cached);
+        } catch (NoSuchFileException e) {
+            Log.warn("File not found in server");
+            return;
+        }
         networkUtil.write("done");
     }
-}
\ No newline at end of file
+}
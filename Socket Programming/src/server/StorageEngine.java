@@ -0,0 +1,42 @@
+package server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+
+// how the bytes of stored files are written and read back, one engine for the whole server (Server.storage)
+// an upload writes its temp file through an Output, a download reads the blob through an Input at any position,
+// so a range or a resumed download costs no more than reading from the start
+// MappedStorage is the default, StreamStorage does what the server did before, with plain streams
+// the raw downloads keep using transferTo and the file cache its own channel reads, the bytes never pass through the jvm there
+public interface StorageEngine {
+    interface Output extends Closeable {
+        // at the end of what was written so far
+        void write(byte[] buffer, int off, int len) throws IOException;
+
+        // the file keeps exactly the bytes written, a preallocated tail that never got written is cut off
+        @Override
+        void close() throws IOException;
+    }
+
+    interface Input extends Closeable {
+        long size();
+
+        // up to len bytes from position on, -1 at the end of the file
+        int read(long position, byte[] buffer, int off, int len) throws IOException;
+    }
+
+    // the file at path cut back to position and written from there on, size is how long it will be once complete
+    Output openOutput(Path path, long position, long size) throws IOException;
+
+    Input openInput(Path path) throws IOException;
+
+    String name();
+
+    // "mapped" or "stream", as given on the command line
+    static StorageEngine named(String name) {
+        if (name.equals("mapped")) return new MappedStorage();
+        if (name.equals("stream")) return new StreamStorage();
+        throw new IllegalArgumentException("unknown storage engine " + name + ", mapped or stream");
+    }
+}
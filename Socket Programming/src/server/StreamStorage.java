@@ -0,0 +1,62 @@
+package server;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+
+// files through FileOutputStream and FileInputStream, what the server used before the storage engines
+// a read at another position than where the last one stopped moves the stream's channel there first
+public class StreamStorage implements StorageEngine {
+    @Override
+    public Output openOutput(Path path, long position, long size) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            file.setLength(position); // a new file is empty, a resumed one loses what came after the last counted byte
+        }
+        FileOutputStream out = new FileOutputStream(path.toFile(), true);
+        return new Output() {
+            @Override
+            public void write(byte[] buffer, int off, int len) throws IOException {
+                out.write(buffer, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                out.close();
+            }
+        };
+    }
+
+    @Override
+    public Input openInput(Path path) throws IOException {
+        FileInputStream in = new FileInputStream(path.toFile());
+        long size = in.getChannel().size();
+        return new Input() {
+            private long at = 0;
+
+            @Override
+            public long size() {
+                return size;
+            }
+
+            @Override
+            public int read(long position, byte[] buffer, int off, int len) throws IOException {
+                if (position != at) in.getChannel().position(position);
+                int n = in.read(buffer, off, len);
+                at = n == -1 ? position : position + n;
+                return n;
+            }
+
+            @Override
+            public void close() throws IOException {
+                in.close();
+            }
+        };
+    }
+
+    @Override
+    public String name() {
+        return "stream";
+    }
+}
@@ -0,0 +1,40 @@
+package server;
+
+import util.Rates;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// one upload or download as the TransferScheduler sees it, counts the bytes it was allowed so it can report its rate
+public class Transfer {
+    public String username;
+    public String what; // "download of x.pdf", for the log
+    public long started = System.nanoTime();
+    public volatile long bytes;
+    public boolean upload; // bytes come in, a download sends them out
+    LongAdder counter; // the metrics' bytes in or out, counts along with bytes if set
+
+    // fair queueing state, only touched under the scheduler's lock
+    double lastFinish; // virtual finish tag of the previous request
+    int want; // bytes of the request waiting for tokens
+    double start, finish; // its virtual tags
+    boolean waiting, granted;
+    Runnable wake; // set for a request that must not block, run once it is granted
+
+    public Transfer(String username, String what) {
+        this.username = username;
+        this.what = what;
+    }
+
+    void moved(long n) {
+        bytes += n;
+        if (counter != null) counter.add(n);
+    }
+
+    public long millis() {
+        return (System.nanoTime() - started) / 1000000;
+    }
+
+    public String report() {
+        return username + ": " + what + ", " + bytes + " bytes in " + millis() + " ms (" + Rates.since(bytes, started) + ")";
+    }
+}
@@ -0,0 +1,296 @@
+package server;
+
+import util.Rates;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+// decides when the bytes of a transfer may go, uploads and downloads alike
+// a token bucket per user and one for the whole server cap the rates, a rate of 0 means no limit
+// transfers waiting for tokens are served in weighted fair order (start-time fair queueing): a request of n bytes gets the tags
+// start = max(virtual time, finish of the transfer's previous request) and finish = start + n / share, the smallest finish goes first,
+// so a small download that just started is next in line instead of behind the backlog of one that has been pulling for minutes
+// share is the user's weight split over the user's transfers, opening more connections does not buy a bigger share
+// a bucket may go into debt by one request, so a chunk bigger than the burst still gets through
+// with no limit set nothing is queued and acquiring only counts the bytes
+public class TransferScheduler {
+    public static final int SLICE = 16 * 1024; // most bytes a raw sender asks for at once, smaller means fairer, bigger means fewer grants
+
+    private static class Bucket {
+        long rate; // bytes per second, 0 = unlimited
+        double tokens;
+        long last = System.nanoTime();
+        int transfers; // open transfers of the user, the bucket is dropped with the last one
+
+        Bucket(long rate) {
+            this.rate = rate;
+            tokens = burst();
+        }
+
+        double burst() {
+            return Math.max(rate / 10.0, SLICE); // 100 ms worth, at least one slice
+        }
+
+        void setRate(long rate) {
+            refill(System.nanoTime());
+            this.rate = rate;
+            tokens = Math.min(tokens, burst());
+        }
+
+        void refill(long now) {
+            if (rate > 0) tokens = Math.min(burst(), tokens + (now - last) * (double) rate / 1e9);
+            last = now;
+        }
+
+        boolean ready() {
+            return rate == 0 || tokens > 0;
+        }
+
+        void take(int n) {
+            if (rate > 0) tokens -= n;
+        }
+
+        long nanosUntilReady() {
+            return ready() ? 0 : (long) (-tokens * 1e9 / rate) + 1;
+        }
+    }
+
+    private Bucket global;
+    private long userRate; // for users without a rate of their own
+    private HashMap<String, Long> userRates = new HashMap<>();
+    private HashMap<String, Double> weights = new HashMap<>(); // default 1
+    private HashMap<String, Bucket> buckets = new HashMap<>(); // users with an open transfer
+    private LinkedHashSet<Transfer> open = new LinkedHashSet<>();
+    private ArrayList<Transfer> queue = new ArrayList<>(); // requests waiting for tokens, as many as there are transfers at most
+    private double virtualTime;
+    private volatile boolean shaping; // some limit is set
+    public volatile Metrics metrics; // counts the bytes and rates of all transfers if set
+    public volatile boolean fair = true; // false serves waiting requests in arrival order, a plain shared token bucket, for comparison
+
+    public TransferScheduler(long globalRate, long userRate) {
+        global = new Bucket(globalRate);
+        this.userRate = userRate;
+        updateShaping();
+        Thread dispatcher = new Thread(this::dispatchLoop, "transfer-scheduler");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    public synchronized Transfer open(String username, String what, boolean upload) {
+        Transfer transfer = new Transfer(username, what);
+        transfer.upload = upload;
+        Metrics m = metrics;
+        if (m != null) transfer.counter = upload ? m.bytesIn : m.bytesOut;
+        bucketOf(username).transfers++;
+        open.add(transfer);
+        return transfer;
+    }
+
+    // logs the transfer as an event with its bytes and duration
+    public synchronized void close(Transfer transfer) {
+        if (open.remove(transfer)) {
+            if (transfer.waiting) queue.remove(transfer);
+            transfer.waiting = false;
+            Bucket bucket = buckets.get(transfer.username);
+            if (--bucket.transfers == 0) buckets.remove(transfer.username);
+            dispatch(null); // the share of the user's other transfers just grew
+            Metrics m = metrics;
+            if (m != null) m.transferred(transfer);
+        }
+        Log.event(Log.Level.INFO, transfer.what, transfer.username, null, null, transfer.bytes, System.nanoTime() - transfer.started);
+    }
+
+    // blocks until n more bytes of the transfer may go
+    public void acquire(Transfer transfer, int n) throws InterruptedIOException {
+        if (!shaping) {
+            transfer.moved(n);
+            return;
+        }
+        synchronized (this) {
+            if (request(transfer, n, null)) return;
+            try {
+                while (!transfer.granted) wait();
+            } catch (InterruptedException e) {
+                if (transfer.waiting) queue.remove(transfer);
+                transfer.waiting = false;
+                throw new InterruptedIOException("interrupted while waiting for bandwidth");
+            }
+            transfer.granted = false;
+        }
+    }
+
+    // for the event loops, which must not block: true if n more bytes may go now,
+    // otherwise the request keeps its place and wake runs (on the scheduler's thread) once it was granted
+    public boolean tryAcquire(Transfer transfer, int n, Runnable wake) {
+        if (!shaping) {
+            transfer.moved(n);
+            return true;
+        }
+        synchronized (this) {
+            return request(transfer, n, wake);
+        }
+    }
+
+    // counts bytes that already went, without waiting, the buckets go into debt for them
+    public void charge(Transfer transfer, long n) {
+        if (!shaping) {
+            transfer.moved(n);
+            return;
+        }
+        synchronized (this) {
+            Bucket bucket = buckets.get(transfer.username);
+            if (bucket != null && open.contains(transfer)) bucket.take((int) Math.min(n, Integer.MAX_VALUE));
+            global.take((int) Math.min(n, Integer.MAX_VALUE));
+            transfer.moved(n);
+        }
+    }
+
+    // tags the request and queues it, true if it was granted right away
+    private boolean request(Transfer transfer, int n, Runnable wake) {
+        if (!open.contains(transfer)) { // closed under the caller, nothing to shape any more
+            transfer.moved(n);
+            return true;
+        }
+        Bucket bucket = buckets.get(transfer.username);
+        double share = weights.getOrDefault(transfer.username, 1.0) / bucket.transfers;
+        transfer.want = n;
+        transfer.wake = wake;
+        transfer.start = Math.max(virtualTime, transfer.lastFinish);
+        transfer.finish = transfer.start + n / share;
+        transfer.lastFinish = transfer.finish;
+        transfer.waiting = true;
+        queue.add(transfer);
+        dispatch(transfer);
+        if (!transfer.waiting) {
+            transfer.granted = false;
+            return true;
+        }
+        notifyAll(); // the dispatcher may have to wake up sooner for this one
+        return false;
+    }
+
+    // grants the waiting requests in finish tag order for as long as the buckets have tokens
+    // a request whose own user is out of tokens is passed over, it does not hold up the others
+    private void dispatch(Transfer caller) {
+        long now = System.nanoTime();
+        global.refill(now);
+        boolean granted = false;
+        while (!queue.isEmpty() && global.ready()) {
+            Transfer next = null;
+            for (Transfer t : queue) {
+                Bucket bucket = buckets.get(t.username);
+                bucket.refill(now);
+                if (bucket.ready() && (next == null || t.finish < next.finish)) {
+                    next = t;
+                    if (!fair) break;
+                }
+            }
+            if (next == null) break;
+            queue.remove(next);
+            buckets.get(next.username).take(next.want);
+            global.take(next.want);
+            virtualTime = Math.max(virtualTime, next.start);
+            next.moved(next.want);
+            next.waiting = false;
+            if (next == caller) continue;
+            if (next.wake != null) {
+                next.wake.run();
+            } else {
+                next.granted = true;
+                granted = true;
+            }
+        }
+        if (granted) notifyAll();
+    }
+
+    // grants requests as the buckets refill, sleeping until the next one can go
+    private synchronized void dispatchLoop() {
+        while (true) {
+            try {
+                if (queue.isEmpty()) {
+                    wait();
+                } else {
+                    long nanos = nanosUntilNext();
+                    if (nanos > 0) wait(Math.max(1, nanos / 1000000));
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            dispatch(null);
+        }
+    }
+
+    // until both the global bucket and the bucket of some waiting user have tokens
+    private long nanosUntilNext() {
+        long now = System.nanoTime();
+        global.refill(now);
+        long user = Long.MAX_VALUE;
+        for (Transfer t : queue) {
+            Bucket bucket = buckets.get(t.username);
+            bucket.refill(now);
+            user = Math.min(user, bucket.nanosUntilReady());
+        }
+        return Math.max(global.nanosUntilReady(), user);
+    }
+
+    private Bucket bucketOf(String username) {
+        return buckets.computeIfAbsent(username, k -> new Bucket(userRates.getOrDefault(k, userRate)));
+    }
+
+    private void updateShaping() {
+        shaping = global.rate > 0 || userRate > 0 || !userRates.isEmpty();
+    }
+
+    // limits can change while transfers run, waiting requests are dispatched against the new rates right away
+
+    public synchronized void setGlobalRate(long rate) {
+        global.setRate(rate);
+        updateShaping();
+        dispatch(null);
+        notifyAll();
+    }
+
+    // the rate of every user that has none of its own
+    public synchronized void setUserRate(long rate) {
+        userRate = rate;
+        for (Map.Entry<String, Bucket> e : buckets.entrySet()) {
+            if (!userRates.containsKey(e.getKey())) e.getValue().setRate(rate);
+        }
+        updateShaping();
+        dispatch(null);
+        notifyAll();
+    }
+
+    // a negative rate goes back to the default
+    public synchronized void setUserRate(String username, long rate) {
+        if (rate < 0) userRates.remove(username);
+        else userRates.put(username, rate);
+        Bucket bucket = buckets.get(username);
+        if (bucket != null) bucket.setRate(rate < 0 ? userRate : rate);
+        updateShaping();
+        dispatch(null);
+        notifyAll();
+    }
+
+    // the user's share of the bandwidth relative to others while transfers have to wait, 1 by default
+    public synchronized void setWeight(String username, double weight) {
+        if (weight <= 0) throw new IllegalArgumentException("weight must be positive");
+        if (weight == 1) weights.remove(username);
+        else weights.put(username, weight);
+    }
+
+    // the limits and every open transfer with its rate so far
+    public synchronized List<String> describe() {
+        List<String> lines = new ArrayList<>();
+        lines.add("Global limit: " + Rates.formatLimit(global.rate) + ", per user: " + Rates.formatLimit(userRate));
+        for (Map.Entry<String, Long> e : userRates.entrySet()) lines.add("Limit of " + e.getKey() + ": " + Rates.formatLimit(e.getValue()));
+        for (Map.Entry<String, Double> e : weights.entrySet()) lines.add("Weight of " + e.getKey() + ": " + e.getValue());
+        for (Transfer t : open) lines.add((t.waiting ? "[waiting] " : "") + t.report());
+        if (open.isEmpty()) lines.add("No transfers in progress.");
+        return lines;
+    }
+}
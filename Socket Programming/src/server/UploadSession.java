@@ -0,0 +1,158 @@
+package server;
+
+import util.Checksums;
+import util.FileInfo;
+import util.FileUploadInitiationRequest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.zip.CRC32C;
+
+// one upload in progress, chunks go straight to a temp file in the blob store, through the server's StorageEngine
+// the sha-256 of the file and the crc32c of the current chunk are updated as the bytes arrive, nothing reads the file again
+// commit() checks size and hash and renames the file to its hash, so a failed upload leaves nothing behind
+// an interrupted upload is suspended instead, it keeps its temp file until it is resumed or expires
+public class UploadSession {
+    public String sessionID;
+    public FileUploadInitiationRequest request;
+    public FileInfo fileInfo;
+    public String fileID;
+    public int chunkSize; // of the chunks now arriving, an adaptive client changes it between chunks
+    public int maxChunkSize; // the most an adaptive client may switch to, 0 for a fixed chunk size
+    public int bufferSize; // bytes of the server's buffer budget this upload holds while it runs, its largest possible chunk
+    public long received = 0;
+    public String failure; // why commit() refused the file
+    private Path tempPath;
+    private MessageDigest digest = Checksums.newSha256();
+    private CRC32C chunkCrc = new CRC32C();
+    private StorageEngine storage;
+    private StorageEngine.Output output;
+    private boolean suspended;
+    private long suspendedAt;
+
+    public UploadSession(String sessionID, FileUploadInitiationRequest request, String fileID, int chunkSize, int maxChunkSize, StorageEngine storage) throws IOException {
+        this.sessionID = sessionID;
+        this.request = request;
+        this.fileInfo = request.fileInfo;
+        this.fileID = fileID;
+        limitChunks(chunkSize, maxChunkSize);
+        tempPath = new File(Server.BLOB_DIR, "upload-" + sessionID + ".part").toPath();
+        this.storage = storage;
+        output = storage.openOutput(tempPath, 0, fileInfo.fileSize); // the size is known up front, the engine may preallocate
+    }
+
+    public void write(byte[] buffer, int off, int len) throws IOException {
+        output.write(buffer, off, len);
+        digest.update(buffer, off, len);
+        chunkCrc.update(buffer, off, len);
+        received += len;
+    }
+
+    // chunks start at chunkSize, an adaptive upload (maxChunkSize > 0) may go up to maxChunkSize later
+    public void limitChunks(int chunkSize, int maxChunkSize) {
+        this.chunkSize = chunkSize;
+        this.maxChunkSize = maxChunkSize;
+        bufferSize = Math.max(chunkSize, maxChunkSize);
+    }
+
+    // "chunk <n>" from an adaptive client, sent between two chunks: the chunks after it are n bytes
+    // returns false for any other message
+    public boolean resize(String msg) throws StreamCorruptedException {
+        if (!msg.startsWith("chunk ")) return false;
+        int n;
+        try {
+            n = Integer.parseInt(msg.substring(6));
+        } catch (NumberFormatException e) {
+            throw new StreamCorruptedException("bad chunk size message: " + msg);
+        }
+        if (n < 1 || n > maxChunkSize) throw new StreamCorruptedException("chunk size " + n + " is out of bounds for upload " + sessionID);
+        chunkSize = n;
+        return true;
+    }
+
+    // crc32c of everything written since the last call, called once a whole chunk is in
+    public int endChunk() {
+        int crc = (int) chunkCrc.getValue();
+        chunkCrc.reset();
+        return crc;
+    }
+
+    // returns false (and deletes the temp file) if the size or the hash does not match what the client announced
+    // on success fileInfo.sha256 is set and the file is in the blob store under it
+    public boolean commit() throws IOException {
+        output.close();
+        long length = Files.size(tempPath);
+        if (length != fileInfo.fileSize) {
+            Log.warn("File Size Mismatch found, length {} expected {}", length, fileInfo.fileSize);
+            failure = "File size mismatch found";
+            Files.deleteIfExists(tempPath);
+            return false;
+        }
+        String hash = Checksums.hex(digest.digest());
+        if (fileInfo.sha256 != null && !fileInfo.sha256.equalsIgnoreCase(hash)) {
+            Log.warn("SHA-256: {} Expected: {}", hash, fileInfo.sha256);
+            failure = "Checksum mismatch found";
+            Files.deleteIfExists(tempPath);
+            return false;
+        }
+        fileInfo.sha256 = hash;
+
+        Path blob = new File(Server.BLOB_DIR, hash).toPath();
+        if (Files.exists(blob)) {
+            Files.delete(tempPath); // the same content was uploaded meanwhile, one copy is enough
+            return true;
+        }
+        try {
+            Files.move(tempPath, blob, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempPath, blob, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return true;
+    }
+
+    // closes the temp file but keeps it, everything received so far stays there
+    // returns false if it was suspended already
+    public synchronized boolean suspend() {
+        if (suspended) return false;
+        try {
+            output.close();
+        } catch (IOException e) {
+            Log.warn("Could not close {}: {}", tempPath, e);
+        }
+        suspended = true;
+        suspendedAt = System.currentTimeMillis();
+        return true;
+    }
+
+    // returns false if the upload is not suspended, someone else resumed it or it expired
+    public synchronized boolean resume() throws IOException {
+        if (!suspended) return false;
+        output = storage.openOutput(tempPath, received, fileInfo.fileSize); // cut back in case the file got ahead of what we counted
+        chunkCrc.reset(); // the client starts a fresh chunk at the offset
+        suspended = false;
+        return true;
+    }
+
+    // deletes the temp file if the upload has been suspended for at least ttl milliseconds
+    public synchronized boolean expire(long ttl) {
+        if (!suspended || System.currentTimeMillis() - suspendedAt < ttl) return false;
+        suspended = false;
+        abort();
+        return true;
+    }
+
+    public void abort() {
+        try {
+            output.close();
+            Files.deleteIfExists(tempPath);
+        } catch (IOException e) {
+            Log.warn("Could not remove {}: {}", tempPath, e);
+        }
+    }
+}
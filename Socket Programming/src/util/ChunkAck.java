@@ -0,0 +1,20 @@
+package util;
+
+import java.io.Serializable;
+
+public class ChunkAck implements Serializable {
+    private static final long serialVersionUID = 6134049022073406363L;
+
+    // cumulative acknowledgement for windowed uploads: chunks 1..seq have been written to disk
+    public long seq;
+    public int crc; // crc32c of chunk seq as written, the client compares it with what it sent
+
+    public ChunkAck(long seq) {
+        this.seq = seq;
+    }
+
+    public ChunkAck(long seq, int crc) {
+        this.seq = seq;
+        this.crc = crc;
+    }
+}
@@ -0,0 +1,117 @@
+package util;
+
+import java.util.ArrayDeque;
+
+// sender side of an adaptive upload: how many bytes may be unacknowledged and how big the next chunk is
+// works like tcp bbr on the ChunkAcks: the rate acks come back at is what the path delivers, the smallest rtt seen is the path
+// without queues, their product is what the path holds; the window is GAIN times that, so the pipe stays full and a
+// rate that went up shows in the next samples, while the queue stays at about one such product
+// slow start doubles the window every round trip until the delivery rate stops growing by a quarter for FULL_ROUNDS rounds
+// a late ack (a lost segment tcp had to resend) lowers the rate of one sample only, the best rate of the last BW_ROUNDS
+// round trips counts, so unlike a loss based scheme one loss does not halve the window
+// a chunk takes about CHUNK_NANOS at the measured rate, so the per chunk overhead (an ack, a crc, a write) stays small
+// on a fast path and a slow one still gets acks often, and the window holds at least MIN_CHUNKS of them; all within the server's bounds
+public class CongestionWindow {
+    private static final double GAIN = 2;
+    private static final int BW_ROUNDS = 10;
+    private static final int FULL_ROUNDS = 3;
+    private static final long CHUNK_NANOS = 1000000;
+    private static final int MIN_CHUNKS = 8; // in the window at least, a chunk is stored and forwarded whole, so its own size adds to the rtt
+
+    private int minChunk, maxChunk, maxChunks;
+    private int chunkSize;
+    private long window; // bytes
+    private boolean slowStart = true;
+    private long inFlight; // bytes sent and not acked
+    // {send time, bytes, delivered when sent, time of that delivery, send time of the newest chunk acked by then} of the unacked chunks, oldest first
+    private ArrayDeque<long[]> chunks = new ArrayDeque<>();
+    private long delivered, deliveredTime = System.nanoTime(); // bytes acked so far and when the last of them were
+    private long deliveredSent = deliveredTime; // when the newest acked chunk was sent
+    private long minRtt = Long.MAX_VALUE; // ns
+    private double[] roundRates = new double[BW_ROUNDS]; // best delivery rate of each recent round trip, bytes per ns
+    private double roundRate, fullRate;
+    private int round, flatRounds;
+    private long sentCount, ackedCount, roundEnd; // a round trip ends once what was sent when it began is acked
+
+    public CongestionWindow(int minChunk, int maxChunk, int maxChunks) {
+        this.minChunk = minChunk;
+        this.maxChunk = Math.max(minChunk, maxChunk);
+        this.maxChunks = maxChunks;
+        chunkSize = minChunk;
+        window = 4L * minChunk; // like tcp's initial window
+    }
+
+    public int chunkSize() {
+        return chunkSize;
+    }
+
+    public long window() {
+        return window;
+    }
+
+    // bytes per second, the best of the recent round trips
+    public double rate() {
+        return bestRate() * 1e9;
+    }
+
+    public boolean canSend() {
+        return chunks.isEmpty() || (chunks.size() < maxChunks && inFlight + chunkSize <= window);
+    }
+
+    public void onSend(int bytes) {
+        chunks.add(new long[]{System.nanoTime(), bytes, delivered, deliveredTime, deliveredSent});
+        inFlight += bytes;
+        sentCount++;
+    }
+
+    // count more chunks were acked, the samples come from the newest of them
+    public void onAck(long count) {
+        long now = System.nanoTime();
+        long bytes = 0;
+        long[] newest = null;
+        for (long i = 0; i < count && !chunks.isEmpty(); i++) {
+            newest = chunks.poll();
+            bytes += newest[1];
+        }
+        if (newest == null) return;
+        ackedCount += count;
+        inFlight -= bytes;
+        delivered += bytes;
+        deliveredTime = now;
+        deliveredSent = newest[0];
+        // what was delivered between sending the chunk and its ack, over the time that took; acks that arrive bunched
+        // together would make that look faster than the path is, it cannot be faster than those bytes were sent
+        long interval = Math.max(now - newest[3], newest[0] - newest[4]);
+        roundRate = Math.max(roundRate, (double) (delivered - newest[2]) / Math.max(interval, 1));
+        minRtt = Math.min(minRtt, Math.max(now - newest[0], 1));
+
+        if (slowStart) window += bytes;
+        if (ackedCount >= roundEnd) {
+            roundRates[round++ % BW_ROUNDS] = roundRate;
+            roundRate = 0;
+            roundEnd = sentCount;
+            if (slowStart) {
+                double best = bestRate();
+                if (best >= fullRate * 1.25) {
+                    fullRate = best;
+                    flatRounds = 0;
+                } else if (++flatRounds >= FULL_ROUNDS) {
+                    slowStart = false;
+                }
+            }
+        }
+        double rate = bestRate();
+        if (!slowStart) window = (long) (GAIN * rate * minRtt);
+
+        long size = Math.max((long) (rate * CHUNK_NANOS), window / maxChunks);
+        chunkSize = (int) Math.max(minChunk, Math.min(Long.highestOneBit(Math.max(size, 1)), maxChunk));
+        window = Math.max(window, (long) MIN_CHUNKS * chunkSize);
+        window = Math.min(window, (long) maxChunks * maxChunk);
+    }
+
+    private double bestRate() {
+        double best = 0;
+        for (double r : roundRates) best = Math.max(best, r);
+        return best;
+    }
+}
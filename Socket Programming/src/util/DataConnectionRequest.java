@@ -0,0 +1,16 @@
+package util;
+
+public class DataConnectionRequest extends Request {
+    private static final long serialVersionUID = 2515450964379251611L;
+
+    // first and only message on an extra connection of a parallel download, sent instead of a login
+    // the token from FileDownloadRequestResponse is the permission, range picks one entry of its range table
+    public String token;
+    public int range;
+
+    public DataConnectionRequest(String token, int range) {
+        super(RequestType.DATA_CONNECTION);
+        this.token = token;
+        this.range = range;
+    }
+}
@@ -1,10 +1,33 @@
 package util;
 
 public class FileDownloadRequest extends Request {
+    private static final long serialVersionUID = 7762972822541136130L;
+
     public String fileID;
+    public boolean raw; // asks for the file bytes outside the object stream, see NetworkUtil.sendFile
+    public long offset; // first byte wanted, lets a client finish a partial download
+    public long length; // bytes wanted from offset, 0 for the rest of the file
+    public int streams; // data connections the client is ready to open, 0 or 1 sends the file on this connection
 
     public FileDownloadRequest(String fileID) {
         super(RequestType.DOWNLOAD_REQUEST);
         this.fileID = fileID;
     }
+
+    public FileDownloadRequest(String fileID, boolean raw) {
+        super(RequestType.DOWNLOAD_REQUEST);
+        this.fileID = fileID;
+        this.raw = raw;
+    }
+
+    public FileDownloadRequest(String fileID, boolean raw, long offset, long length) {
+        this(fileID, raw);
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public FileDownloadRequest(String fileID, boolean raw, long offset, long length, int streams) {
+        this(fileID, raw, offset, length);
+        this.streams = streams;
+    }
 }
@@ -1,10 +1,17 @@
 package util;
 
 public class FileDownloadRequestResponse extends Request {
+    private static final long serialVersionUID = -6752840511419145946L;
+
     public boolean isAccepted;
     public String fileName;
     public int chunkSize;
     public long fileSize;
+    public boolean raw; // true if the server agreed to send the bytes raw, followed by "done"
+    public long offset, length; // the part of the file that follows, fileSize is still the whole file
+    public String sha256; // of the whole file, null for files stored before checksums
+    public String token; // set for a parallel download, nothing follows on this connection then
+    public long[] ranges; // parallel download: data connection i fetches [ranges[i], ranges[i + 1]) with this token
 
     public FileDownloadRequestResponse(boolean isAccepted) {
         super(RequestType.DOWNLOAD_REQUEST_RESPONSE);
@@ -18,4 +25,21 @@ public class FileDownloadRequestResponse extends Request {
         this.chunkSize = chunkSize;
         this.fileSize = fileSize;
     }
+
+    public FileDownloadRequestResponse(boolean isAccepted, String fileName, int chunkSize, long fileSize, boolean raw) {
+        this(isAccepted, fileName, chunkSize, fileSize);
+        this.raw = raw;
+    }
+
+    public FileDownloadRequestResponse(boolean isAccepted, String fileName, int chunkSize, long fileSize, boolean raw, long offset, long length) {
+        this(isAccepted, fileName, chunkSize, fileSize, raw);
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public FileDownloadRequestResponse(boolean isAccepted, String fileName, long fileSize, long offset, long length, String token, long[] ranges) {
+        this(isAccepted, fileName, 0, fileSize, true, offset, length);
+        this.token = token;
+        this.ranges = ranges;
+    }
 }
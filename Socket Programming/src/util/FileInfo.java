@@ -3,11 +3,14 @@ package util;
 import java.io.Serializable;
 
 public class FileInfo implements Serializable {
+    private static final long serialVersionUID = 3252440650678475897L;
+
     public String fileName;
     public String fileID;
     public boolean isPrivate;
     public String ownerName;
     public long fileSize; // in bytes
+    public String sha256; // hex, the client announces it before uploading, the server checks it and stores the file under it
 
     public FileInfo(String fileName, boolean isPrivate, String ownerName, long fileSize) {
         this.fileName = fileName;
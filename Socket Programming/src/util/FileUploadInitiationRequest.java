@@ -1,11 +1,15 @@
 package util;
 
 public class FileUploadInitiationRequest extends Request {
+    private static final long serialVersionUID = 5531651562526044014L;
+
     // this request sends the proposed file name, privacy, file size, (if requested) request id to server for initiation of the upload process
     // fileID is set by server though
     public FileInfo fileInfo;
     public boolean requested;
     public String requestID;
+    public boolean windowed; // client can keep several chunks in flight and understands ChunkAck
+    public boolean adaptive; // windowed client that sizes its window and chunks itself, see CongestionWindow
 
     public FileUploadInitiationRequest(FileInfo fileInfo, boolean requested, String requestID) {
         super(RequestType.UPLOAD_INITIATION);
@@ -15,4 +19,9 @@ public class FileUploadInitiationRequest extends Request {
             this.requestID = requestID;
         }
     }
+
+    public FileUploadInitiationRequest(FileInfo fileInfo, boolean requested, String requestID, boolean windowed) {
+        this(fileInfo, requested, requestID);
+        this.windowed = windowed;
+    }
 }
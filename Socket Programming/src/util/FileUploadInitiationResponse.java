@@ -3,10 +3,17 @@ package util;
 import java.io.Serializable;
 
 public class FileUploadInitiationResponse implements Serializable {
+    private static final long serialVersionUID = 3170477008134690895L;
+
     // this is a reply to the file upload initiation request from client to server
     public int chunkSize;
     public String fileID;
     public boolean isOK;
+    public int windowSize; // chunks the client may send before waiting for a ChunkAck, 0 means one "ack" per chunk
+    public String uploadID; // names this upload in a FileUploadResumeRequest if it gets interrupted
+    public long offset; // bytes the server already has, the client sends the file from here on
+    public boolean deduplicated; // the server had this content already, the file is added and nothing is to be sent
+    public int maxChunkSize; // an adaptive client may switch to chunks up to this size, 0 if chunkSize is fixed
 
     public FileUploadInitiationResponse(int chunkSize, String fileID) {
         this.chunkSize = chunkSize;
@@ -14,6 +21,17 @@ public class FileUploadInitiationResponse implements Serializable {
         isOK = true;
     }
 
+    public FileUploadInitiationResponse(int chunkSize, String fileID, int windowSize) {
+        this(chunkSize, fileID);
+        this.windowSize = windowSize;
+    }
+
+    public FileUploadInitiationResponse(int chunkSize, String fileID, int windowSize, String uploadID, long offset) {
+        this(chunkSize, fileID, windowSize);
+        this.uploadID = uploadID;
+        this.offset = offset;
+    }
+
     public FileUploadInitiationResponse(boolean isOK) {
         this.isOK = false;
     }
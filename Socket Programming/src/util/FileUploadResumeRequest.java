@@ -0,0 +1,16 @@
+package util;
+
+public class FileUploadResumeRequest extends Request {
+    private static final long serialVersionUID = -182878019878623773L;
+
+    // asks to continue an interrupted upload, the server answers with a FileUploadInitiationResponse carrying the offset to continue from
+    public String uploadID;
+    public boolean windowed;
+    public boolean adaptive;
+
+    public FileUploadResumeRequest(String uploadID, boolean windowed) {
+        super(RequestType.UPLOAD_RESUME);
+        this.uploadID = uploadID;
+        this.windowed = windowed;
+    }
+}
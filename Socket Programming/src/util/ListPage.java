@@ -0,0 +1,120 @@
+package util;
+
+import java.io.Serializable;
+import java.util.List;
+
+// reply to a ListRequest, only the list that was asked for is set
+// a client can keep the pages it got and merge later deltas into them, that is what the show methods print
+public class ListPage implements Serializable {
+    private static final long serialVersionUID = -7616601358807280846L;
+
+    public String list;
+    public List<String> users;
+    public List<FileInfo> files;
+    public List<FileRequest> requests;
+    public String next; // cursor for the next page, null on the last one
+    public String version; // send as since to get only what was added after this page
+    public boolean reset; // the token was from before a server restart, this listing starts from the beginning
+
+    public ListPage(String list) {
+        this.list = list;
+    }
+
+    public int size() {
+        if (users != null) return users.size();
+        if (files != null) return files.size();
+        return requests == null ? 0 : requests.size();
+    }
+
+    // appends the entries of a later page or delta and takes over its version
+    public void merge(ListPage page) {
+        if (page.users != null) users.addAll(page.users);
+        if (page.files != null) files.addAll(page.files);
+        if (page.requests != null) requests.addAll(page.requests);
+        version = page.version;
+    }
+
+    public void showUsers(String type) {
+        System.out.println("List of " + type + " Users:");
+        int i = 1;
+        for (String user : users) {
+            System.out.println(i + ". " + user);
+            i++;
+        }
+        System.out.println();
+    }
+
+    public void showFiles(String type) {
+        System.out.println("List of " + type + " Files:");
+        boolean mine = type.equals("Your");
+
+        int i = 1;
+        for (FileInfo file : files) {
+            if (file.isPrivate) continue;
+            if (mine && i == 1) System.out.println("Public Files:");
+            System.out.println(i + ". " + describe(file, mine));
+            i++;
+        }
+        if (i == 1) {
+            if (mine) System.out.println("No public files to show.");
+            else System.out.println("No shared files to show.");
+        }
+
+        if (mine) {
+            i = 1;
+            for (FileInfo file : files) {
+                if (!file.isPrivate) continue;
+                if (i == 1) System.out.println("Private Files:");
+                System.out.println(i + ". " + describe(file, true));
+                i++;
+            }
+            if (i == 1) System.out.println("No private files to show.");
+        }
+
+        System.out.println();
+    }
+
+    public void showFileRequests() {
+        System.out.println("List of File Requests:");
+        if (requests.size() == 0) {
+            System.out.println("No file requests to show.");
+        } else {
+            int i = 1;
+            for (FileRequest request : requests) {
+                System.out.println(i + ". Requested By: " + request.requester + ", Request ID: " + request.requestID);
+                System.out.println("Short Description: " + request.description);
+                i++;
+            }
+        }
+        System.out.println();
+    }
+
+    public void showSearchResults() {
+        System.out.println("Search Results:");
+        if (files != null) {
+            System.out.println("Files:");
+            if (files.isEmpty()) System.out.println("No matching files.");
+            int i = 1;
+            for (FileInfo file : files) {
+                System.out.println(i + ". " + describe(file, false));
+                i++;
+            }
+        }
+        if (requests != null) {
+            System.out.println("File Requests:");
+            if (requests.isEmpty()) System.out.println("No matching file requests.");
+            int i = 1;
+            for (FileRequest request : requests) {
+                System.out.println(i + ". Requested By: " + request.requester + ", Request ID: " + request.requestID);
+                System.out.println("Short Description: " + request.description);
+                i++;
+            }
+        }
+        System.out.println();
+    }
+
+    private static String describe(FileInfo file, boolean mine) {
+        if (mine) return file.fileName + " (File ID: " + file.fileID + ")";
+        return file.fileName + " (File ID: " + file.fileID + ", Owner: " + file.ownerName + ")";
+    }
+}
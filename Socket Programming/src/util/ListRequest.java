@@ -0,0 +1,23 @@
+package util;
+
+// asks for one page of a listing, unlike the SHOW_* requests which get everything at once
+// cursor continues where the previous page ended, since asks only for what was added after an earlier listing
+// both are tokens taken from a ListPage, the client never looks inside them
+public class ListRequest extends Request {
+    private static final long serialVersionUID = -6321872072575328883L;
+
+    public static final String REGISTERED_USERS = "registered", ACTIVE_USERS = "active", MY_FILES = "my", SHARED_FILES = "shared", FILE_REQUESTS = "requests";
+
+    public String list;
+    public int limit; // most entries wanted, 0 leaves it to the server
+    public String cursor; // ListPage.next of the previous page
+    public String since; // ListPage.version of an earlier listing, ignored for active users
+
+    public ListRequest(String list, int limit, String cursor, String since) {
+        super(RequestType.LIST);
+        this.list = list;
+        this.limit = limit;
+        this.cursor = cursor;
+        this.since = since;
+    }
+}
@@ -0,0 +1,22 @@
+package util;
+
+public class LoginRequest extends Request {
+    private static final long serialVersionUID = 49090083662303932L;
+
+    // newer clients log in with this instead of a bare username string, so they can ask for the binary protocol
+    public String username;
+    public boolean binary;
+    public boolean push; // the client reads the connection in the background and wants new messages pushed
+    public boolean mux; // the client wants a MuxSession, several requests and transfers at once, needs binary
+
+    public LoginRequest(String username, boolean binary) {
+        super(RequestType.LOGIN);
+        this.username = username;
+        this.binary = binary;
+    }
+
+    public LoginRequest(String username, boolean binary, boolean push) {
+        this(username, binary);
+        this.push = push;
+    }
+}
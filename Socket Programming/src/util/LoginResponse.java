@@ -0,0 +1,23 @@
+package util;
+
+import java.io.Serializable;
+
+public class LoginResponse implements Serializable {
+    private static final long serialVersionUID = -7117773211375964603L;
+
+    // reply to a LoginRequest, binary tells whether both sides switch to WireCodec after this message
+    public String message;
+    public boolean binary;
+    public boolean push; // UserMessages may show up between replies from now on
+    public boolean mux; // after this message the connection is a MuxSession, pushed messages come on stream 0
+
+    public LoginResponse(String message, boolean binary) {
+        this.message = message;
+        this.binary = binary;
+    }
+
+    public LoginResponse(String message, boolean binary, boolean push) {
+        this(message, binary);
+        this.push = push;
+    }
+}
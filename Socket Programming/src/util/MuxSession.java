@@ -0,0 +1,215 @@
+package util;
+
+import java.io.*;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Consumer;
+
+// several conversations over one connection at once, each one a MuxStream that works like a NetworkUtil of its own,
+// so a listing or a message does not have to wait until a transfer on the same connection is over
+// every frame is [varint length][varint stream][byte tag][body], length counts everything after itself, tags and bodies
+// are WireCodec's plus WINDOW (the receiver consumed that many chunk bytes) and CLOSE (the sender is done with the stream)
+// flow control is per stream: a stream has at most WINDOW_BYTES of chunk data unread at the other end, so one transfer
+// cannot fill the connection's buffers while its reader is busy
+// one writer thread sends the frames: every waiting message first, then chunk frames of at most MAX_FRAME bytes taken from
+// the sending streams in turn, one each, so a reply waits behind one chunk frame at most and transfers share the connection
+// a stream's own frames keep their order, its message waits until its chunk frame ahead of it is out
+// stream 0 carries what the server sends on its own (pushed messages), the client numbers its streams from 1
+public class MuxSession implements Runnable {
+    public static final int MAX_FRAME = 16 * 1024; // chunk bytes per frame
+    public static final int WINDOW_BYTES = 256 * 1024;
+
+    private Socket socket;
+    private DataInputStream in;
+    private DataOutputStream out;
+    private ConcurrentHashMap<Integer, MuxStream> streams = new ConcurrentHashMap<>();
+    private Consumer<MuxStream> onOpen; // gets every stream the peer starts, null if the peer may not start any
+    private int maxStreams;
+    private int nextID = 1;
+
+    // what the writer thread sends, under the session's lock
+    private ArrayDeque<byte[]> messages = new ArrayDeque<>();
+    private ArrayDeque<MuxStream> sending = new ArrayDeque<>(); // streams with a chunk frame waiting, in turn
+    private boolean closing = false;
+    private volatile IOException failure; // set once the connection is gone
+
+    // takes over the connection of networkUtil, which must have switched to the binary protocol
+    // the reader loop is run(), the owner runs it on a thread of its choice
+    public MuxSession(NetworkUtil networkUtil, ThreadFactory threads, Consumer<MuxStream> onOpen, int maxStreams) throws IOException {
+        if (!networkUtil.isBinary()) throw new IllegalStateException("a mux session needs the binary protocol");
+        this.socket = networkUtil.socket;
+        this.onOpen = onOpen;
+        this.maxStreams = maxStreams;
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), MAX_FRAME * 2));
+        stream(0);
+        threads.newThread(this::writeLoop).start();
+    }
+
+    // a new stream of our own
+    public synchronized MuxStream open() throws IOException {
+        if (failure != null || closing) throw new IOException("connection closed");
+        return stream(nextID++);
+    }
+
+    public MuxStream stream(int id) {
+        return streams.computeIfAbsent(id, k -> new MuxStream(this, k));
+    }
+
+    public boolean isOpen() {
+        return failure == null;
+    }
+
+    public int streamCount() {
+        return streams.size();
+    }
+
+    // sends what is queued, then closes the connection
+    public synchronized void close() {
+        closing = true;
+        notifyAll();
+    }
+
+    // reads frames and hands them to their streams until the connection is gone
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                int length = WireCodec.readVarInt(in);
+                if (length > WireCodec.MAX_MESSAGE) throw new StreamCorruptedException("frame of " + length + " bytes");
+                byte[] frame = new byte[length];
+                in.readFully(frame);
+                DataInputStream body = new DataInputStream(new ByteArrayInputStream(frame));
+                int id = WireCodec.readVarInt(body);
+                byte tag = body.readByte();
+
+                MuxStream stream = streams.get(id);
+                if (stream == null) {
+                    if (tag == WireCodec.CLOSE || tag == WireCodec.WINDOW) continue; // for a stream that is gone already
+                    stream = stream(id);
+                    if (onOpen == null || streams.size() > maxStreams + 1) {
+                        stream.closeConnection(); // refused, the peer reads the end of the stream
+                        continue;
+                    }
+                    onOpen.accept(stream);
+                }
+                if (tag == WireCodec.CHUNK) {
+                    int offset = frame.length - body.available();
+                    byte[] data = new byte[frame.length - offset];
+                    System.arraycopy(frame, offset, data, 0, data.length);
+                    stream.received(data);
+                } else if (tag == WireCodec.WINDOW) {
+                    stream.granted(WireCodec.readVarInt(body));
+                } else if (tag == WireCodec.CLOSE) {
+                    stream.received(null);
+                } else {
+                    stream.received(new Message(WireCodec.decode(tag, body)));
+                }
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    // a message waiting in a stream's inbound queue, next to the chunk data
+    static class Message {
+        Object o;
+
+        Message(Object o) {
+            this.o = o;
+        }
+    }
+
+    // a frame for the stream with this tag, the body written by the caller into the returned stream
+    static DataOutputStream frame(ByteArrayOutputStream bytes, int id, byte tag) throws IOException {
+        bytes.reset();
+        DataOutputStream frame = new DataOutputStream(bytes);
+        WireCodec.writeVarInt(frame, id);
+        frame.writeByte(tag);
+        return frame;
+    }
+
+    // queues a message frame, it goes out before any waiting chunk frame
+    synchronized void sendMessage(byte[] frame) throws IOException {
+        if (failure != null) throw failure;
+        messages.add(frame);
+        notifyAll();
+    }
+
+    // queues the stream's next chunk frame, after its previous one is out
+    synchronized void sendChunk(MuxStream stream, byte[] frame) throws IOException {
+        awaitSent(stream);
+        stream.pendingChunk = frame;
+        sending.add(stream);
+        notifyAll();
+    }
+
+    // until the writer has taken the stream's chunk frame, so what the stream sends next stays behind it
+    synchronized void awaitSent(MuxStream stream) throws IOException {
+        try {
+            while (stream.pendingChunk != null && failure == null) wait();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+        if (failure != null) throw failure;
+    }
+
+    synchronized void forget(MuxStream stream) {
+        streams.remove(stream.id, stream);
+    }
+
+    private void writeLoop() {
+        try {
+            while (true) {
+                byte[] frame = null;
+                synchronized (this) {
+                    while (messages.isEmpty() && sending.isEmpty() && !closing && failure == null) wait();
+                    if (failure != null) return;
+                    if (!messages.isEmpty()) {
+                        frame = messages.poll();
+                    } else if (!sending.isEmpty()) {
+                        MuxStream stream = sending.poll();
+                        frame = stream.pendingChunk;
+                        stream.pendingChunk = null;
+                        notifyAll(); // its sender may queue the next one while this one goes out
+                    }
+                }
+                if (frame == null) { // closing and everything is sent
+                    out.flush();
+                    socket.close();
+                    return;
+                }
+                WireCodec.writeVarInt(out, frame.length);
+                out.write(frame);
+                boolean idle;
+                synchronized (this) {
+                    idle = messages.isEmpty() && sending.isEmpty();
+                }
+                if (idle) out.flush(); // frames queued in the meantime go out in the same packets
+            }
+        } catch (IOException e) {
+            fail(e);
+        } catch (InterruptedException e) {
+            fail(new InterruptedIOException());
+        }
+    }
+
+    private void fail(IOException e) {
+        synchronized (this) {
+            if (failure != null) return;
+            failure = e instanceof EOFException ? e : new IOException("connection lost: " + e.getMessage(), e);
+            notifyAll();
+        }
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+        for (MuxStream stream : streams.values()) stream.failed(failure);
+    }
+
+    IOException failure() {
+        return failure;
+    }
+}
@@ -0,0 +1,236 @@
+package util;
+
+import java.io.*;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+
+// one stream of a MuxSession, read and written like a NetworkUtil: messages, chunk data, raw file bytes (sent as chunk data)
+// whoever uses it does so from one thread at a time, like a connection; the session's reader thread fills the inbound queue
+public class MuxStream extends NetworkUtil {
+    public final int id;
+    private MuxSession session;
+
+    private static final Object END = new Object(); // the peer's CLOSE in the inbound queue
+
+    // inbound, under this stream's lock: MuxSession.Message, byte[] chunk data or END
+    private ArrayDeque<Object> inbound = new ArrayDeque<>();
+    private byte[] chunk; // chunk data being read
+    private int chunkPos;
+    private int consumed; // chunk bytes read since the last WINDOW we sent
+    private boolean remoteClosed, localClosed;
+    private IOException failure;
+    private int timeout; // ms, 0 waits forever, like a socket's
+
+    // outbound
+    private long credit = MuxSession.WINDOW_BYTES; // chunk bytes we may still send, under this stream's lock
+    byte[] pendingChunk; // handed to the writer thread, under the session's lock
+    private ByteArrayOutputStream frameBytes = new ByteArrayOutputStream();
+
+    MuxStream(MuxSession session, int id) {
+        this.session = session;
+        this.id = id;
+    }
+
+    public MuxSession session() {
+        return session;
+    }
+
+    @Override
+    public boolean isBinary() {
+        return true;
+    }
+
+    @Override
+    public void useBinaryProtocol() {
+    }
+
+    @Override
+    public synchronized Object read() throws IOException {
+        if (chunk != null) throw new StreamCorruptedException((chunk.length - chunkPos) + " bytes of chunk data left unread");
+        Object o = next();
+        if (o instanceof byte[]) throw new StreamCorruptedException("expected a message, got chunk data");
+        inbound.poll();
+        return ((MuxSession.Message) o).o;
+    }
+
+    // like ObjectInputStream, -1 means the next thing in the stream is a message and not chunk data
+    @Override
+    public synchronized int read(byte[] buf, int off, int len) throws IOException {
+        if (chunk == null) {
+            if (!(next() instanceof byte[])) return -1;
+            chunk = (byte[]) inbound.poll();
+            chunkPos = 0;
+        }
+        int n = Math.min(len, chunk.length - chunkPos);
+        System.arraycopy(chunk, chunkPos, buf, off, n);
+        chunkPos += n;
+        if (chunkPos == chunk.length) chunk = null;
+        consumed += n;
+        if (consumed >= MuxSession.WINDOW_BYTES / 2 && !localClosed) {
+            // the sender may go on while we read the rest
+            DataOutputStream frame = MuxSession.frame(frameBytes, id, WireCodec.WINDOW);
+            WireCodec.writeVarInt(frame, consumed);
+            consumed = 0;
+            session.sendMessage(frameBytes.toByteArray());
+        }
+        return n;
+    }
+
+    // the head of the inbound queue, waits for it; throws at the end of the stream
+    private Object next() throws IOException {
+        long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : 0;
+        while (inbound.isEmpty()) {
+            if (failure != null) throw failure;
+            waitUntil(deadline, "read timed out");
+        }
+        Object o = inbound.peek();
+        if (o == END) throw new EOFException("stream " + id + " closed by the peer");
+        return o;
+    }
+
+    private void waitUntil(long deadline, String timeoutMessage) throws IOException {
+        try {
+            if (deadline == 0) {
+                wait();
+            } else {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) throw new SocketTimeoutException(timeoutMessage);
+                wait(left);
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    @Override
+    public void write(Object o) throws IOException {
+        byte[] bytes;
+        synchronized (this) {
+            if (localClosed) throw new IOException("stream " + id + " is closed");
+            frameBytes.reset();
+            DataOutputStream frame = new DataOutputStream(frameBytes);
+            WireCodec.writeVarInt(frame, id);
+            WireCodec.encode(o, frame);
+            bytes = frameBytes.toByteArray();
+        }
+        session.awaitSent(this);
+        session.sendMessage(bytes);
+    }
+
+    // as chunk frames of at most MAX_FRAME bytes, each waits for credit from the receiver
+    @Override
+    public void write(byte[] buffer, int off, int len) throws IOException {
+        while (len > 0) {
+            byte[] bytes;
+            int n;
+            synchronized (this) {
+                if (localClosed) throw new IOException("stream " + id + " is closed");
+                long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : 0;
+                while (credit <= 0) {
+                    if (failure != null) throw failure;
+                    waitUntil(deadline, "no window from the peer");
+                }
+                n = (int) Math.min(Math.min(len, MuxSession.MAX_FRAME), credit);
+                credit -= n;
+                MuxSession.frame(frameBytes, id, WireCodec.CHUNK).write(buffer, off, n);
+                bytes = frameBytes.toByteArray();
+            }
+            session.sendChunk(this, bytes);
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void sendFile(FileChannel file, long position, long count) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(count, MuxSession.MAX_FRAME));
+        while (count > 0) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), count));
+            int n = file.read(buffer, position);
+            if (n <= 0) throw new EOFException("file is shorter than expected");
+            write(buffer.array(), 0, n);
+            position += n;
+            count -= n;
+        }
+    }
+
+    @Override
+    public void sendBytes(ByteBuffer buffer) throws IOException {
+        byte[] bytes = new byte[Math.min(buffer.remaining(), MuxSession.MAX_FRAME)];
+        while (buffer.hasRemaining()) {
+            int n = Math.min(bytes.length, buffer.remaining());
+            buffer.get(bytes, 0, n);
+            write(bytes, 0, n);
+        }
+    }
+
+    @Override
+    public void receiveFile(FileChannel file, long position, long count) throws IOException {
+        byte[] buffer = new byte[MuxSession.MAX_FRAME];
+        while (count > 0) {
+            int n = read(buffer, 0, (int) Math.min(buffer.length, count));
+            if (n == -1) throw new EOFException("stream ended during file transfer");
+            ByteBuffer data = ByteBuffer.wrap(buffer, 0, n);
+            while (data.hasRemaining()) position += file.write(data, position);
+            count -= n;
+        }
+    }
+
+    @Override
+    public synchronized int available() {
+        if (chunk != null) return chunk.length - chunkPos;
+        Object o = inbound.peek();
+        return o instanceof byte[] ? ((byte[]) o).length : inbound.isEmpty() ? 0 : 1;
+    }
+
+    @Override
+    public synchronized void setTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+
+    @Override
+    public void flush() {
+        // the session's writer flushes once it has nothing more to send
+    }
+
+    // ends our side of the stream, the session forgets it once the peer has ended its side too
+    @Override
+    public void closeConnection() throws IOException {
+        byte[] close;
+        synchronized (this) {
+            if (localClosed) return;
+            localClosed = true;
+            MuxSession.frame(frameBytes, id, WireCodec.CLOSE);
+            close = frameBytes.toByteArray(); // frameBytes is reused by whoever takes the lock next
+        }
+        if (remoteClosed || failure != null) session.forget(this);
+        if (failure != null) return;
+        session.awaitSent(this);
+        session.sendMessage(close);
+    }
+
+    // from the session's reader thread
+
+    // a message, chunk data or, for null, the end of the stream
+    synchronized void received(Object item) {
+        if (item == null) {
+            remoteClosed = true;
+            if (localClosed) session.forget(this);
+        }
+        inbound.add(item == null ? END : item);
+        notifyAll();
+    }
+
+    synchronized void granted(int n) {
+        credit += n;
+        notifyAll();
+    }
+
+    synchronized void failed(IOException e) {
+        failure = e;
+        notifyAll();
+    }
+}
@@ -1,37 +1,95 @@
 package util;
 
-import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.*;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 
 public class NetworkUtil {
-    private Socket socket;
+    Socket socket; // MuxSession takes it over
     private ObjectOutputStream oos;
     private ObjectInputStream ois;
 
+    // binary protocol (WireCodec), switched on after login when both sides support it
+    private boolean binary = false;
+    private DataInputStream din;
+    private DataOutputStream dout;
+    private ByteArrayOutputStream frameBytes;
+    private DataOutputStream frame;
+    private int chunkRemaining = 0; // unread bytes of the current CHUNK frame
+    private Object pending; // a message read while looking for chunk data
+    private boolean hasPending = false;
+
     public NetworkUtil(String s, int port) throws IOException {
         this.socket = new Socket(s, port);
+        // messages are flushed whole, nagle would only hold back the tail of each one until the peer's delayed ack (~40 ms)
+        socket.setTcpNoDelay(true);
         oos = new ObjectOutputStream(socket.getOutputStream());
         ois = new ObjectInputStream(socket.getInputStream());
     }
 
+    protected NetworkUtil() {
+        // for MuxStream, which has no socket of its own
+    }
+
     public NetworkUtil(Socket s) throws IOException {
         this.socket = s;
+        socket.setTcpNoDelay(true);
         oos = new ObjectOutputStream(socket.getOutputStream());
         ois = new ObjectInputStream(socket.getInputStream());
     }
 
+    // from now on every message is a WireCodec frame, both ends call this right after the LoginResponse
+    public void useBinaryProtocol() throws IOException {
+        binary = true;
+        din = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        dout = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        frameBytes = new ByteArrayOutputStream();
+        frame = new DataOutputStream(frameBytes);
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
     public Object read() throws IOException, ClassNotFoundException {
-        return ois.readUnshared();
+        if (!binary) return ois.readUnshared();
+
+        if (hasPending) {
+            hasPending = false;
+            Object o = pending;
+            pending = null;
+            return o;
+        }
+        if (chunkRemaining > 0) throw new StreamCorruptedException(chunkRemaining + " bytes of chunk data left unread");
+        WireCodec.readVarInt(din); // frame length, a message decodes without it
+        byte tag = din.readByte();
+        if (tag == WireCodec.CHUNK) throw new StreamCorruptedException("expected a message, got chunk data");
+        return WireCodec.decode(tag, din);
     }
 
     public void write(Object o) throws IOException {
-        oos.writeUnshared(o);
+        if (!binary) {
+            oos.writeUnshared(o);
+            flush();
+            return;
+        }
+
+        frameBytes.reset();
+        WireCodec.encode(o, frame);
+        WireCodec.writeVarInt(dout, frameBytes.size());
+        frameBytes.writeTo(dout);
         flush();
     }
 
     public void closeConnection() throws IOException {
+        if (binary) {
+            din.close();
+            dout.close();
+        }
         ois.close();
         oos.close();
     }
@@ -45,20 +103,81 @@ public class NetworkUtil {
 //        off - the start offset in the destination array buf
 //        len - the maximum number of bytes read
 //        https://docs.oracle.com/en/java/javase/17/docs/api/java.base/java/io/ObjectInputStream.html#read(byte%5B%5D,int,int)
-        return ois.read(buf, off, len);
+        if (!binary) return ois.read(buf, off, len);
+
+        // like ObjectInputStream, -1 means the next thing in the stream is a message and not chunk data
+        if (hasPending) return -1;
+        if (chunkRemaining == 0) {
+            int length = WireCodec.readVarInt(din);
+            byte tag = din.readByte();
+            if (tag != WireCodec.CHUNK) {
+                pending = WireCodec.decode(tag, din);
+                hasPending = true;
+                return -1;
+            }
+            chunkRemaining = length - 1;
+        }
+        int n = Math.min(len, chunkRemaining);
+        din.readFully(buf, off, n);
+        chunkRemaining -= n;
+        return n;
     }
 
     public void write(byte[] buffer, int off, int len) throws IOException {
-        oos.write(buffer, off, len);
+        if (!binary) {
+            oos.write(buffer, off, len);
+            flush();
+            return;
+        }
+
+        WireCodec.writeVarInt(dout, len + 1);
+        dout.writeByte(WireCodec.CHUNK);
+        dout.write(buffer, off, len);
         flush();
     }
 
+    // sends count bytes of the file as they are, bypassing the object stream
+    // sockets accepted through a ServerSocketChannel have a channel, then transferTo is a sendfile() without copies
+    public void sendFile(FileChannel file, long position, long count) throws IOException {
+        flush();
+        WritableByteChannel target = socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(socket.getOutputStream());
+        while (count > 0) {
+            long sent = file.transferTo(position, count, target);
+            if (sent <= 0 && position >= file.size()) throw new EOFException("file is shorter than expected");
+            position += sent;
+            count -= sent;
+        }
+    }
+
+    // same as sendFile for bytes that are in memory already, also read by receiveFile()
+    public void sendBytes(ByteBuffer buffer) throws IOException {
+        flush();
+        WritableByteChannel target = socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(socket.getOutputStream());
+        while (buffer.hasRemaining()) {
+            target.write(buffer);
+        }
+    }
+
+    // receiving side of sendFile(), goes through the socket's stream so the read timeout still applies
+    public void receiveFile(FileChannel file, long position, long count) throws IOException {
+        // in binary mode part of the file may already sit in din's buffer
+        ReadableByteChannel source = Channels.newChannel(binary ? din : socket.getInputStream());
+        while (count > 0) {
+            long received = file.transferFrom(source, position, count);
+            if (received <= 0) throw new EOFException("connection closed during file transfer");
+            position += received;
+            count -= received;
+        }
+    }
+
     public int available() throws IOException {
+        if (binary) return hasPending ? 1 : chunkRemaining > 0 ? chunkRemaining : din.available();
         return socket.getInputStream().available();
     }
 
     public void flush() throws IOException {
-        oos.flush();
+        if (binary) dout.flush();
+        else oos.flush();
     }
 }
 
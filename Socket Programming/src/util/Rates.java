@@ -0,0 +1,34 @@
+package util;
+
+// bytes per second as people type and read them, "512k", "10m" and "1g" are powers of 1024, 0 means no limit
+public class Rates {
+    public static long parse(String s) {
+        s = s.trim().toLowerCase();
+        if (s.endsWith("/s")) s = s.substring(0, s.length() - 2);
+        long unit = 1;
+        if (s.endsWith("b")) s = s.substring(0, s.length() - 1);
+        if (s.endsWith("k")) unit = 1L << 10;
+        else if (s.endsWith("m")) unit = 1L << 20;
+        else if (s.endsWith("g")) unit = 1L << 30;
+        if (unit > 1) s = s.substring(0, s.length() - 1);
+        long rate = (long) (Double.parseDouble(s) * unit);
+        if (rate < 0) throw new NumberFormatException("negative rate: " + s);
+        return rate;
+    }
+
+    public static String format(double bytesPerSecond) {
+        if (bytesPerSecond >= 1 << 20) return String.format("%.1f MB/s", bytesPerSecond / (1 << 20));
+        if (bytesPerSecond >= 1 << 10) return String.format("%.1f KB/s", bytesPerSecond / (1 << 10));
+        return String.format("%.0f B/s", bytesPerSecond);
+    }
+
+    public static String formatLimit(long bytesPerSecond) {
+        return bytesPerSecond == 0 ? "unlimited" : format(bytesPerSecond);
+    }
+
+    // average rate of count bytes moved since startNanos
+    public static String since(long count, long startNanos) {
+        double seconds = Math.max(System.nanoTime() - startNanos, 1000000) / 1e9;
+        return format(count / seconds);
+    }
+}
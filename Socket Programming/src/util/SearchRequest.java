@@ -0,0 +1,18 @@
+package util;
+
+// finds shared files by name and file requests by description, the reply is a ListPage with both lists set
+// every word of the query has to match the start of a word, so "rep 2023" finds "Report_2023.pdf"
+public class SearchRequest extends Request {
+    private static final long serialVersionUID = -6415845317342367002L;
+
+    public String query;
+    public String scope; // ListRequest.SHARED_FILES or FILE_REQUESTS to search only one of them, null for both
+    public int limit; // best matches wanted of each, 0 leaves it to the server
+
+    public SearchRequest(String query, String scope, int limit) {
+        super(RequestType.SEARCH);
+        this.query = query;
+        this.scope = scope;
+        this.limit = limit;
+    }
+}
@@ -4,12 +4,20 @@ import java.io.Serializable;
 import java.util.List;
 
 public class SendableList implements Serializable {
+    // what java computed for the class before it grew, so clients built from the old sources still read it; the same goes
+    // for the other messages that got new fields, every one of those fields may be missing and defaults to the old behavior
+    private static final long serialVersionUID = 2377689619444802459L;
+
     private List<String> list;
 
     public SendableList(List<String> list) {
         this.list = list;
     }
 
+    public List<String> getList() {
+        return list;
+    }
+
     public void showUsers(String type) {
         System.out.println("List of " + type + " Users:");
         int i = 1;
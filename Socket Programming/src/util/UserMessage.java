@@ -1,6 +1,11 @@
 package util;
 
-public class UserMessage {
+import java.io.Serializable;
+
+// also pushed as it is to a client that asked for pushes at login
+public class UserMessage implements Serializable {
+    private static final long serialVersionUID = 2604240111460559645L;
+
     public boolean seen = false;
     public String sender;
     public String receiver;
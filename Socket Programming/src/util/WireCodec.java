@@ -0,0 +1,405 @@
+package util;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+// hand written encoding of every message we send, used by NetworkUtil once both sides agreed on it at login
+// a frame is [varint length][byte tag][body], length counts the tag and the body
+// a MuxSession puts a varint stream ID in front of the tag and adds the WINDOW and CLOSE tags of its own
+// requests are tagged REQUEST followed by the RequestType ordinal and the fields of that request type
+public class WireCodec {
+    public static final byte NULL = 0, STRING = 1, REQUEST = 2, SENDABLE_LIST = 3, UPLOAD_INITIATION_RESPONSE = 4,
+            CHUNK_ACK = 5, LOGIN_RESPONSE = 6, CHUNK = 7, USER_MESSAGE = 8, LIST_PAGE = 9, WINDOW = 10, CLOSE = 11;
+
+    // bytes a string or a whole frame may take, a longer length comes from a broken or hostile peer and is not allocated
+    public static final int MAX_MESSAGE = 8 << 20;
+    private static final int MAX_PRESIZE = 1024; // list entries allocated up front, the rest grow as they are read
+
+    private static final RequestType[] REQUEST_TYPES = RequestType.values();
+
+    // writes the tag and body, the caller adds the length prefix
+    public static void encode(Object o, DataOutputStream out) throws IOException {
+        if (o == null) {
+            out.writeByte(NULL);
+        } else if (o instanceof String) {
+            out.writeByte(STRING);
+            writeString(out, (String) o);
+        } else if (o instanceof Request) {
+            out.writeByte(REQUEST);
+            encodeRequest((Request) o, out);
+        } else if (o instanceof SendableList) {
+            out.writeByte(SENDABLE_LIST);
+            List<String> list = ((SendableList) o).getList();
+            writeVarInt(out, list.size());
+            for (String s : list) writeString(out, s);
+        } else if (o instanceof FileUploadInitiationResponse) {
+            FileUploadInitiationResponse r = (FileUploadInitiationResponse) o;
+            out.writeByte(UPLOAD_INITIATION_RESPONSE);
+            out.writeBoolean(r.isOK);
+            writeVarInt(out, r.chunkSize);
+            writeString(out, r.fileID);
+            writeVarInt(out, r.windowSize);
+            writeString(out, r.uploadID);
+            writeVarLong(out, r.offset);
+            out.writeBoolean(r.deduplicated);
+            writeVarInt(out, r.maxChunkSize);
+        } else if (o instanceof ChunkAck) {
+            out.writeByte(CHUNK_ACK);
+            writeVarLong(out, ((ChunkAck) o).seq);
+            out.writeInt(((ChunkAck) o).crc);
+        } else if (o instanceof LoginResponse) {
+            LoginResponse r = (LoginResponse) o;
+            out.writeByte(LOGIN_RESPONSE);
+            writeString(out, r.message);
+            out.writeBoolean(r.binary);
+            out.writeBoolean(r.push);
+            out.writeBoolean(r.mux);
+        } else if (o instanceof UserMessage) {
+            UserMessage m = (UserMessage) o;
+            out.writeByte(USER_MESSAGE);
+            writeString(out, m.sender);
+            writeString(out, m.receiver);
+            out.writeBoolean(m.isRequest);
+            writeString(out, m.msg);
+        } else if (o instanceof ListPage) {
+            ListPage page = (ListPage) o;
+            out.writeByte(LIST_PAGE);
+            writeString(out, page.list);
+            // each list as (size + 1), 0 for the ones that are not set
+            writeVarInt(out, page.users == null ? 0 : page.users.size() + 1);
+            if (page.users != null) for (String user : page.users) writeString(out, user);
+            writeVarInt(out, page.files == null ? 0 : page.files.size() + 1);
+            if (page.files != null) for (FileInfo f : page.files) writeFileInfo(out, f);
+            writeVarInt(out, page.requests == null ? 0 : page.requests.size() + 1);
+            if (page.requests != null) {
+                for (FileRequest r : page.requests) {
+                    writeString(out, r.requester);
+                    writeString(out, r.requestID);
+                    writeString(out, r.description);
+                }
+            }
+            writeString(out, page.next);
+            writeString(out, page.version);
+            out.writeBoolean(page.reset);
+        } else {
+            throw new IOException("no binary encoding for " + o.getClass().getName());
+        }
+    }
+
+    private static void encodeRequest(Request request, DataOutputStream out) throws IOException {
+        out.writeByte(request.requestType.ordinal());
+        switch (request.requestType) {
+            case FILE_REQUEST: {
+                FileRequest r = (FileRequest) request;
+                writeString(out, r.requester);
+                writeString(out, r.requestID);
+                writeString(out, r.description);
+                break;
+            }
+            case REQUESTED_UPLOAD_CROSSCHECK:
+                writeString(out, ((MatchFileRequestID) request).requestID);
+                break;
+            case UPLOAD_INITIATION: {
+                FileUploadInitiationRequest r = (FileUploadInitiationRequest) request;
+                writeFileInfo(out, r.fileInfo);
+                out.writeBoolean(r.requested);
+                writeString(out, r.requestID);
+                out.writeBoolean(r.windowed);
+                out.writeBoolean(r.adaptive);
+                break;
+            }
+            case DOWNLOAD_REQUEST: {
+                FileDownloadRequest r = (FileDownloadRequest) request;
+                writeString(out, r.fileID);
+                out.writeBoolean(r.raw);
+                writeVarLong(out, r.offset);
+                writeVarLong(out, r.length);
+                writeVarInt(out, r.streams);
+                break;
+            }
+            case DOWNLOAD_REQUEST_RESPONSE: {
+                FileDownloadRequestResponse r = (FileDownloadRequestResponse) request;
+                out.writeBoolean(r.isAccepted);
+                writeString(out, r.fileName);
+                writeVarInt(out, r.chunkSize);
+                writeVarLong(out, r.fileSize);
+                out.writeBoolean(r.raw);
+                writeVarLong(out, r.offset);
+                writeVarLong(out, r.length);
+                writeString(out, r.sha256);
+                writeString(out, r.token);
+                writeVarInt(out, r.ranges == null ? 0 : r.ranges.length);
+                if (r.ranges != null) for (long bound : r.ranges) writeVarLong(out, bound);
+                break;
+            }
+            case DATA_CONNECTION: {
+                DataConnectionRequest r = (DataConnectionRequest) request;
+                writeString(out, r.token);
+                writeVarInt(out, r.range);
+                break;
+            }
+            case UPLOAD_RESUME: {
+                FileUploadResumeRequest r = (FileUploadResumeRequest) request;
+                writeString(out, r.uploadID);
+                out.writeBoolean(r.windowed);
+                out.writeBoolean(r.adaptive);
+                break;
+            }
+            case LOGIN: {
+                LoginRequest r = (LoginRequest) request;
+                writeString(out, r.username);
+                out.writeBoolean(r.binary);
+                out.writeBoolean(r.push);
+                out.writeBoolean(r.mux);
+                break;
+            }
+            case LIST: {
+                ListRequest r = (ListRequest) request;
+                writeString(out, r.list);
+                writeVarInt(out, r.limit);
+                writeString(out, r.cursor);
+                writeString(out, r.since);
+                break;
+            }
+            case SEARCH: {
+                SearchRequest r = (SearchRequest) request;
+                writeString(out, r.query);
+                writeString(out, r.scope);
+                writeVarInt(out, r.limit);
+                break;
+            }
+            default:
+                // SHOW_* and LOGOUT carry nothing but their type
+                break;
+        }
+    }
+
+    // reads the body of a frame whose tag has already been read
+    public static Object decode(byte tag, DataInputStream in) throws IOException {
+        switch (tag) {
+            case NULL:
+                return null;
+            case STRING:
+                return readString(in);
+            case REQUEST:
+                return decodeRequest(in);
+            case SENDABLE_LIST: {
+                int size = readCount(in);
+                List<String> list = new ArrayList<>(Math.min(size, MAX_PRESIZE));
+                for (int i = 0; i < size; i++) list.add(readString(in));
+                return new SendableList(list);
+            }
+            case UPLOAD_INITIATION_RESPONSE: {
+                boolean isOK = in.readBoolean();
+                int chunkSize = readVarInt(in);
+                String fileID = readString(in);
+                int windowSize = readVarInt(in);
+                String uploadID = readString(in);
+                long offset = readVarLong(in);
+                boolean deduplicated = in.readBoolean();
+                int maxChunkSize = readVarInt(in);
+                if (!isOK) return new FileUploadInitiationResponse(false);
+                FileUploadInitiationResponse r = new FileUploadInitiationResponse(chunkSize, fileID, windowSize, uploadID, offset);
+                r.deduplicated = deduplicated;
+                r.maxChunkSize = maxChunkSize;
+                return r;
+            }
+            case CHUNK_ACK:
+                return new ChunkAck(readVarLong(in), in.readInt());
+            case LOGIN_RESPONSE: {
+                LoginResponse r = new LoginResponse(readString(in), in.readBoolean(), in.readBoolean());
+                r.mux = in.readBoolean();
+                return r;
+            }
+            case USER_MESSAGE:
+                return new UserMessage(readString(in), readString(in), in.readBoolean(), readString(in));
+            case LIST_PAGE: {
+                ListPage page = new ListPage(readString(in));
+                int n = readCount(in) - 1;
+                if (n >= 0) {
+                    page.users = new ArrayList<>(Math.min(n, MAX_PRESIZE));
+                    for (int i = 0; i < n; i++) page.users.add(readString(in));
+                }
+                n = readCount(in) - 1;
+                if (n >= 0) {
+                    page.files = new ArrayList<>(Math.min(n, MAX_PRESIZE));
+                    for (int i = 0; i < n; i++) page.files.add(readFileInfo(in));
+                }
+                n = readCount(in) - 1;
+                if (n >= 0) {
+                    page.requests = new ArrayList<>(Math.min(n, MAX_PRESIZE));
+                    for (int i = 0; i < n; i++) {
+                        FileRequest r = new FileRequest(readString(in), null);
+                        r.requestID = readString(in);
+                        r.description = readString(in);
+                        page.requests.add(r);
+                    }
+                }
+                page.next = readString(in);
+                page.version = readString(in);
+                page.reset = in.readBoolean();
+                return page;
+            }
+            default:
+                throw new StreamCorruptedException("unknown frame tag " + tag);
+        }
+    }
+
+    private static Request decodeRequest(DataInputStream in) throws IOException {
+        int ordinal = in.readUnsignedByte();
+        if (ordinal >= REQUEST_TYPES.length) throw new StreamCorruptedException("unknown request type " + ordinal);
+        RequestType requestType = REQUEST_TYPES[ordinal];
+
+        switch (requestType) {
+            case FILE_REQUEST: {
+                FileRequest r = new FileRequest(readString(in), null);
+                r.requestID = readString(in);
+                r.description = readString(in);
+                return r;
+            }
+            case REQUESTED_UPLOAD_CROSSCHECK:
+                return new MatchFileRequestID(readString(in));
+            case UPLOAD_INITIATION: {
+                FileInfo fileInfo = readFileInfo(in);
+                boolean requested = in.readBoolean();
+                String requestID = readString(in);
+                boolean windowed = in.readBoolean();
+                FileUploadInitiationRequest r = new FileUploadInitiationRequest(fileInfo, requested, requestID, windowed);
+                r.adaptive = in.readBoolean();
+                return r;
+            }
+            case DOWNLOAD_REQUEST:
+                return new FileDownloadRequest(readString(in), in.readBoolean(), readVarLong(in), readVarLong(in), readVarInt(in));
+            case DOWNLOAD_REQUEST_RESPONSE: {
+                boolean isAccepted = in.readBoolean();
+                String fileName = readString(in);
+                int chunkSize = readVarInt(in);
+                long fileSize = readVarLong(in);
+                boolean raw = in.readBoolean();
+                long offset = readVarLong(in);
+                long length = readVarLong(in);
+                String sha256 = readString(in);
+                String token = readString(in);
+                int boundCount = readCount(in);
+                long[] ranges = boundCount == 0 ? null : new long[boundCount];
+                for (int i = 0; i < boundCount; i++) ranges[i] = readVarLong(in);
+                if (!isAccepted) return new FileDownloadRequestResponse(false);
+                FileDownloadRequestResponse r = new FileDownloadRequestResponse(true, fileName, chunkSize, fileSize, raw, offset, length);
+                r.sha256 = sha256;
+                r.token = token;
+                r.ranges = ranges;
+                return r;
+            }
+            case DATA_CONNECTION:
+                return new DataConnectionRequest(readString(in), readVarInt(in));
+            case UPLOAD_RESUME: {
+                FileUploadResumeRequest r = new FileUploadResumeRequest(readString(in), in.readBoolean());
+                r.adaptive = in.readBoolean();
+                return r;
+            }
+            case LOGIN: {
+                LoginRequest r = new LoginRequest(readString(in), in.readBoolean(), in.readBoolean());
+                r.mux = in.readBoolean();
+                return r;
+            }
+            case LIST:
+                return new ListRequest(readString(in), readVarInt(in), readString(in), readString(in));
+            case SEARCH:
+                return new SearchRequest(readString(in), readString(in), readVarInt(in));
+            default:
+                return new Request(requestType);
+        }
+    }
+
+    private static void writeFileInfo(DataOutputStream out, FileInfo f) throws IOException {
+        writeString(out, f.fileName);
+        writeString(out, f.fileID);
+        out.writeBoolean(f.isPrivate);
+        writeString(out, f.ownerName);
+        writeVarLong(out, f.fileSize);
+        writeString(out, f.sha256);
+    }
+
+    private static FileInfo readFileInfo(DataInputStream in) throws IOException {
+        String fileName = readString(in);
+        String fileID = readString(in);
+        boolean isPrivate = in.readBoolean();
+        String ownerName = readString(in);
+        FileInfo f = new FileInfo(fileName, isPrivate, ownerName, readVarLong(in));
+        f.fileID = fileID;
+        f.sha256 = readString(in);
+        return f;
+    }
+
+    // utf-8 prefixed with varint (length + 1), 0 means null, unlike writeUTF there is no 64 KB limit
+    public static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            writeVarInt(out, 0);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, bytes.length + 1);
+        out.write(bytes);
+    }
+
+    public static String readString(DataInputStream in) throws IOException {
+        int len = readVarInt(in) - 1;
+        if (len == -1) return null;
+        if (len > MAX_MESSAGE) throw new StreamCorruptedException("string of " + len + " bytes");
+        byte[] bytes = new byte[len];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // 7 bits per byte, high bit set on all but the last byte, so small lengths cost one byte
+    public static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    public static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                if (value < 0) throw new StreamCorruptedException("negative length " + value);
+                return value;
+            }
+        }
+        throw new StreamCorruptedException("varint too long");
+    }
+
+    // a number of entries that follow, each takes at least a byte so more than MAX_MESSAGE cannot be real
+    private static int readCount(DataInputStream in) throws IOException {
+        int count = readVarInt(in);
+        if (count > MAX_MESSAGE) throw new StreamCorruptedException(count + " entries in one message");
+        return count;
+    }
+
+    public static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    public static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new StreamCorruptedException("varint too long");
+    }
+}